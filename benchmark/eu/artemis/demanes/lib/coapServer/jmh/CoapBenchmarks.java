@@ -0,0 +1,62 @@
+/**
+ * File CoapBenchmarks.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * CoapBenchmarks
+ * 
+ * Runs the JMH benchmarks of this package with the GC profiler, so every
+ * result comes with the bytes allocated per operation. Other JMH options can
+ * be given on the command line, for example a pattern to run only some of the
+ * benchmarks, or -t 4 to run them on four threads.
+ * 
+ * The benchmarks are not part of the bundles. They are compiled outside of
+ * bnd, with jmh-core and jmh-generator-annprocess (for the annotation
+ * processor) added to the build path of the project:
+ * 
+ * <pre>
+ * javac -cp bin:[buildpath]:jmh-core.jar:jmh-generator-annprocess.jar \
+ *     -d bin_benchmark $(find benchmark -name "*.java")
+ * java -cp bin_benchmark:bin:[buildpath]:jmh-core.jar \
+ *     eu.artemis.demanes.lib.coapServer.jmh.CoapBenchmarks
+ * </pre>
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class CoapBenchmarks {
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		new Runner(new OptionsBuilder().parent(commandLine)
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * File CodecBenchmark.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+
+/**
+ * CodecBenchmark
+ * 
+ * Serializing and parsing a CON request with a token.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodecBenchmark {
+
+	@Param({ "0", "64", "512" })
+	public int payloadSize;
+
+	private final CoapPacket packet = new CoapPacket();
+
+	private ByteBuffer payload;
+
+	private ByteBuffer encoded;
+
+	private ByteBuffer out;
+
+	@Setup
+	public void setUp() {
+		this.payload = ByteBuffer.allocate(this.payloadSize);
+		for (int i = 0; i < this.payloadSize; i++)
+			this.payload.put(i, (byte) i);
+
+		this.encoded = this.request().encode(this.payload);
+		this.out = ByteBuffer.allocate(this.encoded.remaining());
+	}
+
+	/**
+	 * Into a new buffer, like the handler and dispatcher do
+	 */
+	@Benchmark
+	public ByteBuffer encode() {
+		return this.request().encode(this.payload);
+	}
+
+	/**
+	 * Into a buffer that is reused
+	 */
+	@Benchmark
+	public ByteBuffer encodeInto() {
+		this.out.clear();
+		this.request().encode(this.out, this.payload);
+		return this.out;
+	}
+
+	@Benchmark
+	public boolean decode() {
+		return this.packet.decode(this.encoded);
+	}
+
+	@Benchmark
+	public boolean decodeOrParse() {
+		return this.packet.decodeOrParse(this.encoded);
+	}
+
+	private CoapPacket request() {
+		CoapPacket request = this.packet.reset(CoapPacketType.CON,
+				CoapRequestCode.GET.getValue(), 0x1234);
+		request.setToken(0xCAFE, 2);
+		return request;
+	}
+}
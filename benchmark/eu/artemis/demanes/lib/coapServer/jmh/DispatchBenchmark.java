@@ -0,0 +1,104 @@
+/**
+ * File DispatchBenchmark.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+
+/**
+ * DispatchBenchmark
+ * 
+ * A request through CoapMessageServer.dispatchMessage, from the received
+ * bytes to the encoded response: parse, route, call the service and
+ * serialize. The services are called on the benchmark thread, as without
+ * worker threads.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatchBenchmark {
+
+	@Param({ "text", "compact" })
+	public String format;
+
+	@Param({ "NON", "CON" })
+	public String type;
+
+	@Param({ "16", "256" })
+	public int argumentSize;
+
+	private CoapMessageServer server;
+
+	private ByteBuffer request;
+
+	@Setup
+	public void setUp() {
+		this.server = new CoapMessageServer();
+		for (int i = 0; i < RoutingBenchmark.SERVICES; i++)
+			this.server.registerService(new EchoService(new ANES_URN("dmns",
+					"service" + i)));
+		this.server.setTranslator(RoutingBenchmark.translator());
+		this.server.start(null);
+
+		CoapPacket packet = new CoapPacket().reset(
+				CoapPacketType.valueOf(this.type),
+				CoapRequestCode.GET.getValue(), 0x1234);
+		packet.setToken(0xCAFE, 2);
+		this.request = packet.encode(RoutingBenchmark.payload(this.format,
+				this.argumentSize));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.server.stop();
+	}
+
+	@Benchmark
+	public ByteBuffer dispatchMessage() {
+		return this.server.dispatchMessage(this.request);
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * File EchoService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import java.nio.ByteBuffer;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * EchoService
+ * 
+ * Answers every request with its argument, so the benchmarks measure the
+ * COAP layer and not the service.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+final class EchoService implements RESTService {
+
+	private final ANES_URN identifier;
+
+	EchoService(ANES_URN identifier) {
+		this.identifier = identifier;
+	}
+
+	@Override
+	public ByteBuffer get(ByteBuffer input) {
+		return input;
+	}
+
+	@Override
+	public ByteBuffer put(ByteBuffer input) {
+		return input;
+	}
+
+	@Override
+	public ByteBuffer post(ByteBuffer input) {
+		return input;
+	}
+
+	@Override
+	public ByteBuffer delete(ByteBuffer input) {
+		return input;
+	}
+
+	@Override
+	public ANES_URN identifier() {
+		return this.identifier;
+	}
+}
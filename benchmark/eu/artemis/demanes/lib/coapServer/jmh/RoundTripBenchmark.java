@@ -0,0 +1,172 @@
+/**
+ * File RoundTripBenchmark.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.MessageDispatcherRegistry;
+import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * RoundTripBenchmark
+ * 
+ * A request from CoapMessageClient to CoapMessageServer and back, through a
+ * connector that hands the messages over in memory on the calling thread.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoundTripBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean confirmable;
+
+	@Param({ "16", "256" })
+	public int argumentSize;
+
+	private CoapMessageServer server;
+
+	private CoapMessageClient client;
+
+	private RESTService service;
+
+	private ByteBuffer argument;
+
+	@Setup
+	public void setUp() {
+		this.server = new CoapMessageServer();
+		this.server.registerService(new EchoService(RoutingBenchmark.TARGET));
+		this.server.start(null);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.WINDOW_PROPERTY, "16");
+		properties.put(CoapMessageClient.CONFIRMABLE_PROPERTY,
+				String.valueOf(this.confirmable));
+
+		this.client = new CoapMessageClient();
+		this.client.addConnector(new InMemoryLink(this.server), null);
+		this.client.start(properties);
+
+		this.service = this.client.resolve(RoutingBenchmark.TARGET);
+		this.argument = ByteBuffer.allocate(this.argumentSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.client.stop();
+		this.server.stop();
+	}
+
+	@Benchmark
+	public ByteBuffer get() throws ServiceException {
+		return this.service.get(this.argument.duplicate());
+	}
+
+	@Benchmark
+	public ByteBuffer post() throws ServiceException {
+		return this.service.post(this.argument.duplicate());
+	}
+
+	/**
+	 * Passes every message straight to the server, and the response straight
+	 * back to the client
+	 */
+	private static final class InMemoryLink implements SocketConnector,
+			MessageDispatcherRegistry {
+
+		private final MessageDispatcher server;
+
+		private final Set<MessageDispatcher> dispatchers = new CopyOnWriteArraySet<MessageDispatcher>();
+
+		// Responses that arrive before the client listens, on the first write
+		private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		InMemoryLink(MessageDispatcher server) {
+			this.server = server;
+		}
+
+		@Override
+		public MessageDispatcherRegistry write(byte[] msg) {
+			ByteBuffer response = this.server.dispatchMessage(ByteBuffer
+					.wrap(msg));
+
+			if (response != null && this.dispatchers.isEmpty())
+				this.pending.offer(response);
+			else if (response != null)
+				for (MessageDispatcher d : this.dispatchers)
+					d.dispatchMessage(response.duplicate());
+
+			return this;
+		}
+
+		@Override
+		public void addDispatcher(MessageDispatcher d) {
+			this.dispatchers.add(d);
+
+			ByteBuffer response;
+			while ((response = this.pending.poll()) != null)
+				d.dispatchMessage(response);
+		}
+
+		@Override
+		public void removeDispatcher(MessageDispatcher d) {
+			this.dispatchers.remove(d);
+		}
+
+		@Override
+		public boolean containsDispatcher(MessageDispatcher d) {
+			return this.dispatchers.contains(d);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * File RoutingBenchmark.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.jmh;
+
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.server.CoapMessageHandler;
+import eu.artemis.demanes.lib.coap.server.CoapServiceBroker;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.URNTranslator;
+
+/**
+ * RoutingBenchmark
+ * 
+ * Finding the service and the arguments of a request payload, in the textual
+ * format (urn:dmns:...?arguments) and the compact format of the translator
+ * (one byte, then the arguments).
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoutingBenchmark {
+
+	// The services are urn:dmns:service0 up to this number
+	static final int SERVICES = 32;
+
+	static final ANES_URN TARGET = new ANES_URN("dmns", "service17");
+
+	@Param({ "text", "compact" })
+	public String format;
+
+	@Param({ "16" })
+	public int argumentSize;
+
+	private CoapServiceBroker broker;
+
+	private CoapMessageHandler handler;
+
+	private ByteBuffer payload;
+
+	private int terminator;
+
+	@Setup
+	public void setUp() {
+		URNTranslator translator = translator();
+
+		this.broker = new CoapServiceBroker();
+		for (int i = 0; i < SERVICES; i++)
+			this.broker.registerService(new EchoService(new ANES_URN("dmns",
+					"service" + i)));
+		this.broker.setTranslator(translator);
+
+		this.handler = new CoapMessageHandler(this.broker, null, translator);
+		this.payload = payload(this.format, this.argumentSize);
+
+		while (this.terminator < this.payload.limit()
+				&& this.payload.get(this.terminator) != CoapProxyConstants.SERVICE_TERMINATOR)
+			this.terminator++;
+	}
+
+	@Benchmark
+	public ANES_URN urnFromPayload() throws URISyntaxException {
+		return this.handler.getURNfromPayload(this.payload);
+	}
+
+	@Benchmark
+	public ByteBuffer argumentsFromPayload() {
+		return this.handler.getArgumentsfromPayload(this.payload);
+	}
+
+	/**
+	 * Straight from the bytes, as the handler does
+	 */
+	@Benchmark
+	public RESTService resolve() {
+		if (this.broker.isCompactID(this.payload.get(0)))
+			return this.broker.resolve(this.payload.get(0));
+
+		return this.broker.resolve(this.payload, 0, this.terminator);
+	}
+
+	@Benchmark
+	public RESTService resolveURN() {
+		return this.broker.resolve(TARGET);
+	}
+
+	/**
+	 * @param format
+	 *            text or compact
+	 * @param argumentSize
+	 * @return a request payload for the {@link #TARGET} service
+	 */
+	static ByteBuffer payload(String format, int argumentSize) {
+		byte[] service = ("compact".equals(format) ? new byte[] { 17 }
+				: (TARGET + "?").getBytes());
+
+		ByteBuffer payload = ByteBuffer.allocate(service.length
+				+ argumentSize);
+		payload.put(service);
+		while (payload.hasRemaining())
+			payload.put((byte) 'a');
+		payload.flip();
+		return payload;
+	}
+
+	/**
+	 * @return a translator with compact ID i for urn:dmns:service[i]
+	 */
+	static URNTranslator translator() {
+		final ANES_URN[] urns = new ANES_URN[SERVICES];
+		for (int i = 0; i < SERVICES; i++)
+			urns[i] = new ANES_URN("dmns", "service" + i);
+
+		return new URNTranslator() {
+			@Override
+			public ANES_URN byteToURN(byte b) {
+				return b >= 0 && b < SERVICES ? urns[b] : null;
+			}
+
+			@Override
+			public Byte URNToByte(ANES_URN urn) {
+				for (int i = 0; i < SERVICES; i++)
+					if (urns[i].equals(urn))
+						return Byte.valueOf((byte) i);
+
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * File BlockOption.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap;
+
+/**
+ * BlockOption
+ * 
+ * Helpers for the value of the Block1 and Block2 options of block-wise
+ * transfers (RFC 7959). The value holds the number of the block, whether more
+ * blocks follow, and the block size as an exponent (SZX): the size is
+ * 2^(SZX + 4) bytes, from 16 up to 1024.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public final class BlockOption {
+
+	public static final int MIN_SIZE = 16;
+
+	public static final int MAX_SIZE = 1024;
+
+	/* Response code 2.31 Continue, which ws4d-jcoap does not define */
+	public static final int CONTINUE_231 = (2 << 5) | 31;
+
+	private static final int MAX_SZX = 6;
+
+	private BlockOption() {
+	}
+
+	/**
+	 * @param num
+	 *            the number of the block
+	 * @param more
+	 *            whether more blocks follow
+	 * @param szx
+	 *            the block size exponent
+	 * @return the option value
+	 */
+	public static long value(int num, boolean more, int szx) {
+		return ((long) num << 4) | (more ? 0x08 : 0) | (szx & 0x07);
+	}
+
+	public static int getNum(long value) {
+		return (int) (value >>> 4);
+	}
+
+	/**
+	 * @param value
+	 * @return whether more blocks follow, false if the option is absent
+	 */
+	public static boolean hasMore(long value) {
+		return value != CoapPacket.NONE && (value & 0x08) != 0;
+	}
+
+	public static int getSZX(long value) {
+		return (int) (value & 0x07);
+	}
+
+	/**
+	 * @param value
+	 * @return the block size in bytes
+	 */
+	public static int getSize(long value) {
+		return 1 << (getSZX(value) + 4);
+	}
+
+	/**
+	 * @param size
+	 *            in bytes
+	 * @return the exponent of the largest block size that is not larger than
+	 *         the given size, within the allowed range
+	 */
+	public static int toSZX(int size) {
+		int szx = 0;
+		while (szx < MAX_SZX && (1 << (szx + 5)) <= size)
+			szx++;
+
+		return szx;
+	}
+}
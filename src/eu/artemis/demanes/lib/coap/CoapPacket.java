@@ -0,0 +1,576 @@
+/**
+ * File CoapPacket.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap;
+
+import java.nio.ByteBuffer;
+
+import org.ws4d.coap.interfaces.CoapMessage;
+import org.ws4d.coap.messages.AbstractCoapMessage;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+/**
+ * CoapPacket
+ * 
+ * Allocation free codec for the COAP messages as they are used by DEMANES (the
+ * same wire format as the ws4d-jcoap library). A CoapPacket is a reusable
+ * flyweight: {@link #decode(ByteBuffer)} reads the header, the options that
+ * are of interest and the location of the payload directly from the received
+ * buffer without copying, and {@link #encode(ByteBuffer)} writes a message
+ * straight from the fields. After decoding, the packet is only valid for as
+ * long as the underlying buffer is not reused.
+ * 
+ * Instances are not thread safe, every thread should use its own.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public final class CoapPacket {
+
+	/* Value of options that are not present */
+	public static final int NONE = -1;
+
+	/* COAP version in the header */
+	private static final int VERSION = 1;
+
+	private static final int HEADER_LENGTH = 4;
+
+	private static final byte PAYLOAD_MARKER = (byte) 0xFF;
+
+	/* Option numbers */
+	private static final int OPTION_MAX_AGE = 2;
+
+	private static final int OPTION_OBSERVE = 10;
+
+	private static final int OPTION_TOKEN = 11;
+
+	private static final int OPTION_BLOCK2 = 17;
+
+	private static final int OPTION_BLOCK1 = 19;
+
+	/* Options numbers larger than this delta need a fencepost */
+	private static final int MAX_OPTION_DELTA = 15;
+
+	private static final int FENCEPOST = 14;
+
+	private static final int MAX_TOKEN_LENGTH = 8;
+
+	private static final CoapPacketType[] PACKET_TYPES = new CoapPacketType[4];
+
+	static {
+		for (CoapPacketType t : CoapPacketType.values())
+			PACKET_TYPES[t.getValue()] = t;
+	}
+
+	private ByteBuffer buffer;
+
+	private CoapPacketType packetType;
+
+	private int code;
+
+	private int messageID;
+
+	private long token;
+
+	private int tokenLength;
+
+	private long maxAge;
+
+	private long observe;
+
+	private long block1;
+
+	private long block2;
+
+	private int payloadOffset;
+
+	private int payloadLength;
+
+	/**
+	 * Decode the message between the position and limit of the buffer. Neither
+	 * the position nor the limit of the buffer are changed.
+	 * 
+	 * @param buffer
+	 * @return false if the buffer does not contain a valid COAP message
+	 */
+	public boolean decode(ByteBuffer buffer) {
+		this.clear();
+
+		int pos = buffer.position();
+		int end = buffer.limit();
+
+		// Header and separator must at least be present
+		if (end - pos < HEADER_LENGTH + 1)
+			return false;
+
+		int first = buffer.get(pos) & 0xFF;
+		if ((first >>> 6) != VERSION)
+			return false;
+
+		this.packetType = PACKET_TYPES[(first >>> 4) & 0x03];
+		this.code = buffer.get(pos + 1) & 0xFF;
+		this.messageID = ((buffer.get(pos + 2) & 0xFF) << 8)
+				| (buffer.get(pos + 3) & 0xFF);
+
+		int optionCount = first & 0x0F;
+		int optionNumber = 0;
+		pos += HEADER_LENGTH;
+
+		for (int i = 0; i < optionCount; i++) {
+			if (pos >= end)
+				return false;
+
+			int optionHeader = buffer.get(pos++) & 0xFF;
+			int length = optionHeader & 0x0F;
+
+			if (length == 0x0F) {
+				if (pos >= end)
+					return false;
+
+				length += buffer.get(pos++) & 0xFF;
+			}
+
+			if (pos + length > end)
+				return false;
+
+			optionNumber += optionHeader >>> 4;
+
+			switch (optionNumber) {
+			case OPTION_MAX_AGE:
+				this.maxAge = readUint(buffer, pos, length);
+				break;
+			case OPTION_OBSERVE:
+				this.observe = readUint(buffer, pos, length);
+				break;
+			case OPTION_TOKEN:
+				if (length > MAX_TOKEN_LENGTH)
+					return false;
+
+				this.token = readUint(buffer, pos, length);
+				this.tokenLength = length;
+				break;
+			case OPTION_BLOCK2:
+				this.block2 = readUint(buffer, pos, length);
+				break;
+			case OPTION_BLOCK1:
+				this.block1 = readUint(buffer, pos, length);
+				break;
+			default:
+				// Fenceposts and options DEMANES does not use
+			}
+
+			pos += length;
+		}
+
+		if (pos >= end || buffer.get(pos) != PAYLOAD_MARKER)
+			return false;
+
+		this.buffer = buffer;
+		this.payloadOffset = pos + 1;
+		this.payloadLength = end - this.payloadOffset;
+
+		return true;
+	}
+
+	/**
+	 * Decode the message, and if that fails try whether the ws4d-jcoap parser
+	 * can make sense of it. Only messages that the codec cannot read pay for
+	 * the ws4d parser.
+	 * 
+	 * @param buffer
+	 * @return false if neither could parse the message
+	 */
+	public boolean decodeOrParse(ByteBuffer buffer) {
+		if (this.decode(buffer))
+			return true;
+
+		try {
+			byte[] msg = new byte[buffer.remaining()];
+			buffer.duplicate().get(msg);
+
+			CoapMessage message = AbstractCoapMessage.parseMessage(msg,
+					msg.length);
+
+			return this.decode(ByteBuffer.wrap(message.serialize()));
+		} catch (RuntimeException e) {
+			this.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Reset the packet to a new message without options or payload
+	 * 
+	 * @param packetType
+	 * @param code
+	 * @param messageID
+	 * @return this packet
+	 */
+	public CoapPacket reset(CoapPacketType packetType, int code, int messageID) {
+		this.clear();
+		this.packetType = packetType;
+		this.code = code;
+		this.messageID = messageID;
+		return this;
+	}
+
+	/**
+	 * Reset the packet to a response to the given request, with the same
+	 * message ID and token.
+	 * 
+	 * @param request
+	 * @param packetType
+	 * @param responseCode
+	 * @return this packet
+	 */
+	public CoapPacket reply(CoapPacket request, CoapPacketType packetType,
+			CoapResponseCode responseCode) {
+		long requestToken = request.token;
+		int requestTokenLength = request.tokenLength;
+
+		this.reset(packetType, responseCode.getValue(), request.messageID);
+		this.setToken(requestToken, requestTokenLength);
+		return this;
+	}
+
+	private void clear() {
+		this.buffer = null;
+		this.packetType = null;
+		this.code = 0;
+		this.messageID = 0;
+		this.token = 0;
+		this.tokenLength = 0;
+		this.maxAge = NONE;
+		this.observe = NONE;
+		this.block1 = NONE;
+		this.block2 = NONE;
+		this.payloadOffset = 0;
+		this.payloadLength = 0;
+	}
+
+	public CoapPacketType getPacketType() {
+		return packetType;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public int getMessageID() {
+		return messageID;
+	}
+
+	public void setMessageID(int messageID) {
+		this.messageID = messageID;
+	}
+
+	public boolean isEmpty() {
+		return code == 0;
+	}
+
+	public boolean isRequest() {
+		return code > 0 && code < 32;
+	}
+
+	public boolean isResponse() {
+		return code >= 64 && code < 192;
+	}
+
+	/**
+	 * @return the token as an unsigned big endian number
+	 */
+	public long getToken() {
+		return token;
+	}
+
+	public int getTokenLength() {
+		return tokenLength;
+	}
+
+	/**
+	 * @param token
+	 *            the token as an unsigned big endian number
+	 * @param tokenLength
+	 *            the number of bytes of the token, 0 for no token
+	 */
+	public void setToken(long token, int tokenLength) {
+		if (tokenLength < 0 || tokenLength > MAX_TOKEN_LENGTH)
+			throw new IllegalArgumentException("Invalid token length "
+					+ tokenLength);
+
+		this.token = token;
+		this.tokenLength = tokenLength;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public long getObserve() {
+		return observe;
+	}
+
+	public void setObserve(long observe) {
+		this.observe = observe;
+	}
+
+	public long getBlock1() {
+		return block1;
+	}
+
+	public void setBlock1(long block1) {
+		this.block1 = block1;
+	}
+
+	public long getBlock2() {
+		return block2;
+	}
+
+	public void setBlock2(long block2) {
+		this.block2 = block2;
+	}
+
+	/**
+	 * @return the buffer the packet was decoded from, or null
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the absolute index of the payload in the decoded buffer
+	 */
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/**
+	 * The payload of a decoded message as a read-only view on the decoded
+	 * buffer, so it is only valid for as long as that buffer is.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer getPayload() {
+		ByteBuffer payload = this.buffer.asReadOnlyBuffer();
+		payload.limit(this.payloadOffset + this.payloadLength);
+		payload.position(this.payloadOffset);
+		return payload.slice();
+	}
+
+	/**
+	 * Copy the payload of a decoded message
+	 * 
+	 * @return
+	 */
+	public byte[] copyPayload() {
+		byte[] payload = new byte[this.payloadLength];
+		for (int i = 0; i < payload.length; i++)
+			payload[i] = this.buffer.get(this.payloadOffset + i);
+		return payload;
+	}
+
+	/**
+	 * @param payload
+	 *            the payload between position and limit, may be null
+	 * @return the number of bytes needed to encode this message
+	 */
+	public int encodedLength(ByteBuffer payload) {
+		int length = HEADER_LENGTH + 1
+				+ (payload == null ? 0 : payload.remaining());
+
+		int last = 0;
+		for (int number = 0; number <= OPTION_BLOCK1; number++) {
+			int optionLength = optionLength(number);
+			if (optionLength < 0)
+				continue;
+
+			// Fenceposts of a single byte where the delta is too large
+			while (number - last > MAX_OPTION_DELTA) {
+				last = (last / FENCEPOST + 1) * FENCEPOST;
+				length++;
+			}
+
+			length += 1 + (optionLength >= 0x0F ? 1 : 0) + optionLength;
+			last = number;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Encode this message into a new buffer of exactly the right size.
+	 * 
+	 * @param payload
+	 *            the payload between position and limit, may be null. Its
+	 *            position is not changed.
+	 * @return the encoded message, ready for reading
+	 */
+	public ByteBuffer encode(ByteBuffer payload) {
+		ByteBuffer out = ByteBuffer.allocate(this.encodedLength(payload));
+		this.encode(out, payload);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Encode this message into the given buffer at its current position.
+	 * 
+	 * @param out
+	 * @param payload
+	 *            the payload between position and limit, may be null. Its
+	 *            position is not changed.
+	 */
+	public void encode(ByteBuffer out, ByteBuffer payload) {
+		int start = out.position();
+
+		out.put((byte) 0); // Version, type and option count come later
+		out.put((byte) this.code);
+		out.put((byte) (this.messageID >>> 8));
+		out.put((byte) this.messageID);
+
+		int count = 0;
+		int last = 0;
+		for (int number = 0; number <= OPTION_BLOCK1; number++) {
+			int optionLength = optionLength(number);
+			if (optionLength < 0)
+				continue;
+
+			while (number - last > MAX_OPTION_DELTA) {
+				int fencepost = (last / FENCEPOST + 1) * FENCEPOST;
+				out.put((byte) ((fencepost - last) << 4));
+				last = fencepost;
+				count++;
+			}
+
+			if (optionLength < 0x0F) {
+				out.put((byte) (((number - last) << 4) | optionLength));
+			} else {
+				out.put((byte) (((number - last) << 4) | 0x0F));
+				out.put((byte) (optionLength - 0x0F));
+			}
+
+			writeUint(out, optionValue(number), optionLength);
+			last = number;
+			count++;
+		}
+
+		if (count > 0x0F)
+			throw new IllegalStateException("Too many options");
+
+		out.put(start, (byte) ((VERSION << 6)
+				| (this.packetType.getValue() << 4) | count));
+
+		out.put(PAYLOAD_MARKER);
+		if (payload != null)
+			out.put(payload.duplicate());
+	}
+
+	/**
+	 * Encode an empty message, such as an acknowledgement, without options.
+	 * 
+	 * @param packetType
+	 * @param messageID
+	 * @return
+	 */
+	public static ByteBuffer encodeEmpty(CoapPacketType packetType,
+			int messageID) {
+		ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + 1);
+		out.put((byte) ((VERSION << 6) | (packetType.getValue() << 4)));
+		out.put((byte) 0);
+		out.put((byte) (messageID >>> 8));
+		out.put((byte) messageID);
+		out.put(PAYLOAD_MARKER);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * @param number
+	 * @return the encoded length of the option, or -1 if it is absent
+	 */
+	private int optionLength(int number) {
+		switch (number) {
+		case OPTION_TOKEN:
+			return this.tokenLength > 0 ? this.tokenLength : -1;
+		case OPTION_MAX_AGE:
+		case OPTION_OBSERVE:
+		case OPTION_BLOCK2:
+		case OPTION_BLOCK1:
+			long value = optionValue(number);
+			return value == NONE ? -1 : uintLength(value);
+		default:
+			return -1;
+		}
+	}
+
+	private long optionValue(int number) {
+		switch (number) {
+		case OPTION_MAX_AGE:
+			return this.maxAge;
+		case OPTION_OBSERVE:
+			return this.observe;
+		case OPTION_TOKEN:
+			return this.token;
+		case OPTION_BLOCK2:
+			return this.block2;
+		case OPTION_BLOCK1:
+			return this.block1;
+		default:
+			return NONE;
+		}
+	}
+
+	private static int uintLength(long value) {
+		int length = 0;
+		while (value != 0) {
+			value >>>= 8;
+			length++;
+		}
+		return length;
+	}
+
+	private static long readUint(ByteBuffer buffer, int pos, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++)
+			value = (value << 8) | (buffer.get(pos + i) & 0xFF);
+		return value;
+	}
+
+	private static void writeUint(ByteBuffer out, long value, int length) {
+		for (int i = length - 1; i >= 0; i--)
+			out.put((byte) (value >>> (8 * i)));
+	}
+
+	@Override
+	public String toString() {
+		return this.packetType + ", code " + this.code + ", MsgId: "
+				+ this.messageID + ", payload " + this.payloadLength + " bytes";
+	}
+}
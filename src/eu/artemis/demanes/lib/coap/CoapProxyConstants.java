@@ -19,12 +19,14 @@
  */
 package eu.artemis.demanes.lib.coap;
 
-import org.ws4d.coap.interfaces.CoapMessage;
-import org.ws4d.coap.messages.BasicCoapResponse;
-import org.ws4d.coap.messages.CoapEmptyMessage;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 import org.ws4d.coap.messages.CoapPacketType;
 import org.ws4d.coap.messages.CoapResponseCode;
 
+import eu.artemis.demanes.datatypes.ANES_URN;
+
 /**
  * CoapProxyConstants
  * 
@@ -44,6 +46,34 @@ public final class CoapProxyConstants {
 
 	/* Character to terminate label */
 	public static final byte SERVICE_TERMINATOR = '?';
+
+	/*
+	 * First byte of a batch payload. It is followed by the invocations, each
+	 * a request code byte, the length as varint and the payload of the
+	 * invocation. The response has the same marker, followed by a response
+	 * code byte, the length and the payload for each invocation in order.
+	 */
+	public static final byte BATCH_MARKER = (byte) 0xBA;
+
+	/*
+	 * First byte of a payload in the negotiated format. It is followed by the
+	 * epoch of the server in EPOCH_LENGTH bytes, the ID of the service as
+	 * varint and the arguments. The client gets the marker, epoch and ID of a service from
+	 * the NEGOTIATION_SERVICE. A server with another epoch, which restarted
+	 * since, answers 4.12 Precondition Failed without calling any service.
+	 */
+	public static final byte NEGOTIATED_MARKER = (byte) 0xBD;
+
+	/* Number of bytes of the epoch in a negotiated prefix */
+	public static final int EPOCH_LENGTH = 4;
+
+	/*
+	 * Service of the server that hands out the prefixes of the negotiated
+	 * format. A GET with the urn of a service as argument returns its prefix,
+	 * or nothing if the service is not registered.
+	 */
+	public static final ANES_URN NEGOTIATION_SERVICE = new ANES_URN("dmns",
+			"serviceid");
 	
 	/* Boolean whether we send acks */
 	private static boolean SEND_ACKS = false;
@@ -52,35 +82,171 @@ public final class CoapProxyConstants {
 	private static boolean SEND_ERRORS = false;
 	
 	/**
-	 * Package private function for create Error messages if required.
+	 * Package private function for create Error messages if required. An
+	 * error for a CON request is piggybacked on the ACK.
 	 * 
 	 * @param message
 	 * @param responseCode
 	 * @return
 	 */
-	public static CoapMessage createError(CoapMessage message,
+	public static ByteBuffer createError(CoapPacket message,
 			CoapResponseCode responseCode) {
+		return createError(message, replyType(message), responseCode);
+	}
+
+	/**
+	 * Create an Error message of the given type if required.
+	 * 
+	 * @param message
+	 * @param packetType
+	 * @param responseCode
+	 * @return
+	 */
+	public static ByteBuffer createError(CoapPacket message,
+			CoapPacketType packetType, CoapResponseCode responseCode) {
 		if (CoapProxyConstants.SEND_ERRORS) {
-			return new BasicCoapResponse(CoapPacketType.NON, responseCode,
-					message.getMessageID(), null);
+			return new CoapPacket().reply(message, packetType, responseCode)
+					.encode(null);
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * The type of an immediate answer to a message: an ACK that carries the
+	 * response for a CON request, NON otherwise.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static CoapPacketType replyType(CoapPacket message) {
+		if (message.isRequest()
+				&& message.getPacketType() == CoapPacketType.CON)
+			return CoapPacketType.ACK;
+
+		return CoapPacketType.NON;
+	}
+
 	/**
 	 * Package private function for create Acknowledgement messages if required.
 	 * 
 	 * @param response
 	 * @return
 	 */
-	public static CoapMessage createAck(CoapMessage msg) {
+	public static ByteBuffer createAck(CoapPacket msg) {
 		if (CoapProxyConstants.SEND_ACKS
 				&& msg.getPacketType() == CoapPacketType.CON) {
-			return new CoapEmptyMessage(CoapPacketType.ACK, msg.getMessageID());
+			return CoapPacket.encodeEmpty(CoapPacketType.ACK,
+					msg.getMessageID());
 		} else {
 			return null;
 		}
 	}
+
+	/**
+	 * @param value
+	 *            a non-negative number
+	 * @return the number of bytes of the varint encoding of the value
+	 */
+	public static int varintLength(int value) {
+		int length = 1;
+		while ((value >>>= 7) != 0)
+			length++;
+
+		return length;
+	}
+
+	/**
+	 * @param id
+	 *            a negotiated ID
+	 * @return the length of the negotiated prefix with this ID, the marker,
+	 *         the epoch and the ID
+	 */
+	public static int negotiatedLength(int id) {
+		return 1 + EPOCH_LENGTH + varintLength(id);
+	}
+
+	/**
+	 * Write a non-negative number as varint: seven bits per byte, least
+	 * significant first, with the top bit set on all but the last byte.
+	 * 
+	 * @param out
+	 * @param value
+	 */
+	public static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Read a varint written by {@link #putVarint(ByteBuffer, int)}
+	 * 
+	 * @param in
+	 * @return the number, or -1 if the buffer ends in the middle or it is too
+	 *         large
+	 */
+	public static int getVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32 && in.hasRemaining(); shift += 7) {
+			int b = in.get() & 0xFF;
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value < 0 ? -1 : value;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Read an integer setting from the (component) properties. Both numbers
+	 * and strings are accepted, missing or invalid settings give the default.
+	 * 
+	 * @param properties
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public static int getInt(Map<String, ?> properties, String key,
+			int defaultValue) {
+		Object value = (properties == null ? null : properties.get(key));
+
+		if (value instanceof Number)
+			return ((Number) value).intValue();
+
+		if (value != null)
+			try {
+				return Integer.parseInt(value.toString().trim());
+			} catch (NumberFormatException e) {
+				// Use the default
+			}
+
+		return defaultValue;
+	}
+
+	/**
+	 * Read a boolean setting from the (component) properties. Both booleans
+	 * and strings are accepted, missing settings give the default.
+	 * 
+	 * @param properties
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public static boolean getBoolean(Map<String, ?> properties, String key,
+			boolean defaultValue) {
+		Object value = (properties == null ? null : properties.get(key));
+
+		if (value instanceof Boolean)
+			return ((Boolean) value).booleanValue();
+
+		if (value != null)
+			return Boolean.parseBoolean(value.toString().trim());
+
+		return defaultValue;
+	}
 	
 }
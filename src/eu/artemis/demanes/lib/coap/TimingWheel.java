@@ -0,0 +1,310 @@
+/**
+ * File TimingWheel.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import eu.artemis.demanes.logging.LogConstants;
+import eu.artemis.demanes.logging.LogEntry;
+
+/**
+ * TimingWheel
+ * 
+ * A hashed timing wheel (Varghese and Lauck) for the many short timeouts of
+ * COAP exchanges. Scheduling and cancelling are O(1) and take no locks; a
+ * single daemon thread advances the wheel every tick and runs the tasks that
+ * are due. Tasks run on that thread, so they should be short. Timeouts fire
+ * up to one tick late, never early.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public final class TimingWheel {
+
+	// Default resolution in milliseconds
+	public static final long DEFAULT_TICK = 10;
+
+	// Default number of buckets, one round takes 512 ticks
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final Logger logger = Logger.getLogger("dmns:log");
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	private final long tickNanos;
+
+	private final long startTime;
+
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final Thread worker;
+
+	private volatile boolean running = true;
+
+	// Only touched by the worker
+	private long tick = 0;
+
+	/**
+	 * Create a wheel with the default resolution
+	 * 
+	 * @param name
+	 *            of the thread that runs the tasks
+	 */
+	public TimingWheel(String name) {
+		this(name, DEFAULT_TICK, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param name
+	 *            of the thread that runs the tasks
+	 * @param tick
+	 *            the resolution of the wheel
+	 * @param unit
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 */
+	public TimingWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+		if (tick <= 0 || wheelSize <= 0)
+			throw new IllegalArgumentException(
+					"Tick and wheel size must be positive");
+
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			this.wheel[i] = new Bucket();
+
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tick);
+		this.startTime = System.nanoTime();
+
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				turn();
+			}
+		}, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Run the task once after the delay
+	 * 
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return a handle to cancel the task with
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime()
+				- this.startTime + unit.toNanos(Math.max(delay, 0)));
+
+		this.scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stop the wheel, tasks that are not due yet will never run
+	 */
+	public void stop() {
+		this.running = false;
+		this.worker.interrupt();
+	}
+
+	private void turn() {
+		while (this.running) {
+			long deadline = this.tickNanos * (this.tick + 1);
+			long sleep = deadline - (System.nanoTime() - this.startTime);
+
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					// Only to stop
+				}
+				continue;
+			}
+
+			this.removeCancelled();
+			this.transferScheduled();
+			this.wheel[(int) (this.tick & this.mask)].expire(this.tick
+					/ this.wheel.length);
+			this.tick++;
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while ((timeout = this.scheduled.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING)
+				continue;
+
+			// Anything that is already due goes in the current bucket
+			long due = Math.max(timeout.deadline / this.tickNanos, this.tick);
+			timeout.round = due / this.wheel.length;
+			this.wheel[(int) (due & this.mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = this.cancelled.poll()) != null)
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+	}
+
+	/**
+	 * Handle to a scheduled task
+	 */
+	public static final class Timeout {
+
+		private static final int PENDING = 0;
+
+		private static final int CANCELLED = 1;
+
+		private static final int EXPIRED = 2;
+
+		private final TimingWheel timingWheel;
+
+		private final Runnable task;
+
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// Only touched by the worker, round of the wheel in which it is due
+		private long round;
+
+		private Bucket bucket;
+
+		private Timeout next;
+
+		private Timeout prev;
+
+		private Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+			this.timingWheel = timingWheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stop the task from running, if it has not started yet
+		 * 
+		 * @return true if this call cancelled it
+		 */
+		public boolean cancel() {
+			if (!this.state.compareAndSet(PENDING, CANCELLED))
+				return false;
+
+			this.timingWheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return this.state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return this.state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!this.state.compareAndSet(PENDING, EXPIRED))
+				return;
+
+			try {
+				this.task.run();
+			} catch (RuntimeException e) {
+				logger.error(new LogEntry(TimingWheel.class.getName(),
+						LogConstants.LOG_LEVEL_ERROR, "Comm",
+						"Timer task failed", e));
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only touched by the worker
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (this.head == null) {
+				this.head = this.tail = timeout;
+			} else {
+				this.tail.next = timeout;
+				timeout.prev = this.tail;
+				this.tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+
+			if (timeout.prev != null)
+				timeout.prev.next = next;
+			if (next != null)
+				next.prev = timeout.prev;
+
+			if (timeout == this.head)
+				this.head = next;
+			if (timeout == this.tail)
+				this.tail = timeout.prev;
+
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * Run the timeouts that are due in this round of the wheel
+		 * 
+		 * @param round
+		 */
+		void expire(long round) {
+			Timeout timeout = this.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.round <= round) {
+					this.remove(timeout);
+					timeout.expire();
+				}
+				timeout = next;
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * File BlockTransfer.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.lib.coap.BlockOption;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+
+/**
+ * Internal class BlockTransfer
+ * 
+ * A request that takes several exchanges, because its payload or the
+ * response does not fit in one message (RFC 7959). A payload larger than the
+ * block size is sent in Block1 blocks, each one after the server asked for it
+ * with 2.31 Continue. A response that comes with a Block2 option that has
+ * more blocks is collected by asking for the next block until the last one
+ * is in.
+ * 
+ * The transfer is driven by the thread that receives the responses, one
+ * exchange at a time.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class BlockTransfer {
+
+	private static final byte[] URN = "urn:".getBytes();
+
+	private final CoapRequestCode requestCode;
+
+	private final byte[] request;
+
+	private final long token;
+
+	private final int tokenLength;
+
+	private final CoapResponseFuture future;
+
+	/* Size we ask for, 0 to leave it to the server */
+	private final int preferredSize;
+
+	private int blockSize;
+
+	/* Start and end of the current Block1 block */
+	private int offset = 0;
+
+	private int end;
+
+	private final boolean blockwise;
+
+	/* Number of the Block2 block to ask for next */
+	private int nextBlock = 0;
+
+	private int responseSize;
+
+	private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+	private ByteBuffer last;
+
+	/**
+	 * A new request, sent block-wise if it is larger than the block size. The
+	 * server routes the request on the first block, so the Block1 blocks are
+	 * made large enough to hold the urn of the service, or the request is
+	 * sent in one piece if no block is.
+	 * 
+	 * @param requestCode
+	 * @param request
+	 *            the whole payload
+	 * @param token
+	 * @param tokenLength
+	 * @param blockSize
+	 *            the largest block to send or receive
+	 * @param future
+	 *            completed with the whole response
+	 */
+	BlockTransfer(CoapRequestCode requestCode, byte[] request, long token,
+			int tokenLength, int blockSize, CoapResponseFuture future) {
+		this.requestCode = requestCode;
+		this.request = request;
+		this.token = token;
+		this.tokenLength = tokenLength;
+		this.future = future;
+		this.preferredSize = (blockSize > 0 ? BlockOption.MIN_SIZE << BlockOption
+				.toSZX(blockSize) : 0);
+		this.blockSize = (this.preferredSize > 0 ? Math.max(
+				this.preferredSize, blockSizeFor(urnLength(request))) : 0);
+		this.end = (this.blockSize > 0 && this.blockSize <= BlockOption.MAX_SIZE ? Math
+				.min(request.length, this.blockSize) : request.length);
+		this.blockwise = (this.end < request.length);
+	}
+
+	/**
+	 * Continue an exchange that got the first block of a response
+	 * 
+	 * @param exchange
+	 */
+	BlockTransfer(CoapExchange exchange) {
+		this(exchange.getRequestCode(), exchange.getPayload(), exchange
+				.getToken(), exchange.getTokenLength(), 0, exchange.getFuture());
+	}
+
+	CoapResponseFuture getFuture() {
+		return future;
+	}
+
+	/**
+	 * Create the exchange for the next step of the transfer
+	 * 
+	 * @param messageID
+	 * @return
+	 */
+	CoapExchange exchange(int messageID) {
+		CoapExchange exchange;
+
+		if (this.isUploading()) {
+			exchange = new CoapExchange(messageID, this.requestCode,
+					Arrays.copyOfRange(this.request, this.offset, this.end),
+					this.token, this.tokenLength, CoapPacket.NONE, this.future);
+			exchange.setBlocks(BlockOption.value(this.offset / this.blockSize,
+					this.end < this.request.length,
+					BlockOption.toSZX(this.blockSize)), this.preferredBlock2());
+		} else {
+			// The server keeps a response to a block-wise argument, any other
+			// request is repeated so it can answer it again
+			byte[] payload = (this.nextBlock > 0 && this.blockwise ? new byte[0]
+					: this.request);
+
+			exchange = new CoapExchange(messageID, this.requestCode, payload,
+					this.token, this.tokenLength, CoapPacket.NONE, this.future);
+			exchange.setBlocks(CoapPacket.NONE, this.nextBlock == 0 ? this
+					.preferredBlock2() : BlockOption.value(this.nextBlock,
+					false, BlockOption.toSZX(this.responseSize)));
+		}
+
+		exchange.setTransfer(this);
+		return exchange;
+	}
+
+	/**
+	 * Take the response to the last exchange
+	 * 
+	 * @param message
+	 *            a successful response
+	 * @return true if there is another exchange to go
+	 */
+	boolean next(CoapPacket message) {
+		if (this.isUploading() && message.getCode() == BlockOption.CONTINUE_231) {
+			// The server may ask for smaller blocks
+			long block1 = message.getBlock1();
+			if (block1 != CoapPacket.NONE
+					&& BlockOption.getSize(block1) < this.blockSize)
+				this.blockSize = BlockOption.getSize(block1);
+
+			this.offset = this.end;
+			this.end = Math.min(this.request.length, this.offset
+					+ this.blockSize);
+			return true;
+		}
+
+		// The argument is in, whatever comes now is the response
+		this.offset = this.request.length;
+
+		long block2 = message.getBlock2();
+		if (block2 == CoapPacket.NONE && this.nextBlock == 0) {
+			this.last = ByteBuffer.wrap(message.copyPayload());
+			return false;
+		}
+
+		byte[] part = message.copyPayload();
+		this.response.write(part, 0, part.length);
+
+		if (!BlockOption.hasMore(block2))
+			return false;
+
+		this.nextBlock = BlockOption.getNum(block2) + 1;
+		this.responseSize = BlockOption.getSize(block2);
+		return true;
+	}
+
+	/**
+	 * @return the whole response, after the last exchange
+	 */
+	ByteBuffer getResponse() {
+		if (this.last != null)
+			return this.last;
+
+		return ByteBuffer.wrap(this.response.toByteArray());
+	}
+
+	/**
+	 * @param payload
+	 * @return the length of the urn and its terminator at the start of the
+	 *         payload, or 0 if it starts with a compact or negotiated prefix
+	 */
+	private static int urnLength(byte[] payload) {
+		if (payload.length < URN.length
+				|| !Arrays.equals(URN, Arrays.copyOf(payload, URN.length)))
+			return 0;
+
+		for (int i = URN.length; i < payload.length; i++)
+			if (payload[i] == CoapProxyConstants.SERVICE_TERMINATOR)
+				return i + 1;
+
+		return payload.length;
+	}
+
+	/**
+	 * @param length
+	 * @return the smallest block size that holds the given length, which is
+	 *         larger than {@link BlockOption#MAX_SIZE} if none does
+	 */
+	private static int blockSizeFor(int length) {
+		int size = BlockOption.MIN_SIZE;
+		while (size < length && size <= BlockOption.MAX_SIZE)
+			size <<= 1;
+
+		return size;
+	}
+
+	private boolean isUploading() {
+		return this.blockwise && this.offset < this.request.length;
+	}
+
+	private long preferredBlock2() {
+		return (this.preferredSize > 0 ? BlockOption.value(0, false,
+				BlockOption.toSZX(this.preferredSize)) : CoapPacket.NONE);
+	}
+}
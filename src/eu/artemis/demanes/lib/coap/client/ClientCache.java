@@ -0,0 +1,182 @@
+/**
+ * File ClientCache.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+
+/**
+ * Internal class ClientCache
+ * 
+ * Keeps the responses to GET requests of the client, keyed by the link, the
+ * service and the arguments of the request. The payload itself is no key, the
+ * negotiated prefix of one server may be that of another service at another
+ * server. An entry lives as long as the Max-Age of the response, and when the
+ * cache is full the least recently used entry is dropped.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class ClientCache {
+
+	private final long defaultMaxAge;
+
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of responses to keep
+	 * @param defaultMaxAge
+	 *            the seconds a response without Max-Age is kept, 0 for not at
+	 *            all
+	 */
+	ClientCache(final int capacity, long defaultMaxAge) {
+		this.defaultMaxAge = defaultMaxAge;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, ClientCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param request
+	 * @return a copy of the fresh response to the request, or null
+	 */
+	synchronized ByteBuffer get(Key request) {
+		Entry entry = this.entries.get(request);
+		if (entry == null)
+			return null;
+
+		if (entry.expires - System.nanoTime() <= 0) {
+			this.entries.remove(request);
+			return null;
+		}
+
+		return ByteBuffer.wrap(entry.response.clone());
+	}
+
+	/**
+	 * Keep a copy of the response, the buffer itself is not changed
+	 * 
+	 * @param request
+	 * @param response
+	 * @param maxAge
+	 *            in seconds, or CoapPacket.NONE if the response had none
+	 */
+	synchronized void put(Key request, ByteBuffer response, long maxAge) {
+		if (maxAge == CoapPacket.NONE)
+			maxAge = this.defaultMaxAge;
+
+		if (maxAge <= 0)
+			return;
+
+		byte[] copy = new byte[response.remaining()];
+		response.duplicate().get(copy);
+
+		this.entries.put(request, new Entry(request.service, copy,
+				System.nanoTime() + TimeUnit.SECONDS.toNanos(maxAge)));
+	}
+
+	/**
+	 * Remove all responses of the service
+	 * 
+	 * @param service
+	 */
+	synchronized void invalidate(ANES_URN service) {
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (it.hasNext())
+			if (it.next().service.equals(service))
+				it.remove();
+	}
+
+	/**
+	 * A GET request to a service over a link
+	 */
+	static final class Key {
+
+		private final Object link;
+
+		private final ANES_URN service;
+
+		private final byte[] arguments;
+
+		/**
+		 * @param link
+		 *            the dispatcher the request is sent with
+		 * @param service
+		 * @param arguments
+		 *            or null, copied from position to limit
+		 */
+		Key(Object link, ANES_URN service, ByteBuffer arguments) {
+			this.link = link;
+			this.service = service;
+			this.arguments = new byte[arguments == null ? 0 : arguments
+					.remaining()];
+			if (arguments != null)
+				arguments.duplicate().get(this.arguments);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return this.link == other.link
+					&& this.service.equals(other.service)
+					&& Arrays.equals(this.arguments, other.arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * System.identityHashCode(this.link) + this.service
+					.hashCode()) + Arrays.hashCode(this.arguments);
+		}
+	}
+
+	private static final class Entry {
+
+		private final ANES_URN service;
+
+		private final byte[] response;
+
+		private final long expires;
+
+		Entry(ANES_URN service, byte[] response, long expires) {
+			this.service = service;
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+}
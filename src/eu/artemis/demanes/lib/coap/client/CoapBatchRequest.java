@@ -0,0 +1,247 @@
+/**
+ * File CoapBatchRequest.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.client.api.BatchRequest;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * Internal class CoapBatchRequest
+ * 
+ * The BatchRequest of the client, encoded as a single COAP request (see
+ * {@link CoapProxyConstants#BATCH_MARKER}) and sent over the link of the
+ * first invocation.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class CoapBatchRequest implements BatchRequest {
+
+	private final CoapMessageClient client;
+
+	// The link of the first invocation
+	private CoapRequestDispatcher dispatcher;
+
+	private final ClientCache cache;
+
+	private final List<Invocation> invocations = new ArrayList<Invocation>();
+
+	private boolean sent = false;
+
+	CoapBatchRequest(CoapMessageClient client, ClientCache cache) {
+		this.client = client;
+		this.cache = cache;
+	}
+
+	@Override
+	public ResponseFuture get(ANES_URN service, ByteBuffer input) {
+		return add(CoapRequestCode.GET, service, input);
+	}
+
+	@Override
+	public ResponseFuture put(ANES_URN service, ByteBuffer input) {
+		return add(CoapRequestCode.PUT, service, input);
+	}
+
+	@Override
+	public ResponseFuture post(ANES_URN service, ByteBuffer input) {
+		return add(CoapRequestCode.POST, service, input);
+	}
+
+	@Override
+	public ResponseFuture delete(ANES_URN service, ByteBuffer input) {
+		return add(CoapRequestCode.DELETE, service, input);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		return this.invocations.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Only a batch of GET invocations is sent as GET, any other as POST.
+	 */
+	@Override
+	public ResponseFuture send() {
+		if (this.sent)
+			throw new IllegalStateException("Batch was already sent");
+		if (this.invocations.isEmpty())
+			throw new IllegalStateException("Batch is empty");
+
+		this.sent = true;
+
+		int length = 1;
+		boolean safe = true;
+		for (Invocation i : this.invocations) {
+			length += 1 + CoapProxyConstants.varintLength(i.payload.length)
+					+ i.payload.length;
+			safe &= (i.requestCode == CoapRequestCode.GET);
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		payload.put(CoapProxyConstants.BATCH_MARKER);
+		for (Invocation i : this.invocations) {
+			payload.put((byte) i.requestCode.getValue());
+			CoapProxyConstants.putVarint(payload, i.payload.length);
+			payload.put(i.payload);
+		}
+
+		// Whatever we change, we should not read an old value of it again
+		this.invalidate();
+
+		ResponseFuture future = this.dispatcher.dispatchRequestAsync(
+				safe ? CoapRequestCode.GET : CoapRequestCode.POST,
+				payload.array());
+		future.addListener(new ResponseListener() {
+			@Override
+			public void completed(ByteBuffer response) {
+				invalidate();
+
+				if (response == null) {
+					for (Invocation i : invocations)
+						i.future.complete(null);
+				} else {
+					dispatch(response);
+				}
+			}
+
+			@Override
+			public void failed(ServiceException e) {
+				invalidate();
+
+				for (Invocation i : invocations)
+					i.future.fail(e);
+			}
+		});
+
+		return future;
+	}
+
+	private ResponseFuture add(CoapRequestCode requestCode, ANES_URN service,
+			ByteBuffer input) {
+		if (this.sent)
+			throw new IllegalStateException("Batch was already sent");
+
+		// The proxy knows how to address the service, and over which link
+		ServiceProxy proxy = (ServiceProxy) this.client.resolveAsync(service);
+		if (proxy == null)
+			throw new IllegalArgumentException("No link to " + service);
+
+		if (this.dispatcher == null)
+			this.dispatcher = proxy.getDispatcher();
+		else if (this.dispatcher != proxy.getDispatcher())
+			throw new IllegalArgumentException(service
+					+ " is not on the same link as the rest of the batch");
+
+		this.dispatcher.getMetrics().request(service);
+
+		Invocation invocation = new Invocation(requestCode, service,
+				proxy.payload(input));
+		this.invocations.add(invocation);
+		return invocation.future;
+	}
+
+	/**
+	 * Hand the results to the futures of the invocations
+	 * 
+	 * @param response
+	 *            the payload of the batch response
+	 */
+	private void dispatch(ByteBuffer response) {
+		ByteBuffer in = response.duplicate();
+		boolean valid = in.hasRemaining()
+				&& in.get() == CoapProxyConstants.BATCH_MARKER;
+
+		for (Invocation i : this.invocations) {
+			int status = (valid && in.hasRemaining() ? in.get() & 0xFF : -1);
+			int length = (status < 0 ? -1 : CoapProxyConstants.getVarint(in));
+
+			if (length < 0 || length > in.remaining()) {
+				valid = false;
+				i.future.fail(new ServiceException("Invalid batch response"));
+				continue;
+			}
+
+			byte[] result = new byte[length];
+			in.get(result);
+
+			// Negotiated again for the next request
+			if (status == CoapResponseCode.Precondition_Failed_412.getValue())
+				this.dispatcher.getServiceIDs().restore(i.payload);
+
+			if ((status >>> 5) != 2) {
+				i.future.fail(new ServiceException(
+						"Error in using coapService. ("
+								+ CoapResponseCode.parseResponseCode(status)
+								+ ")"));
+			} else if (status == CoapResponseCode.Changed_204.getValue()
+					&& length == 0) {
+				i.future.complete(null);
+			} else {
+				i.future.complete(ByteBuffer.wrap(result));
+			}
+		}
+	}
+
+	private void invalidate() {
+		if (this.cache == null)
+			return;
+
+		for (Invocation i : this.invocations)
+			if (i.requestCode != CoapRequestCode.GET)
+				this.cache.invalidate(i.service);
+	}
+
+	private static final class Invocation {
+
+		private final CoapRequestCode requestCode;
+
+		private final ANES_URN service;
+
+		private final byte[] payload;
+
+		private final CoapResponseFuture future = new CoapResponseFuture();
+
+		Invocation(CoapRequestCode requestCode, ANES_URN service,
+				byte[] payload) {
+			this.requestCode = requestCode;
+			this.service = service;
+			this.payload = payload;
+		}
+	}
+}
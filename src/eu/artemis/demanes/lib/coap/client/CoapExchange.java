@@ -0,0 +1,217 @@
+/**
+ * File CoapExchange.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+
+/**
+ * Internal class CoapExchange
+ *
+ * A single outstanding request of the CoapRequestDispatcher. The exchange is
+ * registered before the request is written, so that a response can never
+ * arrive before there is something to hand it to. Whoever removes the
+ * exchange from the table of running requests gets to complete it.
+ *
+ * A confirmable request keeps its encoded datagram, so it can be
+ * retransmitted until it is acknowledged.
+ *
+ * The exchanges of a block-wise transfer share the future of the transfer,
+ * which is only completed when the last block is in.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class CoapExchange {
+
+	private final int messageID;
+
+	private final CoapRequestCode requestCode;
+
+	private final byte[] payload;
+
+	private final long token;
+
+	private final int tokenLength;
+
+	private final long observe;
+
+	private final CoapResponseFuture future;
+
+	private long block1 = CoapPacket.NONE;
+
+	private long block2 = CoapPacket.NONE;
+
+	private BlockTransfer transfer;
+
+	private volatile TimingWheel.Timeout timeout;
+
+	private volatile TimingWheel.Timeout retransmission;
+
+	private volatile byte[] datagram;
+
+	private volatile boolean acknowledged = false;
+
+	private int retransmissions = 0;
+
+	// System.nanoTime() of the first transmission
+	private volatile long sent;
+
+	CoapExchange(int messageID, CoapRequestCode requestCode, byte[] payload,
+			long token, int tokenLength, long observe) {
+		this(messageID, requestCode, payload, token, tokenLength, observe,
+				new CoapResponseFuture());
+	}
+
+	CoapExchange(int messageID, CoapRequestCode requestCode, byte[] payload,
+			long token, int tokenLength, long observe, CoapResponseFuture future) {
+		this.messageID = messageID;
+		this.requestCode = requestCode;
+		this.payload = payload;
+		this.token = token;
+		this.tokenLength = tokenLength;
+		this.observe = observe;
+		this.future = future;
+	}
+
+	int getMessageID() {
+		return messageID;
+	}
+
+	CoapRequestCode getRequestCode() {
+		return requestCode;
+	}
+
+	byte[] getPayload() {
+		return payload;
+	}
+
+	long getToken() {
+		return token;
+	}
+
+	int getTokenLength() {
+		return tokenLength;
+	}
+
+	long getObserve() {
+		return observe;
+	}
+
+	CoapResponseFuture getFuture() {
+		return future;
+	}
+
+	long getBlock1() {
+		return block1;
+	}
+
+	long getBlock2() {
+		return block2;
+	}
+
+	/**
+	 * Set the block options, before the exchange is queued
+	 * 
+	 * @param block1
+	 * @param block2
+	 */
+	void setBlocks(long block1, long block2) {
+		this.block1 = block1;
+		this.block2 = block2;
+	}
+
+	/**
+	 * @return the block-wise transfer this exchange is part of, or null
+	 */
+	BlockTransfer getTransfer() {
+		return transfer;
+	}
+
+	void setTransfer(BlockTransfer transfer) {
+		this.transfer = transfer;
+	}
+
+	void setTimeout(TimingWheel.Timeout timeout) {
+		this.timeout = timeout;
+	}
+
+	void setRetransmission(TimingWheel.Timeout retransmission) {
+		this.retransmission = retransmission;
+	}
+
+	byte[] getDatagram() {
+		return datagram;
+	}
+
+	void setDatagram(byte[] datagram) {
+		this.datagram = datagram;
+	}
+
+	long getSent() {
+		return sent;
+	}
+
+	void setSent(long sent) {
+		this.sent = sent;
+	}
+
+	boolean isAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * The other side has the request, stop retransmitting it
+	 */
+	void acknowledge() {
+		this.acknowledged = true;
+
+		TimingWheel.Timeout r = this.retransmission;
+		if (r != null)
+			r.cancel();
+	}
+
+	/**
+	 * Count a retransmission of the request, only called from the timer
+	 * 
+	 * @return the number of retransmissions before this one
+	 */
+	int retransmit() {
+		return this.retransmissions++;
+	}
+
+	/**
+	 * Stop the timeout and the retransmissions of this exchange, if they are
+	 * still pending.
+	 */
+	void cancelTimeout() {
+		TimingWheel.Timeout t = this.timeout;
+		if (t != null)
+			t.cancel();
+
+		TimingWheel.Timeout r = this.retransmission;
+		if (r != null)
+			r.cancel();
+	}
+}
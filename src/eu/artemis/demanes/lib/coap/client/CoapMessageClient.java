@@ -19,13 +19,26 @@
  */
 package eu.artemis.demanes.lib.coap.client;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.apache.log4j.Logger;
 
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
 import aQute.bnd.annotation.component.Reference;
 import eu.artemis.demanes.datatypes.ANES_URN;
 import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.client.api.AsyncRESTService;
+import eu.artemis.demanes.lib.coap.client.api.AsyncServiceProvider;
+import eu.artemis.demanes.lib.coap.client.api.BatchRequest;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.metrics.MetricsProvider;
 import eu.artemis.demanes.lib.services.RESTService;
 import eu.artemis.demanes.lib.services.ServiceProvider;
 import eu.artemis.demanes.lib.services.URNTranslator;
@@ -34,6 +47,26 @@ import eu.artemis.demanes.logging.LogEntry;
 
 /**
  * CoapClient
+ * 
+ * Every SocketConnector is a separate link, with its own request dispatcher
+ * and so its own window, retransmissions and timeouts. A connector may have
+ * the service property coap.routes with the URN prefixes of the services it
+ * reaches, as a comma separated string or a string array. A service is
+ * resolved to the link with the longest matching prefix, or else to the first
+ * connector without routes. Connectors may come and go, the services that
+ * were resolved to a link that is gone fail, and must be resolved again.
+ * 
+ * Services that the URNTranslator does not know are addressed by their urn.
+ * With coap.negotiate set to true, the client learns the short prefix of the
+ * negotiated format from the server of the link meanwhile. Only enable it for
+ * servers that hand out prefixes, otherwise the questions just time out.
+ * 
+ * Besides ServiceProvider the client provides AsyncServiceProvider, for the
+ * asynchronous calls of the services.
+ * 
+ * Every link counts the requests for each service, and times the exchanges.
+ * The metrics are provided as MetricsProvider service, and over JMX as
+ * eu.artemis.demanes.lib.coap:type=CoapMessageClient,name=[connector].
  *
  * @author leeuwencjv
  * @version 0.1
@@ -41,22 +74,109 @@ import eu.artemis.demanes.logging.LogEntry;
  *
  */
 @Component(immediate = true, properties = "messageType=COAP")
-public class CoapMessageClient implements ServiceProvider {
+public class CoapMessageClient implements AsyncServiceProvider,
+		ServiceProvider, MetricsProvider {
+
+	/* Component property with the maximum number of outstanding requests */
+	public static final String WINDOW_PROPERTY = "coap.window";
+
+	/* Component property with the maximum number of waiting requests */
+	public static final String QUEUE_PROPERTY = "coap.queue";
+
+	/* Component property to send requests as CON and retransmit them */
+	public static final String CONFIRMABLE_PROPERTY = "coap.confirmable";
+
+	/* Component property with the initial retransmission timeout (ms) */
+	public static final String ACK_TIMEOUT_PROPERTY = "coap.ackTimeout";
+
+	/* Component property with the largest block to send or receive, 0 for none */
+	public static final String BLOCK_SIZE_PROPERTY = "coap.blockSize";
+
+	/* Component property with the number of cached GET responses, 0 for none */
+	public static final String CACHE_PROPERTY = "coap.cache";
+
+	/* Component property with the seconds a response without Max-Age is kept */
+	public static final String MAX_AGE_PROPERTY = "coap.cache.maxAge";
+
+	/* Component property to learn short service prefixes from the servers */
+	public static final String NEGOTIATE_PROPERTY = "coap.negotiate";
+
+	/* Service property of a SocketConnector with the URN prefixes it reaches */
+	public static final String ROUTES_PROPERTY = "coap.routes";
 
 	private final Logger logger = Logger.getLogger("dmns:log");
 
-	private SocketConnector socketConnector;
+	private final List<Link> links = new CopyOnWriteArrayList<Link>();
+
+	// The settings of the dispatchers, known once activated
+	private boolean active = false;
+
+	private int window;
+
+	private int queueSize;
+
+	private boolean confirmable;
 
-	private CoapRequestDispatcher requestDispatcher;
+	private int ackTimeout;
 
-	private URNTranslator translator;
+	private int blockSize;
+
+	private volatile boolean negotiate;
+
+	private volatile URNTranslator translator;
+
+	// The responses to GET requests, or null if they are not kept
+	private volatile ClientCache cache;
 
 	@Activate
-	public void start() {
+	public synchronized void start(Map<String, ?> properties) {
 		logger.debug(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_DEBUG, "LifeCycle", "Activating module"));
 
-		this.requestDispatcher = new CoapRequestDispatcher(socketConnector);
+		this.window = CoapProxyConstants.getInt(properties, WINDOW_PROPERTY,
+				CoapRequestDispatcher.DEFAULT_WINDOW);
+		this.queueSize = CoapProxyConstants.getInt(properties, QUEUE_PROPERTY,
+				CoapRequestDispatcher.DEFAULT_QUEUE_SIZE);
+
+		this.confirmable = CoapProxyConstants.getBoolean(properties,
+				CONFIRMABLE_PROPERTY, false);
+		this.ackTimeout = CoapProxyConstants.getInt(properties,
+				ACK_TIMEOUT_PROPERTY,
+				(int) CoapRequestDispatcher.DEFAULT_ACK_TIMEOUT);
+		this.blockSize = CoapProxyConstants.getInt(properties,
+				BLOCK_SIZE_PROPERTY, 0);
+		this.negotiate = CoapProxyConstants.getBoolean(properties,
+				NEGOTIATE_PROPERTY, false);
+
+		this.active = true;
+
+		// The connectors that were bound before activation
+		for (Link link : this.links)
+			link.dispatcher = newDispatcher(link.connector);
+
+		int cacheSize = CoapProxyConstants.getInt(properties, CACHE_PROPERTY, 0);
+		this.cache = (cacheSize > 0 ? new ClientCache(cacheSize,
+				CoapProxyConstants.getInt(properties, MAX_AGE_PROPERTY, 0))
+				: null);
+	}
+
+	@Deactivate
+	public synchronized void stop() {
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "LifeCycle",
+				"Deactivating module"));
+
+		this.active = false;
+
+		// Responses from before may be stale by the next activation
+		this.cache = null;
+
+		for (Link link : this.links) {
+			CoapRequestDispatcher dispatcher = link.dispatcher;
+			link.dispatcher = null;
+			if (dispatcher != null)
+				dispatcher.close();
+		}
 	}
 
 	/**
@@ -68,25 +188,173 @@ public class CoapMessageClient implements ServiceProvider {
 	 */
 	@Override
 	public RESTService resolve(ANES_URN identifier) {
+		return resolveAsync(identifier);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The service is null if there is no link to it.
+	 */
+	@Override
+	public AsyncRESTService resolveAsync(ANES_URN identifier) {
 		logger.trace(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_TRACE, "Comm", "Finding REST Service "
 						+ identifier));
 
+		CoapRequestDispatcher dispatcher = route(identifier);
+		if (dispatcher == null) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm", "No link to "
+							+ identifier));
+			return null;
+		}
+
 		if (this.translator != null
 				&& this.translator.URNToByte(identifier) != null)
-			return new ServiceProxy(identifier, requestDispatcher,
-					this.translator.URNToByte(identifier));
+			return new ServiceProxy(identifier, dispatcher,
+					this.translator.URNToByte(identifier), this.cache);
+		else if (this.negotiate)
+			return new ServiceProxy(identifier, dispatcher,
+					dispatcher.getServiceIDs(), this.cache);
 		else
-			return new ServiceProxy(identifier, requestDispatcher);
+			return new ServiceProxy(identifier, dispatcher, this.cache);
 	}
 
-	@Reference
-	public void setConnector(SocketConnector connector) {
+	/**
+	 * Find the link with the longest route that the URN starts with, where a
+	 * connector without routes matches any URN with length 0
+	 * 
+	 * @param identifier
+	 * @return the dispatcher of the link, or null if there is none
+	 */
+	private CoapRequestDispatcher route(ANES_URN identifier) {
+		String urn = identifier.toString();
+
+		CoapRequestDispatcher best = null;
+		int bestLength = -1;
+		for (Link link : this.links) {
+			CoapRequestDispatcher dispatcher = link.dispatcher;
+			if (dispatcher == null)
+				continue;
+
+			int length = (link.routes.length == 0 ? 0 : -1);
+			for (String prefix : link.routes)
+				if (urn.startsWith(prefix))
+					length = Math.max(length, prefix.length());
+
+			if (length > bestLength) {
+				best = dispatcher;
+				bestLength = length;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BatchRequest batch() {
+		return new CoapBatchRequest(this, this.cache);
+	}
+
+	/**
+	 * Add a link to the nodes that the connector reaches
+	 * 
+	 * @param connector
+	 * @param properties
+	 *            the service properties of the connector, with the
+	 *            {@value #ROUTES_PROPERTY} of the link, or null
+	 */
+	@Reference(multiple = true, dynamic = true)
+	public synchronized void addConnector(SocketConnector connector,
+			Map<String, ?> properties) {
 		logger.debug(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_DEBUG, "Reference",
-				"Setting SocketConnector " + connector));
+				"Adding SocketConnector " + connector));
+
+		Link link = new Link(connector, getRoutes(properties));
+		if (this.active)
+			link.dispatcher = newDispatcher(connector);
+
+		this.links.add(link);
+	}
+
+	/**
+	 * Remove the link of the connector. Its requests that are still running
+	 * fail.
+	 * 
+	 * @param connector
+	 */
+	public synchronized void removeConnector(SocketConnector connector) {
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "Reference",
+				"Removing SocketConnector " + connector));
+
+		for (Link link : this.links)
+			if (link.connector == connector) {
+				this.links.remove(link);
+
+				if (link.dispatcher != null)
+					link.dispatcher.close();
+			}
+	}
+
+	private CoapRequestDispatcher newDispatcher(SocketConnector connector) {
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, this.window, this.confirmable, this.ackTimeout,
+				this.blockSize, this.queueSize);
 
-		this.socketConnector = connector;
+		// Unregistered again when the dispatcher is closed
+		dispatcher.getMetrics().register();
+		return dispatcher;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<CoapMetrics> getMetrics() {
+		List<CoapMetrics> metrics = new ArrayList<CoapMetrics>();
+		for (Link link : this.links) {
+			CoapRequestDispatcher dispatcher = link.dispatcher;
+			if (dispatcher != null)
+				metrics.add(dispatcher.getMetrics());
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * Read the routes of a connector from its service properties
+	 * 
+	 * @param properties
+	 * @return the URN prefixes, empty if there are none
+	 */
+	private static String[] getRoutes(Map<String, ?> properties) {
+		Object value = (properties == null ? null : properties
+				.get(ROUTES_PROPERTY));
+
+		List<String> routes = new ArrayList<String>();
+		if (value instanceof String[]) {
+			for (String route : (String[]) value)
+				routes.add(route);
+		} else if (value instanceof Collection) {
+			for (Object route : (Collection<?>) value)
+				routes.add(route.toString());
+		} else if (value != null) {
+			for (String route : value.toString().split(","))
+				routes.add(route);
+		}
+
+		List<String> result = new ArrayList<String>();
+		for (String route : routes)
+			if (!route.trim().isEmpty())
+				result.add(route.trim());
+
+		return result.toArray(new String[result.size()]);
 	}
 
 	@Reference(optional = true)
@@ -97,4 +365,22 @@ public class CoapMessageClient implements ServiceProvider {
 
 		this.translator = ut;
 	}
+
+	/**
+	 * A connector with its routes and dispatcher
+	 */
+	private static final class Link {
+
+		private final SocketConnector connector;
+
+		private final String[] routes;
+
+		// Null while the client is not active
+		private volatile CoapRequestDispatcher dispatcher;
+
+		private Link(SocketConnector connector, String[] routes) {
+			this.connector = connector;
+			this.routes = routes;
+		}
+	}
 }
@@ -0,0 +1,131 @@
+/**
+ * File CoapObservation.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import eu.artemis.demanes.lib.coap.client.api.Observation;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+
+/**
+ * Internal class CoapObservation
+ * 
+ * The Observation of the client, kept by the dispatcher of the link under its
+ * token. Notifications that arrive out of order are dropped.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class CoapObservation implements Observation {
+
+	/* RFC 7641 section 3.4, after this a notification is always newer */
+	private static final long FRESHNESS = TimeUnit.SECONDS.toNanos(128);
+
+	private final CoapRequestDispatcher dispatcher;
+
+	private final long token;
+
+	private final int tokenLength;
+
+	private final byte[] payload;
+
+	private final ResponseListener listener;
+
+	private final AtomicBoolean active = new AtomicBoolean(true);
+
+	private long lastSequence = -1;
+
+	private long lastTime;
+
+	CoapObservation(CoapRequestDispatcher dispatcher, long token,
+			int tokenLength, byte[] payload, ResponseListener listener) {
+		this.dispatcher = dispatcher;
+		this.token = token;
+		this.tokenLength = tokenLength;
+		this.payload = payload;
+		this.listener = listener;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void cancel() {
+		this.dispatcher.cancelObservation(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isActive() {
+		return this.active.get();
+	}
+
+	long getToken() {
+		return token;
+	}
+
+	int getTokenLength() {
+		return tokenLength;
+	}
+
+	byte[] getPayload() {
+		return payload;
+	}
+
+	ResponseListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return true for the one caller that ends the observation
+	 */
+	boolean end() {
+		return this.active.compareAndSet(true, false);
+	}
+
+	/**
+	 * Check if a notification is newer than the last one that was passed on
+	 * 
+	 * @param sequence
+	 *            the Observe option of the notification
+	 * @return true if it should be passed on
+	 */
+	synchronized boolean isFresh(long sequence) {
+		long now = System.nanoTime();
+		long last = this.lastSequence;
+
+		boolean fresh = last < 0
+				|| (last < sequence && sequence - last < (1 << 23))
+				|| (last > sequence && last - sequence > (1 << 23))
+				|| now - this.lastTime > FRESHNESS;
+
+		if (fresh) {
+			this.lastSequence = sequence;
+			this.lastTime = now;
+		}
+
+		return fresh;
+	}
+}
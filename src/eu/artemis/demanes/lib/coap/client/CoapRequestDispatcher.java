@@ -20,16 +20,16 @@
 package eu.artemis.demanes.lib.coap.client;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
-import org.ws4d.coap.interfaces.CoapMessage;
-import org.ws4d.coap.interfaces.CoapResponse;
-import org.ws4d.coap.messages.AbstractCoapMessage;
-import org.ws4d.coap.messages.BasicCoapRequest;
 import org.ws4d.coap.messages.CoapPacketType;
 import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
@@ -37,7 +37,15 @@ import org.ws4d.coap.messages.CoapResponseCode;
 import eu.artemis.demanes.lib.MessageDispatcher;
 import eu.artemis.demanes.lib.MessageDispatcherRegistry;
 import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.BlockOption;
+import eu.artemis.demanes.lib.coap.CoapPacket;
 import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+import eu.artemis.demanes.lib.coap.client.api.Observation;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics.Stage;
 import eu.artemis.demanes.lib.impl.communication.CommUtils;
 import eu.artemis.demanes.lib.services.ServiceException;
 import eu.artemis.demanes.logging.LogConstants;
@@ -45,6 +53,34 @@ import eu.artemis.demanes.logging.LogEntry;
 
 /**
  * CoapRequestDispatcher
+ * 
+ * Client side of the COAP connection over a single SocketConnector. At most
+ * {@link #getWindow()} requests are outstanding on the connector at any time
+ * (NSTART in the COAP specification), further requests wait in a queue and
+ * are sent in order as soon as an earlier exchange completes or times out.
+ * At most {@link #getQueueSize()} requests wait, a request that finds the
+ * queue full fails right away.
+ * 
+ * Requests are sent as NON by default. In confirmable mode they are sent as
+ * CON and retransmitted with exponential backoff as in RFC 7252 (section
+ * 4.2), until they are acknowledged or answered, or MAX_RETRANSMIT
+ * retransmissions have been sent. All timing runs on the one timing wheel of
+ * the dispatcher.
+ * 
+ * If a block size is set, payloads that are larger are sent in blocks, and
+ * the server is asked to send responses in blocks of at most that size (RFC
+ * 7959). Responses that the server sends in blocks on its own are always
+ * collected. Either way the future is completed with the whole response.
+ * 
+ * A resource can be observed (RFC 7641) with {@link #observe}. Every
+ * observation has its own token, notifications are matched on the token and
+ * passed on to the listener of the observation.
+ * 
+ * Every request carries a token, and responses are matched on the token, so
+ * a separate response with a message ID of its own still finds its request.
+ * Only empty ACK and RST messages, and responses without a token, are
+ * matched on the message ID. Each dispatcher has its own message ID space,
+ * which wraps at 0xFFFF.
  *
  * @author leeuwencjv
  * @version 0.1
@@ -58,52 +94,345 @@ public class CoapRequestDispatcher implements MessageDispatcher {
 	// Default timeout in milliseconds
 	private static final long DEFAULT_REQUEST_TIMEOUT = 1000;
 
-	private static int maxMessageID = 1;
+	// Default number of outstanding requests per connector
+	public static final int DEFAULT_WINDOW = 4;
+
+	// Default number of requests waiting for a place in the window
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+
+	// RFC 7252 transmission parameters, the ACK_TIMEOUT can be configured
+	public static final long DEFAULT_ACK_TIMEOUT = 2000;
+
+	private static final double ACK_RANDOM_FACTOR = 1.5;
+
+	private static final int MAX_RETRANSMIT = 4;
+
+	// The running exchanges by token, and by message ID for the empty replies
+	private final ConcurrentMap<Long, CoapExchange> runningRequests;
+
+	private final ConcurrentMap<Integer, CoapExchange> sentMessages;
+
+	private final ConcurrentLinkedQueue<CoapExchange> waitingRequests;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	// Calls to sendWaiting that the draining thread still has to make up for
+	private final AtomicInteger drains = new AtomicInteger();
+
+	private final ConcurrentMap<Long, CoapObservation> observations;
+
+	// Random starts, so a restarted client does not reuse recent values
+	private final AtomicLong tokens = new AtomicLong(ThreadLocalRandom
+			.current().nextInt(0x10000));
+
+	private final AtomicInteger messageIDs = new AtomicInteger(
+			ThreadLocalRandom.current().nextInt(0x10000));
+
+	private final int window;
+
+	private final int queueSize;
+
+	private final boolean confirmable;
 
-	private final Map<Integer, SynchronousQueue<CoapResponse>> runningRequests;
+	private final long ackTimeout;
+
+	private final long requestTimeout;
+
+	private final int blockSize;
 
 	private final SocketConnector connector;
 
+	private final TimingWheel timer;
+
+	private final CoapMetrics metrics;
+
+	private final ServiceIDCache serviceIDs = new ServiceIDCache(this);
+
+	// Where the connector delivers the responses, to leave it again on close
+	private volatile MessageDispatcherRegistry registry;
+
+	private volatile boolean closed = false;
+
+	// Reusable packets, dispatchMessage may be called by several threads
+	private final ThreadLocal<CoapPacket> received = new ThreadLocal<CoapPacket>() {
+		@Override
+		protected CoapPacket initialValue() {
+			return new CoapPacket();
+		}
+	};
+
+	private final ThreadLocal<CoapPacket> sent = new ThreadLocal<CoapPacket>() {
+		@Override
+		protected CoapPacket initialValue() {
+			return new CoapPacket();
+		}
+	};
+
 	/**
 	 * @param socketConnector
 	 */
 	public CoapRequestDispatcher(SocketConnector socketConnector) {
-		this.runningRequests = new HashMap<Integer, SynchronousQueue<CoapResponse>>();
+		this(socketConnector, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param socketConnector
+	 * @param window
+	 *            The maximum number of outstanding requests
+	 */
+	public CoapRequestDispatcher(SocketConnector socketConnector, int window) {
+		this(socketConnector, window, false, DEFAULT_ACK_TIMEOUT);
+	}
+
+	/**
+	 * @param socketConnector
+	 * @param window
+	 *            The maximum number of outstanding requests
+	 * @param confirmable
+	 *            Whether to send the requests as CON
+	 * @param ackTimeout
+	 *            The initial time to wait for an acknowledgement in
+	 *            milliseconds, before retransmitting a CON request
+	 */
+	public CoapRequestDispatcher(SocketConnector socketConnector, int window,
+			boolean confirmable, long ackTimeout) {
+		this(socketConnector, window, confirmable, ackTimeout, 0);
+	}
+
+	/**
+	 * @param socketConnector
+	 * @param window
+	 *            The maximum number of outstanding requests
+	 * @param confirmable
+	 *            Whether to send the requests as CON
+	 * @param ackTimeout
+	 *            The initial time to wait for an acknowledgement in
+	 *            milliseconds, before retransmitting a CON request
+	 * @param blockSize
+	 *            The largest block to send or receive in bytes, or 0 to send
+	 *            every payload whole
+	 */
+	public CoapRequestDispatcher(SocketConnector socketConnector, int window,
+			boolean confirmable, long ackTimeout, int blockSize) {
+		this(socketConnector, window, confirmable, ackTimeout, blockSize,
+				DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param socketConnector
+	 * @param window
+	 *            The maximum number of outstanding requests
+	 * @param confirmable
+	 *            Whether to send the requests as CON
+	 * @param ackTimeout
+	 *            The initial time to wait for an acknowledgement in
+	 *            milliseconds, before retransmitting a CON request
+	 * @param blockSize
+	 *            The largest block to send or receive in bytes, or 0 to send
+	 *            every payload whole
+	 * @param queueSize
+	 *            The maximum number of requests waiting for the window
+	 */
+	public CoapRequestDispatcher(SocketConnector socketConnector, int window,
+			boolean confirmable, long ackTimeout, int blockSize, int queueSize) {
+		if (window < 1)
+			throw new IllegalArgumentException("Window must be at least 1");
+		if (queueSize < 0)
+			throw new IllegalArgumentException("Queue size cannot be negative");
+		if (ackTimeout < 1)
+			throw new IllegalArgumentException("Ack timeout must be positive");
+
+		this.runningRequests = new ConcurrentHashMap<Long, CoapExchange>();
+		this.sentMessages = new ConcurrentHashMap<Integer, CoapExchange>();
+		this.waitingRequests = new ConcurrentLinkedQueue<CoapExchange>();
+		this.observations = new ConcurrentHashMap<Long, CoapObservation>();
 		this.connector = socketConnector;
+		this.window = window;
+		this.queueSize = queueSize;
+		this.confirmable = confirmable;
+		this.ackTimeout = ackTimeout;
+		this.blockSize = blockSize;
+
+		// A CON request is given up after MAX_TRANSMIT_WAIT
+		this.requestTimeout = confirmable ? Math.max(DEFAULT_REQUEST_TIMEOUT,
+				(long) (ackTimeout * ((2 << MAX_RETRANSMIT) - 1) * ACK_RANDOM_FACTOR))
+				: DEFAULT_REQUEST_TIMEOUT;
+
+		// One wheel for the timeouts and retransmissions of all requests
+		this.timer = new TimingWheel("CoapRequestDispatcher timer");
+
+		// The requests in the window are the ones in flight
+		this.metrics = new CoapMetrics("CoapMessageClient",
+				String.valueOf(socketConnector), this.inFlight);
+	}
+
+	/**
+	 * Stop the timer of this dispatcher and stop listening to the connector.
+	 * Requests that are still waiting or running fail, and so will the
+	 * requests that are dispatched after this.
+	 */
+	public void close() {
+		this.closed = true;
+		this.timer.stop();
+		this.metrics.unregister();
+
+		MessageDispatcherRegistry server = this.registry;
+		if (server != null)
+			server.removeDispatcher(this);
+
+		ServiceException error = new ServiceException(
+				"CoapRequestDispatcher is closed");
+
+		for (CoapExchange exchange : this.runningRequests.values())
+			if (claim(exchange))
+				exchange.getFuture().fail(error);
+
+		for (CoapObservation observation : this.observations.values())
+			endObservation(observation, error);
+
+		this.failWaiting();
+	}
+
+	/**
+	 * @return the metrics of this link
+	 */
+	public CoapMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the prefixes that the server of this link handed out
+	 */
+	ServiceIDCache getServiceIDs() {
+		return this.serviceIDs;
+	}
+
+	/**
+	 * @return whether this dispatcher was closed
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * @return the maximum number of outstanding requests
+	 */
+	public int getWindow() {
+		return this.window;
+	}
+
+	/**
+	 * @return the maximum number of requests waiting for the window
+	 */
+	public int getQueueSize() {
+		return this.queueSize;
+	}
+
+	/**
+	 * @return the largest block to send or receive, 0 for none
+	 */
+	public int getBlockSize() {
+		return this.blockSize;
+	}
+
+	/**
+	 * @return whether requests are sent as CON
+	 */
+	public boolean isConfirmable() {
+		return this.confirmable;
 	}
 
 	/**
 	 * @param message
 	 * @return
 	 */
-	public CoapMessage handleResponse(CoapResponse message) {
-		Integer msgID = message.getMessageID();
-		SynchronousQueue<CoapResponse> queue = this.runningRequests.get(msgID);
+	public ByteBuffer handleResponse(CoapPacket message) {
+		// Claim the exchange, a second response for it is unmatched
+		CoapExchange exchange = this.match(message);
 
-		// If found, try to put the payload in the queue for who is waiting
-		boolean success = (queue != null) && queue.offer(message);
+		boolean success = (exchange != null && this.claim(exchange));
 
+		ByteBuffer reply;
 		if (success & message.getPacketType() == CoapPacketType.CON) {
-			return CoapProxyConstants.createAck(message); // This should be it
-															// right?
-			// return new CoapEmptyMessage(CoapPacketType.ACK, msgID);
+			// Always acknowledged, or the server keeps retransmitting it
+			reply = CoapPacket.encodeEmpty(CoapPacketType.ACK,
+					message.getMessageID());
 		} else if (!success) {
+			this.metrics.unmatched();
 			logger.warn(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_WARN, "Comm",
 					"Cannot handle CoapResponse: No matching request found"));
 
-			return CoapProxyConstants.createError(message,
+			reply = CoapProxyConstants.createError(message,
 					CoapResponseCode.Not_Found_404);
 		} else
-			return null;
+			reply = null;
+
+		// If found, hand the response to whoever is waiting
+		if (success) {
+			exchange.cancelTimeout();
+			this.metrics.record(Stage.EXCHANGE, exchange.getSent());
+
+			// Take all we need from the packet first, sending the next request
+			// or a listener of the future may reuse it
+			// A stale prefix is sent again with the urn, like a next block
+			CoapExchange next = retryStale(exchange, message);
+			ServiceException error = (next == null ? toException(message)
+					: null);
+			ByteBuffer payload = null;
+
+			if (next == null && error == null) {
+				BlockTransfer transfer = exchange.getTransfer();
+
+				// The server started sending the response in blocks
+				if (transfer == null
+						&& BlockOption.hasMore(message.getBlock2()))
+					transfer = new BlockTransfer(exchange);
+
+				// A service without result answers a CON request with 2.04
+				if (transfer == null
+						&& message.getCode() == CoapResponseCode.Changed_204
+								.getValue()
+						&& !message.getPayload().hasRemaining())
+					payload = null;
+				else if (transfer == null)
+					payload = ByteBuffer.wrap(message.copyPayload());
+				else if (transfer.next(message))
+					next = transfer.exchange(nextMessageID());
+				else
+					payload = transfer.getResponse();
+			}
+
+			long maxAge = message.getMaxAge();
+
+			// The next block waits its turn like any other request
+			if (next != null)
+				this.requeue(next);
+
+			release();
+
+			if (next != null)
+				return reply;
+
+			if (error == null)
+				exchange.getFuture().complete(payload, maxAge);
+			else
+				exchange.getFuture().fail(error);
+		}
+
+		return reply;
 	}
 
 	/**
 	 * Dispatch a COAP request message. If a response is returned to this
-	 * particular request within the default timeout periods (
-	 * {@value #DEFAULT_REQUEST_TIMEOUT} milliseconds), the function will return
+	 * particular request within the request timeout, the function will return
 	 * the payload of the response message. If there is no response, or it is
-	 * too late, the function will return null.
+	 * too late, the function will return null. The request timeout is
+	 * {@value #DEFAULT_REQUEST_TIMEOUT} milliseconds for a NON request, and
+	 * MAX_TRANSMIT_WAIT for a CON request, which is about 93 seconds with the
+	 * default ACK timeout.
 	 * 
 	 * @param requestCode
 	 *            The request code of the COAP request
@@ -111,76 +440,572 @@ public class CoapRequestDispatcher implements MessageDispatcher {
 	 *            The query to send
 	 * @return
 	 */
-	public byte[] dispatchRequest(CoapRequestCode requestCode, byte[] payload)
-			throws ServiceException {
+	public ByteBuffer dispatchRequest(CoapRequestCode requestCode,
+			byte[] payload) throws ServiceException {
+		return await(this.dispatchRequestAsync(requestCode, payload));
+	}
+
+	/**
+	 * Wait for the future of a request
+	 * 
+	 * @param future
+	 * @return the response, or null if there was none in time
+	 * @throws ServiceException
+	 *             if the request failed
+	 */
+	ByteBuffer await(ResponseFuture future) throws ServiceException {
 		try {
-			CoapMessage req = this.sendRequest(requestCode, payload);
+			// Once sent the timer completes the future
+			return future.get();
+		} catch (ExecutionException e) {
+			throw (ServiceException) e.getCause();
+		} catch (InterruptedException e) {
+			logger.fatal(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"RequestDispatcher interrupted.", e));
+
+			throw new ServiceException(e);
+		}
+	}
+
+	/**
+	 * Dispatch a COAP request message without waiting for the response. The
+	 * returned future is completed by the thread that receives the response,
+	 * or with null if there is no response within the request timeout after
+	 * sending, see {@link #dispatchRequest(CoapRequestCode, byte[])}. When the
+	 * window is full the request is queued and sent later, when the queue is
+	 * full as well the future fails.
+	 * 
+	 * @param requestCode
+	 *            The request code of the COAP request
+	 * @param payload
+	 *            The query to send
+	 * @return
+	 */
+	public ResponseFuture dispatchRequestAsync(CoapRequestCode requestCode,
+			byte[] payload) {
+		return dispatchRequestAsync(requestCode, payload, new CoapResponseFuture());
+	}
 
-			SynchronousQueue<CoapResponse> responseQueue = new SynchronousQueue<CoapResponse>();
-			this.runningRequests.put(req.getMessageID(), responseQueue);
+	/**
+	 * Dispatch a COAP request message, and complete the given future with the
+	 * response
+	 * 
+	 * @param requestCode
+	 * @param payload
+	 * @param future
+	 *            a new future
+	 * @return the future
+	 */
+	ResponseFuture dispatchRequestAsync(CoapRequestCode requestCode,
+			byte[] payload, CoapResponseFuture future) {
+		long token = this.tokens.incrementAndGet();
 
-			// And then we should wait...
-			CoapResponse response = responseQueue.poll(DEFAULT_REQUEST_TIMEOUT,
-					TimeUnit.MILLISECONDS);
+		CoapExchange exchange;
+		if (this.blockSize > 0)
+			exchange = new BlockTransfer(requestCode, payload, token,
+					tokenLength(token), this.blockSize, future)
+					.exchange(nextMessageID());
+		else
+			exchange = new CoapExchange(nextMessageID(), requestCode, payload,
+					token, tokenLength(token), CoapPacket.NONE, future);
 
-			// Always remove?
-			this.runningRequests.remove(req.getMessageID());
+		this.enqueue(exchange);
 
-			if (response == null)
-				return null;
-			else
-				switch (response.getResponseCode()) {
-				case Created_201:
-				case Deleted_202:
-				case Valid_203:
-				case Changed_204:
-				case Content_205:
-					return response.getPayload();
-				default:
-					logger.error(new LogEntry(this.getClass().getName(),
-							LogConstants.LOG_LEVEL_ERROR, "Comm",
-							"Error in using coapService. ("
-									+ response.getResponseCode() + ")"));
+		return future;
+	}
+
+	/**
+	 * Observe the response to a GET request. The listener gets the first
+	 * response and every notification after that, or null if the registration
+	 * is not answered in time.
+	 * 
+	 * @param payload
+	 *            The query to send
+	 * @param listener
+	 * @return the observation, to cancel it with
+	 */
+	public Observation observe(byte[] payload, ResponseListener listener) {
+		long token = this.tokens.incrementAndGet();
+
+		final CoapObservation observation = new CoapObservation(this, token,
+				tokenLength(token), payload, listener);
+		this.observations.put(token, observation);
 
-					throw new ServiceException("Error in using coapService. ("
-							+ response.getResponseCode() + ")");
+		// The exchange only carries the registration, notifications and the
+		// response itself are passed on by handleNotification
+		CoapExchange exchange = new CoapExchange(nextMessageID(),
+				CoapRequestCode.GET, payload, token, observation.getTokenLength(),
+				0);
+		exchange.getFuture().addListener(new ResponseListener() {
+			@Override
+			public void completed(ByteBuffer response) {
+				if (response == null)
+					endObservation(observation, null);
+			}
+
+			@Override
+			public void failed(ServiceException e) {
+				endObservation(observation, e);
+			}
+		});
+
+		this.enqueue(exchange);
+
+		return observation;
+	}
+
+	/**
+	 * Stop an observation and deregister it with the server, with a GET that
+	 * has Observe 1 and the same token
+	 * 
+	 * @param observation
+	 */
+	void cancelObservation(CoapObservation observation) {
+		if (!this.observations.remove(observation.getToken(), observation)
+				|| !observation.end())
+			return;
+
+		this.requeue(new CoapExchange(nextMessageID(), CoapRequestCode.GET,
+				observation.getPayload(), observation.getToken(), observation
+						.getTokenLength(), 1));
+		this.sendWaiting();
+	}
+
+	/**
+	 * End an observation from this side, and tell the listener once
+	 * 
+	 * @param observation
+	 * @param e
+	 *            the failure, or null if the server did not answer
+	 */
+	private void endObservation(CoapObservation observation,
+			ServiceException e) {
+		if (!this.observations.remove(observation.getToken(), observation)
+				|| !observation.end())
+			return;
+
+		if (e == null)
+			observation.getListener().completed(null);
+		else
+			observation.getListener().failed(e);
+	}
+
+	/**
+	 * Pass a notification on to the listener of the observation. An error, or
+	 * a response without the Observe option ends the observation.
+	 * 
+	 * @param observation
+	 * @param message
+	 */
+	private void handleNotification(CoapObservation observation,
+			CoapPacket message) {
+		ServiceException error = toException(message);
+		if (error != null) {
+			this.endObservation(observation, error);
+			return;
+		}
+
+		ByteBuffer payload = ByteBuffer.wrap(message.copyPayload());
+
+		if (message.getObserve() == CoapPacket.NONE) {
+			// The server does not keep us informed (anymore)
+			if (this.observations.remove(observation.getToken(), observation)
+					&& observation.end())
+				observation.getListener().completed(payload);
+		} else if (observation.isFresh(message.getObserve())) {
+			observation.getListener().completed(payload);
+		}
+	}
+
+	/**
+	 * The number of bytes the token takes
+	 * 
+	 * @param token
+	 * @return
+	 */
+	private static int tokenLength(long token) {
+		int length = 1;
+		while (length < 8 && (token >>> (8 * length)) != 0)
+			length++;
+
+		return length;
+	}
+
+	/**
+	 * Queue a new request and send it when there is room, or fail it if the
+	 * queue is full
+	 * 
+	 * @param exchange
+	 */
+	private void enqueue(CoapExchange exchange) {
+		if (this.waiting.incrementAndGet() > this.queueSize) {
+			this.waiting.decrementAndGet();
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm",
+					"Too many waiting CoapRequests, request refused"));
+
+			exchange.getFuture().fail(
+					new ServiceException("Too many waiting CoapRequests"));
+			return;
+		}
+
+		this.waitingRequests.offer(exchange);
+		this.sendWaiting();
+	}
+
+	/**
+	 * Queue the continuation of an exchange, which is never refused
+	 * 
+	 * @param exchange
+	 */
+	private void requeue(CoapExchange exchange) {
+		this.waiting.incrementAndGet();
+		this.waitingRequests.offer(exchange);
+	}
+
+	/**
+	 * Take the next waiting request
+	 * 
+	 * @return the request, or null if none is waiting
+	 */
+	private CoapExchange poll() {
+		CoapExchange exchange = this.waitingRequests.poll();
+		if (exchange != null)
+			this.waiting.decrementAndGet();
+
+		return exchange;
+	}
+
+	/**
+	 * Send waiting requests for as long as there is room in the window. Any
+	 * thread that adds a request or frees up room calls this, so no request is
+	 * left waiting while the window has room.
+	 * 
+	 * One thread drains at a time. A call that comes in meanwhile, from another
+	 * thread or from a synchronous connector that answers within transmit,
+	 * only makes the draining thread look again. So the stack does not grow
+	 * with the number of waiting requests.
+	 */
+	private void sendWaiting() {
+		if (this.drains.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			this.drain();
+			missed = this.drains.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void drain() {
+		if (this.closed) {
+			this.failWaiting();
+			return;
+		}
+
+		while (!this.waitingRequests.isEmpty()) {
+			int current = this.inFlight.get();
+			if (current >= this.window)
+				return;
+
+			if (!this.inFlight.compareAndSet(current, current + 1))
+				continue;
+
+			CoapExchange exchange = this.poll();
+			if (exchange == null || exchange.getFuture().isDone()) {
+				// Someone else took it, or it was cancelled while waiting
+				this.inFlight.decrementAndGet();
+				continue;
+			}
+
+			this.transmit(exchange);
+		}
+	}
+
+	/**
+	 * Fail the waiting requests of a closed dispatcher
+	 */
+	private void failWaiting() {
+		CoapExchange exchange;
+		while ((exchange = this.poll()) != null)
+			exchange.getFuture().fail(
+					new ServiceException("CoapRequestDispatcher is closed"));
+	}
+
+	/**
+	 * Free up a place in the window, and use it for the next waiting request
+	 */
+	private void release() {
+		this.inFlight.decrementAndGet();
+		this.sendWaiting();
+	}
+
+	/**
+	 * Send a request that has a place in the window
+	 * 
+	 * @param exchange
+	 */
+	private void transmit(final CoapExchange exchange) {
+		// Register before writing, the response may beat us back otherwise
+		CoapExchange previous = this.runningRequests.put(exchange.getToken(),
+				exchange);
+		this.sentMessages.put(exchange.getMessageID(), exchange);
+
+		// The deregistration of an observation replaces its registration
+		if (previous != null) {
+			this.sentMessages.remove(previous.getMessageID(), previous);
+			previous.cancelTimeout();
+			release();
+			previous.getFuture().complete(null);
+		}
+
+		exchange.setTimeout(this.timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// Only times out if no response claimed it first
+				if (claim(exchange)) {
+					metrics.timedOut();
+					release();
+					exchange.getFuture().complete(null);
 				}
+			}
+		}, this.requestTimeout, TimeUnit.MILLISECONDS));
 
-		} catch (InterruptedException e) {
-			logger.fatal(new LogEntry(this.getClass().getName(),
+		exchange.setSent(System.nanoTime());
+
+		try {
+			this.sendRequest(exchange);
+
+			// Between ACK_TIMEOUT and ACK_TIMEOUT * ACK_RANDOM_FACTOR
+			if (this.confirmable)
+				this.scheduleRetransmission(exchange, this.ackTimeout
+						+ ThreadLocalRandom.current().nextLong(
+								(long) (this.ackTimeout * (ACK_RANDOM_FACTOR - 1)) + 1));
+		} catch (RuntimeException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_ERROR, "Comm",
-					"RequestDispatcher interrupted.", e));
+					"Unable to send CoapRequest", e));
 
-			throw new ServiceException(e);
+			if (this.claim(exchange)) {
+				exchange.cancelTimeout();
+				release();
+				exchange.getFuture().fail(new ServiceException(e));
+			}
 		}
 	}
 
+	/**
+	 * Retransmit a CON request if it is not acknowledged or answered within the
+	 * timeout, and double the timeout for the next time.
+	 * 
+	 * @param exchange
+	 * @param timeout
+	 *            in milliseconds
+	 */
+	private void scheduleRetransmission(final CoapExchange exchange,
+			final long timeout) {
+		exchange.setRetransmission(this.timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (exchange.isAcknowledged()
+						|| runningRequests.get(exchange.getToken()) != exchange)
+					return;
+
+				// After the last one, wait for the timeout of the exchange
+				if (exchange.retransmit() >= MAX_RETRANSMIT)
+					return;
+
+				logger.debug(new LogEntry(CoapRequestDispatcher.this
+						.getClass().getName(),
+						LogConstants.LOG_LEVEL_DEBUG, "Comm",
+						"Retransmitting CoapRequest " + exchange.getMessageID()));
+
+				try {
+					write(exchange.getDatagram());
+				} catch (RuntimeException e) {
+					logger.error(new LogEntry(CoapRequestDispatcher.this
+						.getClass().getName(),
+							LogConstants.LOG_LEVEL_ERROR, "Comm",
+							"Unable to send CoapRequest", e));
+				}
+
+				scheduleRetransmission(exchange, 2 * timeout);
+			}
+		}, timeout, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * An empty ACK stops the retransmissions, the response follows separately.
+	 * An RST means the other side could not handle the request at all.
+	 * 
+	 * @param message
+	 */
+	private void handleEmpty(CoapPacket message) {
+		Integer msgID = message.getMessageID();
+
+		if (message.getPacketType() == CoapPacketType.ACK) {
+			CoapExchange exchange = this.sentMessages.get(msgID);
+			if (exchange != null)
+				exchange.acknowledge();
+		} else if (message.getPacketType() == CoapPacketType.RST) {
+			CoapExchange exchange = this.sentMessages.get(msgID);
+			if (exchange != null && this.claim(exchange)) {
+				logger.warn(new LogEntry(this.getClass().getName(),
+						LogConstants.LOG_LEVEL_WARN, "Comm",
+						"CoapRequest " + msgID + " was reset"));
+
+				exchange.cancelTimeout();
+				release();
+				exchange.getFuture().fail(
+						new ServiceException("CoapRequest was reset"));
+			}
+		}
+	}
+
+	/**
+	 * The server restarted since the prefix of the request was negotiated, so
+	 * it did not call any service. Repeat the request with the urn instead.
+	 * 
+	 * @param exchange
+	 * @param response
+	 * @return the repeated request, or null if the response is another one
+	 */
+	private CoapExchange retryStale(CoapExchange exchange, CoapPacket response) {
+		if (response.getCode() != CoapResponseCode.Precondition_Failed_412
+				.getValue()
+				|| exchange.getTransfer() != null
+				|| exchange.getObserve() != CoapPacket.NONE)
+			return null;
+
+		byte[] payload = this.serviceIDs.restore(exchange.getPayload());
+		if (payload == null)
+			return null;
+
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "Comm",
+				"Stale service prefix, repeating the request with the urn"));
+
+		return new CoapExchange(nextMessageID(), exchange.getRequestCode(),
+				payload, exchange.getToken(), exchange.getTokenLength(),
+				CoapPacket.NONE, exchange.getFuture());
+	}
+
+	/**
+	 * Translate an error response into the exception for the caller
+	 * 
+	 * @param response
+	 * @return the exception, or null if the response is a success
+	 */
+	private ServiceException toException(CoapPacket response) {
+		// All 2.xx codes are a success
+		if ((response.getCode() >>> 5) == 2)
+			return null;
+
+		CoapResponseCode code = CoapResponseCode.parseResponseCode(response
+				.getCode());
+
+		logger.error(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_ERROR, "Comm",
+				"Error in using coapService. (" + code + ")"));
+
+		return new ServiceException("Error in using coapService. (" + code
+				+ ")");
+	}
+
+	/**
+	 * Find the running exchange a response belongs to
+	 * 
+	 * @param message
+	 * @return the exchange, or null if there is none
+	 */
+	private CoapExchange match(CoapPacket message) {
+		// Only a response on the ACK can be matched without token
+		if (message.getTokenLength() == 0)
+			return this.sentMessages.get(message.getMessageID());
+
+		CoapExchange exchange = this.runningRequests.get(message.getToken());
+		if (exchange == null
+				|| exchange.getTokenLength() != message.getTokenLength())
+			return null;
+
+		return exchange;
+	}
+
+	/**
+	 * Take a running exchange out of the tables, the one caller that succeeds
+	 * completes it.
+	 * 
+	 * @param exchange
+	 * @return false if someone else claimed it first
+	 */
+	private boolean claim(CoapExchange exchange) {
+		if (!this.runningRequests.remove(exchange.getToken(), exchange))
+			return false;
+
+		this.sentMessages.remove(exchange.getMessageID(), exchange);
+		return true;
+	}
+
+	/**
+	 * Allocate the next message ID of this dispatcher, wrapping at 0xFFFF
+	 * 
+	 * @return
+	 */
+	private int nextMessageID() {
+		int id;
+		do {
+			id = this.messageIDs.getAndIncrement() & 0xFFFF;
+
+			// Just so that I skip the evil number 10.
+		} while (id == 10);
+
+		return id;
+	}
+
 	/**
 	 * Send a COAP request message. No return message is handled by the
 	 * MessageServer, if a response comes back and specifically targets the
 	 * service, the message will be relayed. If no service is mentioned in the
 	 * response, the response to the request will end up as a 404.
 	 * 
-	 * @param requestCode
-	 * @param payload
-	 * @return
+	 * @param exchange
 	 */
-	private CoapMessage sendRequest(CoapRequestCode requestCode, byte[] payload) {
-		CoapMessage req = new BasicCoapRequest(CoapPacketType.NON, requestCode,
-				maxMessageID++);
+	private void sendRequest(CoapExchange exchange) {
+		CoapPacket req = this.sent.get().reset(
+				this.confirmable ? CoapPacketType.CON : CoapPacketType.NON,
+				exchange.getRequestCode().getValue(), exchange.getMessageID());
 
-		// Just so that I skip the evil number 10.
-		if (maxMessageID == 10)
-			maxMessageID++;
+		req.setToken(exchange.getToken(), exchange.getTokenLength());
+		if (exchange.getObserve() != CoapPacket.NONE)
+			req.setObserve(exchange.getObserve());
+		req.setBlock1(exchange.getBlock1());
+		req.setBlock2(exchange.getBlock2());
 
-		req.setPayload(payload);
+		ByteBuffer msg = req.encode(ByteBuffer.wrap(exchange.getPayload()));
 
-		MessageDispatcherRegistry server = connector.write(req.serialize());
+		// Kept for retransmissions
+		if (this.confirmable)
+			exchange.setDatagram(msg.array());
 
-		if (!server.containsDispatcher(this))
-			server.addDispatcher(this);
+		this.write(msg.array());
+	}
 
-		return req;
+	/**
+	 * Write a datagram to the connector, and make sure we hear the answer
+	 * 
+	 * @param datagram
+	 */
+	private void write(byte[] datagram) {
+		MessageDispatcherRegistry server = connector.write(datagram);
+		this.registry = server;
+
+		// Several callers may get here at once on the first write
+		if (!server.containsDispatcher(this))
+			synchronized (this) {
+				if (!server.containsDispatcher(this))
+					server.addDispatcher(this);
+			}
 	}
 
 	/*
@@ -192,35 +1017,62 @@ public class CoapRequestDispatcher implements MessageDispatcher {
 	 */
 	@Override
 	public ByteBuffer dispatchMessage(ByteBuffer buffer) {
-		byte[] msg = new byte[buffer.remaining()];
-		buffer.get(msg);
+		long start = System.nanoTime();
+		CoapPacket message = this.received.get();
+		this.metrics.received();
 
-		// No use catching parsing exceptions, because then we cannot respond
-		try {
-			CoapMessage message = AbstractCoapMessage.parseMessage(msg,
-					msg.length);
+		// No use reporting parsing errors, because then we cannot respond
+		if (!message.decodeOrParse(buffer)) {
+			this.metrics.parseFailed();
+			logger.trace(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_TRACE, "Comm",
+					"Received bytes cannot be cast as COAP message"));
 
-			if (message instanceof CoapResponse) {
-				logger.trace(new LogEntry(this.getClass().getName(),
-						LogConstants.LOG_LEVEL_TRACE, "Comm",
-						"Received COAP Response: " + message + " -- ("
-								+ CommUtils.asHex(message.getPayload()) + ")"));
+			return null;
+		}
 
-				CoapMessage response = this
-						.handleResponse((CoapResponse) message);
+		this.metrics.record(Stage.PARSE, start);
 
-				// Return a response if the service gives one
-				return (response == null ? null : ByteBuffer.wrap(response
-						.serialize()));
-			}
+		if (message.isEmpty()) {
+			this.handleEmpty(message);
+			return null;
+		}
 
-		} catch (Exception e) {
+		if (!message.isResponse())
+			return null;
+
+		if (logger.isTraceEnabled())
 			logger.trace(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_TRACE, "Comm",
-					"Received bytes cannot be cast as COAP message"));
+					"Received COAP Response: " + message + " -- ("
+							+ CommUtils.asHex(message.copyPayload()) + ")"));
+
+		if (message.getTokenLength() > 0) {
+			CoapObservation observation = this.observations.get(message
+					.getToken());
+
+			if (observation != null
+					&& observation.getTokenLength() == message.getTokenLength()) {
+				boolean registration = (this.match(message) != null);
+
+				this.handleNotification(observation, message);
+
+				// A notification does not belong to a running exchange
+				if (!registration)
+					return message.getPacketType() == CoapPacketType.CON ? CoapPacket
+							.encodeEmpty(CoapPacketType.ACK,
+									message.getMessageID()) : null;
+			} else if (message.getObserve() != CoapPacket.NONE
+					&& this.match(message) == null) {
+				// Tell the server to stop notifying an observation we forgot
+				this.metrics.unmatched();
+				return CoapPacket.encodeEmpty(CoapPacketType.RST,
+						message.getMessageID());
+			}
 		}
 
-		return null;
+		// Return a response if the service gives one
+		return this.handleResponse(message);
 	}
 
 }
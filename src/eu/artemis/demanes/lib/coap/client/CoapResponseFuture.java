@@ -0,0 +1,241 @@
+/**
+ * File CoapResponseFuture.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * Internal class CoapResponseFuture
+ * 
+ * The ResponseFuture of the client, completed by the dispatcher that receives
+ * the response. A future may have one {@link Hook}, which sees the response
+ * before the future is completed, so what it does is done before anyone else
+ * sees it.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class CoapResponseFuture implements ResponseFuture {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private List<ResponseListener> listeners = new ArrayList<ResponseListener>(
+			1);
+
+	private boolean completed = false;
+
+	private boolean cancelled = false;
+
+	private ByteBuffer response;
+
+	private ServiceException failure;
+
+	private long maxAge = CoapPacket.NONE;
+
+	private final Hook hook;
+
+	CoapResponseFuture() {
+		this(null);
+	}
+
+	/**
+	 * @param hook
+	 *            called with the response before completion, or null
+	 */
+	CoapResponseFuture(Hook hook) {
+		this.hook = hook;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addListener(ResponseListener listener) {
+		synchronized (this) {
+			if (!this.completed) {
+				this.listeners.add(listener);
+				return;
+			}
+		}
+
+		fire(listener);
+	}
+
+	/**
+	 * Complete the request with a response, which may be null if it timed out
+	 * 
+	 * @param response
+	 * @return true if this call completed the future
+	 */
+	boolean complete(ByteBuffer response) {
+		return finish(response, CoapPacket.NONE, null, false);
+	}
+
+	/**
+	 * Complete the request with a response that came with a Max-Age
+	 * 
+	 * @param response
+	 * @param maxAge
+	 *            in seconds, or CoapPacket.NONE if the option was absent
+	 * @return true if this call completed the future
+	 */
+	boolean complete(ByteBuffer response, long maxAge) {
+		return finish(response, maxAge, null, false);
+	}
+
+	/**
+	 * @return the Max-Age of the response in seconds, or CoapPacket.NONE
+	 */
+	synchronized long getMaxAge() {
+		return this.maxAge;
+	}
+
+	/**
+	 * Complete the request with an error
+	 * 
+	 * @param e
+	 * @return true if this call completed the future
+	 */
+	boolean fail(ServiceException e) {
+		return finish(null, CoapPacket.NONE, e, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Cancelling only stops this future from being completed, a request that
+	 * is already sent is not recalled.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, CoapPacket.NONE, null, true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return this.completed;
+	}
+
+	@Override
+	public ByteBuffer get() throws InterruptedException, ExecutionException {
+		this.done.await();
+		return result();
+	}
+
+	@Override
+	public ByteBuffer get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!this.done.await(timeout, unit))
+			throw new TimeoutException();
+
+		return result();
+	}
+
+	private synchronized ByteBuffer result() throws ExecutionException {
+		if (this.cancelled)
+			throw new CancellationException();
+		if (this.failure != null)
+			throw new ExecutionException(this.failure);
+
+		return this.response;
+	}
+
+	private boolean finish(ByteBuffer response, long maxAge,
+			ServiceException failure, boolean cancel) {
+		List<ResponseListener> toNotify;
+
+		synchronized (this) {
+			if (this.completed)
+				return false;
+
+			// Under the lock, nobody sees the response before the hook is done
+			if (this.hook != null && !cancel && failure == null)
+				this.hook.completing(response, maxAge);
+
+			this.completed = true;
+			this.cancelled = cancel;
+			this.response = response;
+			this.maxAge = maxAge;
+			this.failure = failure;
+
+			toNotify = this.listeners;
+			this.listeners = null;
+		}
+
+		this.done.countDown();
+
+		if (!cancel)
+			for (ResponseListener l : toNotify)
+				fire(l);
+
+		return true;
+	}
+
+	private void fire(ResponseListener listener) {
+		ServiceException e;
+		ByteBuffer r;
+
+		synchronized (this) {
+			if (this.cancelled)
+				return;
+
+			e = this.failure;
+			r = this.response;
+		}
+
+		if (e != null)
+			listener.failed(e);
+		else
+			listener.completed(r);
+	}
+
+	/**
+	 * Sees the response of a successful request before the future completes
+	 */
+	interface Hook {
+
+		/**
+		 * @param response
+		 *            the response, or null if the request timed out
+		 * @param maxAge
+		 *            in seconds, or CoapPacket.NONE if the option was absent
+		 */
+		void completing(ByteBuffer response, long maxAge);
+	}
+}
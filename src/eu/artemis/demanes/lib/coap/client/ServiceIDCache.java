@@ -0,0 +1,172 @@
+/**
+ * File ServiceIDCache.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * Internal class ServiceIDCache
+ * 
+ * The prefixes of the negotiated format (see
+ * {@link CoapProxyConstants#NEGOTIATED_MARKER}) that the server at the other
+ * end of a link handed out. The first request for a service goes out with
+ * the urn, while the prefix is asked from the
+ * {@link CoapProxyConstants#NEGOTIATION_SERVICE} in the background. Services
+ * the server did not know are asked again after a while.
+ * 
+ * A prefix becomes stale when the server restarts. The server then answers
+ * 4.12, and the dispatcher repeats the request with the urn from
+ * {@link #restore(byte[])}, which also negotiates again.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+final class ServiceIDCache {
+
+	// Before asking again for a service that got no prefix
+	private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+
+	private static final byte[] NEGOTIATION_PREFIX = (CoapProxyConstants.NEGOTIATION_SERVICE
+			.toString() + (char) CoapProxyConstants.SERVICE_TERMINATOR)
+			.getBytes();
+
+	private final CoapRequestDispatcher dispatcher;
+
+	private final ConcurrentMap<ANES_URN, Entry> entries = new ConcurrentHashMap<ANES_URN, Entry>();
+
+	// Every prefix that was handed out, to find the urn of a stale one
+	private final ConcurrentMap<ByteBuffer, ANES_URN> services = new ConcurrentHashMap<ByteBuffer, ANES_URN>();
+
+	ServiceIDCache(CoapRequestDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * @param service
+	 * @return the prefix of requests to the service, or null to use the urn
+	 *         for now
+	 */
+	byte[] get(ANES_URN service) {
+		Entry entry = this.entries.get(service);
+		if (entry != null
+				&& (entry.prefix != null || System.nanoTime() - entry.asked < RETRY_INTERVAL))
+			return entry.prefix;
+
+		// Only one caller gets to ask
+		Entry asking = new Entry(null, System.nanoTime());
+		if (entry == null ? this.entries.putIfAbsent(service, asking) == null
+				: this.entries.replace(service, entry, asking))
+			negotiate(service, asking);
+
+		return null;
+	}
+
+	/**
+	 * Forget the stale prefix at the start of a request payload, and give the
+	 * payload with the urn of the service instead
+	 * 
+	 * @param payload
+	 * @return the payload with the urn, or null if the prefix is unknown
+	 */
+	byte[] restore(byte[] payload) {
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		if (payload.length < CoapProxyConstants.negotiatedLength(0)
+				|| in.get() != CoapProxyConstants.NEGOTIATED_MARKER)
+			return null;
+
+		in.position(in.position() + CoapProxyConstants.EPOCH_LENGTH);
+		if (CoapProxyConstants.getVarint(in) < 0)
+			return null;
+
+		byte[] prefix = Arrays.copyOf(payload, in.position());
+		ANES_URN service = this.services.get(ByteBuffer.wrap(prefix));
+		if (service == null)
+			return null;
+
+		Entry entry = this.entries.get(service);
+		if (entry != null && Arrays.equals(entry.prefix, prefix))
+			this.entries.remove(service, entry);
+
+		byte[] urn = (service.toString() + (char) CoapProxyConstants.SERVICE_TERMINATOR)
+				.getBytes();
+		ByteBuffer restored = ByteBuffer.allocate(urn.length + in.remaining());
+		restored.put(urn).put(in);
+		return restored.array();
+	}
+
+	private void negotiate(final ANES_URN service, final Entry asking) {
+		byte[] urn = service.toString().getBytes();
+		ByteBuffer payload = ByteBuffer.allocate(NEGOTIATION_PREFIX.length
+				+ urn.length);
+		payload.put(NEGOTIATION_PREFIX).put(urn);
+
+		ResponseFuture future = this.dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, payload.array());
+		future.addListener(new ResponseListener() {
+			@Override
+			public void completed(ByteBuffer response) {
+				// Nothing means the server does not know the service (yet)
+				if (response == null
+						|| response.remaining() < CoapProxyConstants
+								.negotiatedLength(0)
+						|| response.get(response.position()) != CoapProxyConstants.NEGOTIATED_MARKER)
+					return;
+
+				byte[] prefix = new byte[response.remaining()];
+				response.duplicate().get(prefix);
+
+				services.put(ByteBuffer.wrap(prefix), service);
+				entries.replace(service, asking, new Entry(prefix, asking.asked));
+			}
+
+			@Override
+			public void failed(ServiceException e) {
+				// Asked again after the interval, like an unknown service
+			}
+		});
+	}
+
+	private static final class Entry {
+
+		private final byte[] prefix;
+
+		// System.nanoTime() of the negotiation
+		private final long asked;
+
+		Entry(byte[] prefix, long asked) {
+			this.prefix = prefix;
+			this.asked = asked;
+		}
+	}
+}
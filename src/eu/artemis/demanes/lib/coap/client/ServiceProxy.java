@@ -25,7 +25,10 @@ import org.ws4d.coap.messages.CoapRequestCode;
 
 import eu.artemis.demanes.datatypes.ANES_URN;
 import eu.artemis.demanes.lib.coap.CoapProxyConstants;
-import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.coap.client.api.AsyncRESTService;
+import eu.artemis.demanes.lib.coap.client.api.Observation;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
 import eu.artemis.demanes.lib.services.ServiceException;
 
 /**
@@ -36,7 +39,7 @@ import eu.artemis.demanes.lib.services.ServiceException;
  * @since 28 okt. 2014
  *
  */
-final class ServiceProxy implements RESTService {
+final class ServiceProxy implements AsyncRESTService {
 
 	private final ANES_URN identifier;
 
@@ -44,7 +47,40 @@ final class ServiceProxy implements RESTService {
 	
 	private final byte [] servicePrefix;
 
+	private final ClientCache cache;
+
+	// The negotiated prefixes of the link, or null to always use the urn
+	private final ServiceIDCache serviceIDs;
+
 	public ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher) {
+		this(urn, dispatcher, (ClientCache) null);
+	}
+
+	public ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher, byte serviceID) {
+		this(urn, dispatcher, serviceID, null);
+	}
+
+	/**
+	 * @param urn
+	 * @param dispatcher
+	 * @param cache
+	 *            for the responses to GET requests, or null
+	 */
+	ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher,
+			ClientCache cache) {
+		this(urn, dispatcher, (ServiceIDCache) null, cache);
+	}
+
+	/**
+	 * @param urn
+	 * @param dispatcher
+	 * @param serviceIDs
+	 *            to use a negotiated prefix instead of the urn, or null
+	 * @param cache
+	 *            for the responses to GET requests, or null
+	 */
+	ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher,
+			ServiceIDCache serviceIDs, ClientCache cache) {
 		ByteBuffer prefixBuf = ByteBuffer.allocate(urn.toString().length() + 1);
 		prefixBuf.put(urn.toString().getBytes());
 		prefixBuf.put(CoapProxyConstants.SERVICE_TERMINATOR);
@@ -52,12 +88,24 @@ final class ServiceProxy implements RESTService {
 		this.identifier = urn;
 		this.dispatcher = dispatcher;
 		this.servicePrefix = prefixBuf.array();
+		this.cache = cache;
+		this.serviceIDs = serviceIDs;
 	}
-	
-	public ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher, byte serviceID) {
+
+	/**
+	 * @param urn
+	 * @param dispatcher
+	 * @param serviceID
+	 * @param cache
+	 *            for the responses to GET requests, or null
+	 */
+	ServiceProxy(ANES_URN urn, CoapRequestDispatcher dispatcher,
+			byte serviceID, ClientCache cache) {
 		this.identifier = urn;
 		this.dispatcher = dispatcher;
 		this.servicePrefix = new byte [] {serviceID};
+		this.cache = cache;
+		this.serviceIDs = null;
 	}
 
 	/**
@@ -92,6 +140,47 @@ final class ServiceProxy implements RESTService {
 		return request(CoapRequestCode.DELETE, input);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ResponseFuture getAsync(ByteBuffer input) {
+		return requestAsync(CoapRequestCode.GET, input);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ResponseFuture putAsync(ByteBuffer input) {
+		return requestAsync(CoapRequestCode.PUT, input);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ResponseFuture postAsync(ByteBuffer input) {
+		return requestAsync(CoapRequestCode.POST, input);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ResponseFuture deleteAsync(ByteBuffer input) {
+		return requestAsync(CoapRequestCode.DELETE, input);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Observation observe(ByteBuffer input, ResponseListener listener) {
+		dispatcher.getMetrics().request(identifier);
+		return dispatcher.observe(payload(input), listener);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -102,25 +191,91 @@ final class ServiceProxy implements RESTService {
 
 	private ByteBuffer request(CoapRequestCode rc, ByteBuffer args)
 			throws ServiceException {
+		// Use the dispatchRequest from the MessageClient
+		if (this.cache == null) {
+			dispatcher.getMetrics().request(identifier);
+			return dispatcher.dispatchRequest(rc, payload(args));
+		}
+
+		return dispatcher.await(requestAsync(rc, args));
+	}
+
+	private ResponseFuture requestAsync(CoapRequestCode rc, ByteBuffer args) {
+		final byte[] payload = payload(args);
+		dispatcher.getMetrics().request(identifier);
+
+		if (this.cache == null)
+			return dispatcher.dispatchRequestAsync(rc, payload);
+
+		if (rc == CoapRequestCode.GET) {
+			final ClientCache.Key key = new ClientCache.Key(this.dispatcher,
+					this.identifier, args);
+			ByteBuffer cached = this.cache.get(key);
+			if (cached != null) {
+				CoapResponseFuture future = new CoapResponseFuture();
+				future.complete(cached);
+				return future;
+			}
+
+			// Cached before the caller gets it, and so before it can change it
+			return dispatcher.dispatchRequestAsync(rc, payload,
+					new CoapResponseFuture(new CoapResponseFuture.Hook() {
+						@Override
+						public void completing(ByteBuffer response, long maxAge) {
+							if (response != null)
+								cache.put(key, response, maxAge);
+						}
+					}));
+		}
+
+		// Whatever we change, we should not read an old value of it again
+		this.cache.invalidate(this.identifier);
+
+		ResponseFuture future = dispatcher.dispatchRequestAsync(rc, payload);
+		future.addListener(new ResponseListener() {
+			@Override
+			public void completed(ByteBuffer response) {
+				cache.invalidate(identifier);
+			}
+
+			@Override
+			public void failed(ServiceException e) {
+				cache.invalidate(identifier);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return the dispatcher of the link to the service
+	 */
+	CoapRequestDispatcher getDispatcher() {
+		return this.dispatcher;
+	}
+
+	/**
+	 * @param args
+	 *            or null
+	 * @return the payload of a request to the service with the arguments
+	 */
+	byte[] payload(ByteBuffer args) {
+		byte[] prefix = (this.serviceIDs == null ? null : this.serviceIDs
+				.get(this.identifier));
+		if (prefix == null)
+			prefix = this.servicePrefix;
+
 		ByteBuffer payload;
 		if (args == null) {
 			// Only request the service without arguments
-			payload = ByteBuffer.wrap(this.servicePrefix);
+			payload = ByteBuffer.wrap(prefix);
 		} else {
 			// Create the message payload
-			payload = ByteBuffer.allocate(args.remaining()
-					+ this.servicePrefix.length);
+			payload = ByteBuffer.allocate(args.remaining() + prefix.length);
 
-			payload.put(this.servicePrefix);
+			payload.put(prefix);
 			payload.put(args.slice());
 		}
 
-		// Use the dispatchRequest from the MessageClient
-		byte[] response = dispatcher.dispatchRequest(rc, payload.array());
-
-		if (response == null)
-			return null;
-		else
-			return ByteBuffer.wrap(response);
+		return payload.array();
 	}
 }
@@ -0,0 +1,59 @@
+/**
+ * File AsyncRESTService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+import java.nio.ByteBuffer;
+
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * AsyncRESTService
+ * 
+ * A RESTService that can also be used without blocking the calling thread.
+ * Every asynchronous call returns immediately with a {@link ResponseFuture}
+ * that is completed by the thread that receives the response, so a single
+ * thread can keep many requests in flight.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface AsyncRESTService extends RESTService {
+
+	public ResponseFuture getAsync(ByteBuffer input);
+
+	public ResponseFuture putAsync(ByteBuffer input);
+
+	public ResponseFuture postAsync(ByteBuffer input);
+
+	public ResponseFuture deleteAsync(ByteBuffer input);
+
+	/**
+	 * Observe the response to a GET with the given input. The listener is
+	 * called with the first response and with every change after that.
+	 * 
+	 * @param input
+	 * @param listener
+	 * @return the observation, to cancel it with
+	 */
+	public Observation observe(ByteBuffer input, ResponseListener listener);
+
+}
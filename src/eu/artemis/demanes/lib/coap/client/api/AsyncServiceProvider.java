@@ -0,0 +1,58 @@
+/**
+ * File AsyncServiceProvider.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.services.ServiceProvider;
+
+/**
+ * AsyncServiceProvider
+ * 
+ * A ServiceProvider whose services can also be used without blocking the
+ * calling thread, or be invoked together in a batch. The COAP client is
+ * registered under this interface as well, so other bundles get to the
+ * asynchronous calls without depending on the client itself.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface AsyncServiceProvider extends ServiceProvider {
+
+	/**
+	 * Same as {@link #resolve(ANES_URN)}, but gives access to the asynchronous
+	 * calls of the service. Every service returned by resolve is also an
+	 * AsyncRESTService.
+	 * 
+	 * @param identifier
+	 * @return the service, or null if it cannot be reached
+	 */
+	public AsyncRESTService resolveAsync(ANES_URN identifier);
+
+	/**
+	 * Start a batch of invocations that is sent as a single request. The
+	 * server must support batches, and the services must be on one link.
+	 * 
+	 * @return the new batch
+	 */
+	public BatchRequest batch();
+
+}
@@ -0,0 +1,70 @@
+/**
+ * File BatchRequest.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+import java.nio.ByteBuffer;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+
+/**
+ * BatchRequest
+ * 
+ * Several service invocations that are sent in a single COAP request, made
+ * with {@link AsyncServiceProvider#batch()}. Every invocation gets its own
+ * future, which is completed when the response to the whole batch arrives:
+ * with the result of the invocation, with null if the batch timed out or the
+ * service gave no result, or with a ServiceException if the invocation
+ * failed.
+ * 
+ * A batch is built and sent by a single thread, and sent only once. All
+ * services of a batch must be reached over the same link, as the batch is
+ * sent to a single node.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface BatchRequest {
+
+	public ResponseFuture get(ANES_URN service, ByteBuffer input);
+
+	public ResponseFuture put(ANES_URN service, ByteBuffer input);
+
+	public ResponseFuture post(ANES_URN service, ByteBuffer input);
+
+	public ResponseFuture delete(ANES_URN service, ByteBuffer input);
+
+	/**
+	 * @return the number of invocations in the batch
+	 */
+	public int size();
+
+	/**
+	 * Send the batch
+	 * 
+	 * @return the future of the batch as a whole, which is completed after
+	 *         those of the invocations
+	 * @throws IllegalStateException
+	 *             if the batch is empty or was already sent
+	 */
+	public ResponseFuture send();
+
+}
@@ -0,0 +1,50 @@
+/**
+ * File Observation.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+/**
+ * Observation
+ * 
+ * A subscription to the state of a remote service (RFC 7641), made with
+ * {@link AsyncRESTService#observe}. The listener gets the first response and
+ * then every notification the server sends, until the observation is
+ * cancelled or ended by the server.
+ * 
+ * If the server does not support observing the service, the listener gets
+ * the single response and the observation ends right away.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface Observation {
+
+	/**
+	 * Stop observing, and tell the server so
+	 */
+	public void cancel();
+
+	/**
+	 * @return whether notifications may still arrive
+	 */
+	public boolean isActive();
+
+}
@@ -0,0 +1,47 @@
+/**
+ * File ResponseFuture.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * ResponseFuture
+ * 
+ * The pending result of an asynchronous request. It is completed exactly once:
+ * with the payload of the response, with null if the request timed out, or
+ * with a ServiceException if the remote service reported an error. Listeners
+ * added after completion are called immediately by the adding thread.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface ResponseFuture extends Future<ByteBuffer> {
+
+	/**
+	 * Register a listener that is notified when this request completes.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(ResponseListener listener);
+
+}
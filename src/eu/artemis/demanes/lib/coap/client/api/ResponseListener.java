@@ -0,0 +1,55 @@
+/**
+ * File ResponseListener.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.client.api;
+
+import java.nio.ByteBuffer;
+
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * ResponseListener
+ * 
+ * Callback for the outcome of an asynchronous request made through an
+ * {@link AsyncRESTService}. The callbacks are called from the thread that
+ * receives the response, so they should return quickly and never block.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public interface ResponseListener {
+
+	/**
+	 * Called when the request completed. Just as with the blocking calls of
+	 * the RESTService, the response is null if no response came back in time.
+	 * 
+	 * @param response
+	 */
+	public void completed(ByteBuffer response);
+
+	/**
+	 * Called when the remote service reported an error.
+	 * 
+	 * @param e
+	 */
+	public void failed(ServiceException e);
+
+}
@@ -0,0 +1,294 @@
+/**
+ * File CoapMetrics.java
+ *
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.logging.LogConstants;
+import eu.artemis.demanes.logging.LogEntry;
+
+/**
+ * CoapMetrics
+ *
+ * Counters and latencies of a COAP server, or of one link of a COAP client.
+ * Recording only takes atomic increments, it does not lock and does not
+ * allocate once a service has been counted, so the metrics are always on.
+ * They can be read through the {@link MetricsProvider} service of the
+ * component, or over JMX after {@link #register()}.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public final class CoapMetrics implements CoapMetricsMXBean {
+
+	/**
+	 * The stages of handling a message that are timed. The server parses,
+	 * routes the request to the service, calls the service and serializes the
+	 * response. The client parses and waits for the exchange to complete.
+	 */
+	public enum Stage {
+		PARSE, ROUTE, SERVICE, SERIALIZE, EXCHANGE
+	}
+
+	private static final String DOMAIN = "eu.artemis.demanes.lib.coap";
+
+	private final Logger logger = Logger.getLogger("dmns:log");
+
+	private final String type;
+
+	private final String name;
+
+	private final AtomicLong messages = new AtomicLong();
+
+	private final AtomicLong parseFailures = new AtomicLong();
+
+	private final AtomicLong unmatchedResponses = new AtomicLong();
+
+	private final AtomicLong timeouts = new AtomicLong();
+
+	private final AtomicInteger inFlight;
+
+	private final ConcurrentMap<ANES_URN, AtomicLong> requests = new ConcurrentHashMap<ANES_URN, AtomicLong>();
+
+	private final LatencyHistogram[] latencies;
+
+	private volatile ObjectName objectName;
+
+	/**
+	 * @param type
+	 *            the kind of component, for the JMX name
+	 * @param name
+	 *            the name of these metrics within the type
+	 */
+	public CoapMetrics(String type, String name) {
+		this(type, name, new AtomicInteger());
+	}
+
+	/**
+	 * @param type
+	 *            the kind of component, for the JMX name
+	 * @param name
+	 *            the name of these metrics within the type
+	 * @param inFlight
+	 *            the counter of the requests that are being handled, kept by
+	 *            the component
+	 */
+	public CoapMetrics(String type, String name, AtomicInteger inFlight) {
+		this.type = type;
+		this.name = name;
+		this.inFlight = inFlight;
+
+		this.latencies = new LatencyHistogram[Stage.values().length];
+		for (int i = 0; i < this.latencies.length; i++)
+			this.latencies[i] = new LatencyHistogram();
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void received() {
+		this.messages.incrementAndGet();
+	}
+
+	public void parseFailed() {
+		this.parseFailures.incrementAndGet();
+	}
+
+	public void unmatched() {
+		this.unmatchedResponses.incrementAndGet();
+	}
+
+	public void timedOut() {
+		this.timeouts.incrementAndGet();
+	}
+
+	/**
+	 * @return the counter of the requests that are being handled
+	 */
+	public AtomicInteger getInFlightCounter() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Count a request for a service
+	 *
+	 * @param service
+	 */
+	public void request(ANES_URN service) {
+		AtomicLong counter = this.requests.get(service);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = this.requests.putIfAbsent(service, created);
+			if (counter == null)
+				counter = created;
+		}
+
+		counter.incrementAndGet();
+	}
+
+	/**
+	 * Record the time a stage took
+	 *
+	 * @param stage
+	 * @param start
+	 *            the System.nanoTime() at the start of the stage
+	 * @return the System.nanoTime() at the end, to start the next stage with
+	 */
+	public long record(Stage stage, long start) {
+		long end = System.nanoTime();
+		this.latencies[stage.ordinal()].record(end - start);
+		return end;
+	}
+
+	/**
+	 * @param stage
+	 * @return the latencies of the stage in nanoseconds
+	 */
+	public LatencyHistogram getLatency(Stage stage) {
+		return this.latencies[stage.ordinal()];
+	}
+
+	/**
+	 * @param service
+	 * @return the number of requests for the service
+	 */
+	public long getRequests(ANES_URN service) {
+		AtomicLong counter = this.requests.get(service);
+		return counter == null ? 0 : counter.get();
+	}
+
+	@Override
+	public long getMessages() {
+		return this.messages.get();
+	}
+
+	@Override
+	public long getParseFailures() {
+		return this.parseFailures.get();
+	}
+
+	@Override
+	public long getUnmatchedResponses() {
+		return this.unmatchedResponses.get();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return this.timeouts.get();
+	}
+
+	@Override
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	@Override
+	public Map<String, Long> getRequests() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<ANES_URN, AtomicLong> e : this.requests.entrySet())
+			result.put(e.getKey().toString(), e.getValue().get());
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getMeanLatencies() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Stage stage : Stage.values())
+			if (getLatency(stage).getCount() > 0)
+				result.put(stage.name().toLowerCase(),
+						getLatency(stage).getMean() / 1000);
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getLatencyPercentile(double percentile) {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Stage stage : Stage.values())
+			if (getLatency(stage).getCount() > 0)
+				result.put(stage.name().toLowerCase(), getLatency(stage)
+						.getPercentile(percentile) / 1000);
+
+		return result;
+	}
+
+	@Override
+	public void reset() {
+		this.messages.set(0);
+		this.parseFailures.set(0);
+		this.unmatchedResponses.set(0);
+		this.timeouts.set(0);
+		this.requests.clear();
+
+		for (LatencyHistogram latency : this.latencies)
+			latency.reset();
+	}
+
+	/**
+	 * Make the metrics available over JMX, as
+	 * eu.artemis.demanes.lib.coap:type=[type],name="[name]"
+	 */
+	public void register() {
+		try {
+			ObjectName on = new ObjectName(DOMAIN + ":type=" + this.type
+					+ ",name=" + ObjectName.quote(this.name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			this.objectName = on;
+		} catch (JMException e) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "LifeCycle",
+					"Unable to register metrics " + this.name, e));
+		}
+	}
+
+	/**
+	 * Remove the metrics from JMX again
+	 */
+	public void unregister() {
+		ObjectName on = this.objectName;
+		if (on == null)
+			return;
+
+		this.objectName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+		} catch (JMException e) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "LifeCycle",
+					"Unable to unregister metrics " + this.name, e));
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * File CoapMetricsMXBean.java
+ *
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.metrics;
+
+import java.util.Map;
+
+/**
+ * CoapMetricsMXBean
+ *
+ * The view of {@link CoapMetrics} over JMX. Latencies are given per stage in
+ * microseconds.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface CoapMetricsMXBean {
+
+	/**
+	 * @return the number of received messages
+	 */
+	long getMessages();
+
+	/**
+	 * @return the number of received messages that could not be parsed
+	 */
+	long getParseFailures();
+
+	/**
+	 * @return the number of responses that belonged to no running request
+	 */
+	long getUnmatchedResponses();
+
+	/**
+	 * @return the number of requests that got no response in time
+	 */
+	long getTimeouts();
+
+	/**
+	 * @return the number of requests that are being handled
+	 */
+	int getInFlight();
+
+	/**
+	 * @return the number of requests for each service URN
+	 */
+	Map<String, Long> getRequests();
+
+	/**
+	 * @return the mean latency of each stage
+	 */
+	Map<String, Long> getMeanLatencies();
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the latency of each stage that the given percentage of the
+	 *         requests does not exceed
+	 */
+	Map<String, Long> getLatencyPercentile(double percentile);
+
+	/**
+	 * Set all counters and latencies back to zero
+	 */
+	void reset();
+}
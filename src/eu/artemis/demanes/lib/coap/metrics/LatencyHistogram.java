@@ -0,0 +1,111 @@
+/**
+ * File LatencyHistogram.java
+ *
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Counts durations in buckets of powers of two nanoseconds, so recording is a
+ * few atomic increments without locks or allocation. Percentiles are given as
+ * the upper bound of their bucket, which is at most twice the real value.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public final class LatencyHistogram {
+
+	// Bucket i counts the durations from 2^(i-1) up to 2^i nanoseconds
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong total = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            the duration, negative durations count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		this.count.incrementAndGet();
+		this.total.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the number of recorded durations
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return the mean duration in nanoseconds, or 0 if there are none
+	 */
+	public long getMean() {
+		long n = this.count.get();
+		return n == 0 ? 0 : this.total.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the duration in nanoseconds that the given percentage of the
+	 *         recorded durations does not exceed, or 0 if there are none
+	 */
+	public long getPercentile(double percentile) {
+		long n = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets.get(i);
+			n += counts[i];
+		}
+
+		long rank = (long) Math.ceil(n * Math.min(100, percentile) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen > 0 && seen >= rank)
+				return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Forget the recorded durations
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			this.buckets.set(i, 0);
+
+		this.count.set(0);
+		this.total.set(0);
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * File MetricsProvider.java
+ *
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.metrics;
+
+import java.util.List;
+
+/**
+ * MetricsProvider
+ *
+ * The service of a COAP client or server component that gives access to its
+ * metrics.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface MetricsProvider {
+
+	/**
+	 * @return the metrics of the component, the client has one for each link
+	 */
+	List<CoapMetrics> getMetrics();
+}
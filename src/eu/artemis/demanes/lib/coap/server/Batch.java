@@ -0,0 +1,181 @@
+/**
+ * File Batch.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+
+/**
+ * Internal class Batch
+ * 
+ * The invocations of a batch request (see
+ * {@link CoapProxyConstants#BATCH_MARKER}) and their results. The
+ * invocations may complete on different threads, whoever completes the last
+ * one sends the response.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class Batch {
+
+	private final int[] codes;
+
+	private final ByteBuffer[] invocations;
+
+	private final int[] status;
+
+	private final ByteBuffer[] results;
+
+	// One more than the invocations, released when all are started
+	private final AtomicInteger remaining;
+
+	private Batch(List<Integer> codes, List<ByteBuffer> invocations) {
+		int size = invocations.size();
+
+		this.codes = new int[size];
+		for (int i = 0; i < size; i++)
+			this.codes[i] = codes.get(i);
+
+		this.invocations = invocations.toArray(new ByteBuffer[size]);
+		this.status = new int[size];
+		this.results = new ByteBuffer[size];
+		this.remaining = new AtomicInteger(size + 1);
+	}
+
+	/**
+	 * @param payload
+	 *            between position and limit, starting with the batch marker
+	 * @return the batch, or null if the payload is not a valid batch
+	 */
+	static Batch parse(ByteBuffer payload) {
+		ByteBuffer in = payload.duplicate();
+		if (!in.hasRemaining() || in.get() != CoapProxyConstants.BATCH_MARKER)
+			return null;
+
+		List<Integer> codes = new ArrayList<Integer>();
+		List<ByteBuffer> invocations = new ArrayList<ByteBuffer>();
+
+		while (in.hasRemaining()) {
+			int code = in.get() & 0xFF;
+			int length = CoapProxyConstants.getVarint(in);
+			if (length < 0 || length > in.remaining())
+				return null;
+
+			ByteBuffer invocation = in.duplicate();
+			invocation.limit(in.position() + length);
+			in.position(in.position() + length);
+
+			codes.add(code);
+			invocations.add(invocation.slice());
+		}
+
+		return invocations.isEmpty() ? null : new Batch(codes, invocations);
+	}
+
+	int size() {
+		return this.invocations.length;
+	}
+
+	/**
+	 * @param index
+	 * @return the request code of the invocation
+	 */
+	int getCode(int index) {
+		return this.codes[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the payload of the invocation, like that of a single request
+	 */
+	ByteBuffer getInvocation(int index) {
+		return this.invocations[index].duplicate();
+	}
+
+	/**
+	 * Store the result of an invocation
+	 * 
+	 * @param index
+	 * @param code
+	 * @param result
+	 *            between position and limit, which is copied, or null
+	 * @return true if this was the last result
+	 */
+	boolean complete(int index, CoapResponseCode code, ByteBuffer result) {
+		ByteBuffer copy = null;
+		if (result != null) {
+			copy = ByteBuffer.allocate(result.remaining());
+			copy.put(result.duplicate()).flip();
+		}
+
+		synchronized (this) {
+			this.status[index] = code.getValue();
+			this.results[index] = copy;
+		}
+
+		return this.release();
+	}
+
+	/**
+	 * All invocations are started
+	 * 
+	 * @return true if they are all complete as well
+	 */
+	boolean release() {
+		return this.remaining.decrementAndGet() == 0;
+	}
+
+	/**
+	 * @return the payload of the response, once all results are in
+	 */
+	synchronized ByteBuffer encode() {
+		int length = 1;
+		for (int i = 0; i < this.results.length; i++) {
+			int size = (this.results[i] == null ? 0 : this.results[i]
+					.remaining());
+			length += 1 + CoapProxyConstants.varintLength(size) + size;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate(length);
+		out.put(CoapProxyConstants.BATCH_MARKER);
+
+		for (int i = 0; i < this.results.length; i++) {
+			out.put((byte) this.status[i]);
+
+			if (this.results[i] == null) {
+				CoapProxyConstants.putVarint(out, 0);
+			} else {
+				CoapProxyConstants.putVarint(out, this.results[i].remaining());
+				out.put(this.results[i].duplicate());
+			}
+		}
+
+		out.flip();
+		return out;
+	}
+}
@@ -0,0 +1,383 @@
+/**
+ * File BlockTransfers.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import eu.artemis.demanes.lib.coap.BlockOption;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+import eu.artemis.demanes.lib.coap.server.api.UploadStream;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * Internal class BlockTransfers
+ * 
+ * The block-wise transfers (RFC 7959) that are going on, identified by the
+ * token of the requests. An upload collects the blocks of a request argument,
+ * or passes them on to the UploadStream of a StreamingService. A download
+ * keeps a response that was too large for one message, so the later blocks
+ * can be sent without calling the service again.
+ * 
+ * Transfers are forgotten when the client has not continued them for the
+ * EXCHANGE_LIFETIME, and the oldest transfer makes room when the table is
+ * full. Buffered uploads are limited to a maximum size.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class BlockTransfers {
+
+	/* RFC 7252 section 4.8.2, with the default transmission parameters */
+	private static final long LIFETIME = 247;
+
+	private final int blockSize;
+
+	private final int maxBodySize;
+
+	private final int capacity;
+
+	private final TimingWheel timer;
+
+	private final LinkedHashMap<Key, Transfer> transfers = new LinkedHashMap<Key, Transfer>();
+
+	/**
+	 * @param blockSize
+	 *            the size of the blocks of large responses, or 0 to only send
+	 *            responses in blocks if the client asks for it
+	 * @param maxBodySize
+	 *            the maximum size of a buffered upload
+	 * @param capacity
+	 *            the maximum number of transfers at the same time
+	 * @param timer
+	 *            to expire the transfers with
+	 */
+	BlockTransfers(int blockSize, int maxBodySize, int capacity,
+			TimingWheel timer) {
+		this.blockSize = (blockSize > 0 ? BlockOption.MIN_SIZE << BlockOption
+				.toSZX(blockSize) : 0);
+		this.maxBodySize = maxBodySize;
+		this.capacity = capacity;
+		this.timer = timer;
+	}
+
+	/**
+	 * @param msg
+	 *            the request
+	 * @return the block size for the response, the smallest of ours and that
+	 *         of the Block2 option of the request, or 0 to send it whole
+	 */
+	int getBlockSize(CoapPacket msg) {
+		if (msg.getBlock2() == CoapPacket.NONE)
+			return this.blockSize;
+
+		int requested = BlockOption.getSize(msg.getBlock2());
+		return (this.blockSize == 0 || requested < this.blockSize ? requested
+				: this.blockSize);
+	}
+
+	/**
+	 * Start a new upload, any earlier transfer with the same token is
+	 * replaced.
+	 * 
+	 * @param service
+	 * @param msg
+	 *            the request with the first block
+	 * @param stream
+	 *            the stream of the service, or null to collect the argument
+	 * @return
+	 */
+	synchronized Upload startUpload(RESTService service, CoapPacket msg,
+			UploadStream stream) {
+		Upload upload = new Upload(new Key(msg), service, stream);
+		this.add(upload);
+		return upload;
+	}
+
+	/**
+	 * @param msg
+	 *            a request with a later block
+	 * @return the upload it continues, or null if there is none
+	 */
+	synchronized Upload getUpload(CoapPacket msg) {
+		Transfer transfer = this.transfers.get(new Key(msg));
+		return (transfer instanceof Upload ? (Upload) transfer : null);
+	}
+
+	/**
+	 * Keep a response for the requests of its later blocks. Without a token
+	 * these cannot be told apart, so the response is not kept.
+	 * 
+	 * @param msg
+	 * @param response
+	 *            between position and limit, which is copied
+	 */
+	synchronized void putDownload(CoapPacket msg, ByteBuffer response) {
+		if (msg.getTokenLength() == 0)
+			return;
+
+		ByteBuffer copy = ByteBuffer.allocate(response.remaining());
+		copy.put(response.duplicate()).flip();
+
+		this.add(new Download(new Key(msg), copy.asReadOnlyBuffer()));
+	}
+
+	/**
+	 * @param msg
+	 *            a request for a later block
+	 * @return the response it is part of, or null if it is not known (anymore)
+	 */
+	synchronized ByteBuffer getDownload(CoapPacket msg) {
+		Transfer transfer = this.transfers.get(new Key(msg));
+		return (transfer instanceof Download ? ((Download) transfer).response
+				.duplicate() : null);
+	}
+
+	/**
+	 * Forget a transfer that is finished
+	 * 
+	 * @param transfer
+	 */
+	synchronized void remove(Transfer transfer) {
+		if (this.transfers.get(transfer.key) == transfer) {
+			this.transfers.remove(transfer.key);
+			transfer.expiry.cancel();
+		}
+	}
+
+	/**
+	 * Give up a transfer that failed
+	 * 
+	 * @param transfer
+	 */
+	void abort(Transfer transfer) {
+		this.remove(transfer);
+		transfer.expire();
+	}
+
+	private void add(Transfer transfer) {
+		Transfer previous = this.transfers.remove(transfer.key);
+		if (previous != null)
+			previous.expire();
+
+		// Make room by forgetting the oldest
+		Iterator<Transfer> it = this.transfers.values().iterator();
+		while (this.transfers.size() >= this.capacity && it.hasNext()) {
+			it.next().expire();
+			it.remove();
+		}
+
+		this.transfers.put(transfer.key, transfer);
+		transfer.expiry = this.timer.schedule(transfer, LIFETIME,
+				TimeUnit.SECONDS);
+	}
+
+	private void expire(Transfer transfer) {
+		synchronized (this) {
+			if (this.transfers.get(transfer.key) != transfer)
+				return;
+
+			this.transfers.remove(transfer.key);
+		}
+
+		transfer.expire();
+	}
+
+	/**
+	 * A transfer that is going on
+	 */
+	abstract class Transfer implements Runnable {
+
+		private final Key key;
+
+		private TimingWheel.Timeout expiry;
+
+		Transfer(Key key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			BlockTransfers.this.expire(this);
+		}
+
+		/**
+		 * The transfer is forgotten before it was finished
+		 */
+		void expire() {
+			if (this.expiry != null)
+				this.expiry.cancel();
+		}
+	}
+
+	/**
+	 * The blocks of a request argument
+	 */
+	final class Upload extends Transfer {
+
+		private final RESTService service;
+
+		private final UploadStream stream;
+
+		private ByteBuffer argument;
+
+		private int next = 0;
+
+		private boolean complete = false;
+
+		private Upload(Key key, RESTService service, UploadStream stream) {
+			super(key);
+			this.service = service;
+			this.stream = stream;
+		}
+
+		RESTService getService() {
+			return service;
+		}
+
+		/**
+		 * @return the stream of the service, or null if the argument is
+		 *         collected
+		 */
+		UploadStream getStream() {
+			return stream;
+		}
+
+		/**
+		 * @return the collected argument
+		 */
+		synchronized ByteBuffer getArgument() {
+			ByteBuffer result = (this.argument == null ? ByteBuffer
+					.allocate(0) : this.argument.duplicate());
+			result.flip();
+			return result;
+		}
+
+		synchronized boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * Take the next block
+		 * 
+		 * @param msg
+		 *            the request with the block
+		 * @param part
+		 *            the part of the payload that belongs to the argument, the
+		 *            service identification is left out of the first block
+		 * @return false if the block is not the one that was expected
+		 * @throws ServiceException
+		 *             if the argument gets too large, or the stream fails
+		 */
+		synchronized boolean write(CoapPacket msg, ByteBuffer part)
+				throws ServiceException {
+			long block1 = msg.getBlock1();
+			if (this.complete || BlockOption.getNum(block1) != this.next)
+				return false;
+
+			if (part != null && part.hasRemaining()) {
+				if (this.stream != null)
+					this.stream.write(part);
+				else
+					this.append(part);
+			}
+
+			this.next++;
+			this.complete = !BlockOption.hasMore(block1);
+			return true;
+		}
+
+		private void append(ByteBuffer part) throws ServiceException {
+			int length = (this.argument == null ? 0 : this.argument.position())
+					+ part.remaining();
+
+			if (length > maxBodySize)
+				throw new ServiceException("Request entity too large ("
+						+ length + " bytes)");
+
+			if (this.argument == null || this.argument.remaining() < part.remaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.min(maxBodySize,
+						2 * length));
+				if (this.argument != null) {
+					this.argument.flip();
+					grown.put(this.argument);
+				}
+				this.argument = grown;
+			}
+
+			this.argument.put(part.duplicate());
+		}
+
+		@Override
+		void expire() {
+			super.expire();
+
+			if (this.stream != null && !this.isComplete())
+				this.stream.abort();
+		}
+	}
+
+	/**
+	 * A response that is sent in blocks
+	 */
+	private final class Download extends Transfer {
+
+		private final ByteBuffer response;
+
+		private Download(Key key, ByteBuffer response) {
+			super(key);
+			this.response = response;
+		}
+	}
+
+	private static final class Key {
+
+		private final long token;
+
+		private final int tokenLength;
+
+		Key(CoapPacket msg) {
+			this.token = msg.getToken();
+			this.tokenLength = msg.getTokenLength();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * this.tokenLength
+					+ (int) (this.token ^ (this.token >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return this.token == other.token
+					&& this.tokenLength == other.tokenLength;
+		}
+	}
+}
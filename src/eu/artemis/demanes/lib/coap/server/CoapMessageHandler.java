@@ -21,23 +21,31 @@ package eu.artemis.demanes.lib.coap.server;
 
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
-import org.ws4d.coap.interfaces.CoapMessage;
-import org.ws4d.coap.interfaces.CoapRequest;
-import org.ws4d.coap.messages.AbstractCoapMessage;
-import org.ws4d.coap.messages.BasicCoapResponse;
 import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
 
 import eu.artemis.demanes.datatypes.ANES_URN;
 import eu.artemis.demanes.lib.MessageDispatcher;
 import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.BlockOption;
+import eu.artemis.demanes.lib.coap.CoapPacket;
 import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics.Stage;
+import eu.artemis.demanes.lib.coap.server.api.ObservableService;
+import eu.artemis.demanes.lib.coap.server.api.StreamingService;
+import eu.artemis.demanes.lib.coap.server.api.UploadStream;
 import eu.artemis.demanes.lib.impl.communication.CommUtils;
 import eu.artemis.demanes.lib.services.RESTService;
 import eu.artemis.demanes.lib.services.ServiceException;
-import eu.artemis.demanes.lib.services.ServiceProvider;
 import eu.artemis.demanes.lib.services.URNTranslator;
 import eu.artemis.demanes.logging.LogConstants;
 import eu.artemis.demanes.logging.LogEntry;
@@ -58,19 +66,107 @@ public class CoapMessageHandler implements MessageDispatcher {
 
 	private final Logger logger = Logger.getLogger("dmns:log");
 
-	private final ServiceProvider serviceProvider;
+	private final CoapServiceBroker serviceProvider;
 
 	private final SocketConnector socketConnector;
 
 	private final URNTranslator translator;
 
+	private final ServiceExecutor executor;
+
+	private final ResponseCache cache;
+
+	private final DuplicateFilter duplicates;
+
+	private final TimingWheel timer;
+
+	private final long piggybackTimeout;
+
+	private final ObserverRegistry observers;
+
+	private final BlockTransfers blocks;
+
+	private final CoapMetrics metrics;
+
+	/* Message IDs of the messages the server starts itself */
+	private final AtomicInteger messageIDs = new AtomicInteger(
+			ThreadLocalRandom.current().nextInt(0x10000));
+
+	/* Returned by handleRequest when a worker sends the response later */
+	private static final ByteBuffer PENDING = ByteBuffer.allocate(0);
+
+	// Reusable packets, dispatchMessage may be called by several threads
+	private final ThreadLocal<CoapPacket> requests = new ThreadLocal<CoapPacket>() {
+		@Override
+		protected CoapPacket initialValue() {
+			return new CoapPacket();
+		}
+	};
+
+	private final ThreadLocal<CoapPacket> responses = new ThreadLocal<CoapPacket>() {
+		@Override
+		protected CoapPacket initialValue() {
+			return new CoapPacket();
+		}
+	};
+
 	// private ByteBuffer oldBuffer;
 
-	public CoapMessageHandler(ServiceProvider sp, SocketConnector sc,
+	public CoapMessageHandler(CoapServiceBroker sp, SocketConnector sc,
 			URNTranslator ut) {
+		this(sp, sc, ut, null, null, null, null, 0, null, new CoapMetrics(
+				"CoapMessageServer", "server"));
+	}
+
+	/**
+	 * Create a handler that passes the requests to the services through the
+	 * given executor, and writes the responses to the socket connector when
+	 * they are ready. Without executor (or connector) the services are called
+	 * directly and dispatchMessage returns their response. With a cache, GET
+	 * requests may be answered without calling the service at all. With a
+	 * duplicate filter, a request that is received again gets the response
+	 * of the first one.
+	 * 
+	 * A CON request that is passed to the executor is answered on the ACK if
+	 * the service responds within the piggyback timeout. Otherwise the ACK is
+	 * sent when the timeout expires, and the response follows separately.
+	 * 
+	 * With block transfers, arguments and responses that do not fit in one
+	 * message are sent in blocks (RFC 7959). Without, block-wise requests are
+	 * refused.
+	 * 
+	 * The handler counts the requests and times their stages in the metrics.
+	 * 
+	 * @param sp
+	 * @param sc
+	 * @param ut
+	 * @param executor
+	 * @param cache
+	 * @param duplicates
+	 * @param timer
+	 *            for the piggyback timeout, required with an executor
+	 * @param piggybackTimeout
+	 *            in milliseconds
+	 * @param blocks
+	 * @param metrics
+	 */
+	CoapMessageHandler(CoapServiceBroker sp, SocketConnector sc,
+			URNTranslator ut, ServiceExecutor executor, ResponseCache cache,
+			DuplicateFilter duplicates, TimingWheel timer,
+			long piggybackTimeout, BlockTransfers blocks, CoapMetrics metrics) {
 		this.serviceProvider = sp;
 		this.socketConnector = sc;
 		this.translator = ut;
+		this.executor = (sc == null ? null : executor);
+		this.cache = cache;
+		this.duplicates = duplicates;
+		this.timer = timer;
+		this.piggybackTimeout = piggybackTimeout;
+		this.blocks = blocks;
+		this.metrics = metrics;
+
+		// Notifications can only be pushed through the connector
+		this.observers = (sc == null ? null : new ObserverRegistry());
 		// oldBuffer = ByteBuffer.allocate(64);
 		// oldBuffer.flip();
 	}
@@ -84,60 +180,224 @@ public class CoapMessageHandler implements MessageDispatcher {
 	 */
 	@Override
 	public ByteBuffer dispatchMessage(ByteBuffer buffer) {
-		byte[] msg = new byte[buffer.remaining()];
-		buffer.get(msg);
+		long start = System.nanoTime();
+		CoapPacket message = this.requests.get();
+		this.metrics.received();
 
-		// No use catching parsing exceptions, because then we cannot respond
-		try {
-			CoapMessage message = AbstractCoapMessage.parseMessage(msg,
-					msg.length);
+		// No use reporting parsing errors, because then we cannot respond
+		if (!message.decodeOrParse(buffer)) {
+			this.metrics.parseFailed();
+			logger.trace(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_TRACE, "Comm",
+					"Received bytes cannot be cast as COAP message"));
 
-			if (message instanceof CoapRequest) {
-				logger.trace(new LogEntry(this.getClass().getName(),
-						LogConstants.LOG_LEVEL_TRACE, "Comm",
-						"Received COAP Request: " + message + " -- ("
-								+ CommUtils.asHex(message.getPayload()) + ")"));
+			return null;
+		}
 
-				CoapMessage response = handleRequest((CoapRequest) message);
+		this.metrics.record(Stage.PARSE, start);
 
-				// Return a response if the service gives one
-				return (response == null ? null : ByteBuffer.wrap(response
-						.serialize()));
-			}
-		} catch (Exception e) {
+		// A client that forgot an observation rejects its notifications
+		if (message.isEmpty()
+				&& message.getPacketType() == CoapPacketType.RST) {
+			if (this.observers != null
+					&& this.observers.reset(message.getMessageID()))
+				logger.debug(new LogEntry(this.getClass().getName(),
+						LogConstants.LOG_LEVEL_DEBUG, "Comm",
+						"Observer rejected notification, removed it"));
+
+			return null;
+		}
+
+		if (!message.isRequest())
+			return null;
+
+		if (logger.isTraceEnabled())
 			logger.trace(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_TRACE, "Comm",
-					"Received bytes cannot be cast as COAP message"));
+					"Received COAP Request: " + message + " -- ("
+							+ CommUtils.asHex(message.copyPayload()) + ")"));
+
+		if (this.duplicates != null) {
+			DuplicateFilter.Entry previous = this.duplicates.register(message);
+			if (previous != null)
+				return replay(message, previous);
 		}
 
-		return null;
+		// Until answered, which is later for the requests that are pending
+		boolean pending = false;
+		this.metrics.getInFlightCounter().incrementAndGet();
+
+		try {
+			// Return a response if the service gives one
+			ByteBuffer response = handleRequest(message);
+			if (response == PENDING) {
+				pending = true;
+				return null;
+			}
+
+			if (this.duplicates != null)
+				this.duplicates.complete(message, response);
+
+			return response;
+		} catch (RuntimeException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"Unable to handle COAP request", e));
+
+			if (this.duplicates != null)
+				this.duplicates.remove(message);
+
+			return null;
+		} finally {
+			if (!pending)
+				this.metrics.getInFlightCounter().decrementAndGet();
+		}
+	}
+
+	/**
+	 * Answer a request that was received before, without calling the service
+	 * 
+	 * @param msg
+	 * @param previous
+	 * @return
+	 */
+	private ByteBuffer replay(CoapPacket msg, DuplicateFilter.Entry previous) {
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "Comm",
+				"Received duplicate COAP request " + msg.getMessageID()));
+
+		if (previous.isDone())
+			return previous.getResponse();
+
+		// Still busy, tell the sender again that we got it
+		return emptyAck(msg);
+	}
+
+	/**
+	 * An empty ACK for a CON request. It is always sent, whether or not
+	 * CoapProxyConstants sends ACKs, or the client keeps retransmitting the
+	 * request and the service is called again.
+	 * 
+	 * @param msg
+	 * @return the ACK, or null if the request is not confirmable
+	 */
+	private static ByteBuffer emptyAck(CoapPacket msg) {
+		if (msg.getPacketType() != CoapPacketType.CON)
+			return null;
+
+		return CoapPacket.encodeEmpty(CoapPacketType.ACK, msg.getMessageID());
+	}
+
+	/**
+	 * An error response to a request. A CON request is always answered, the
+	 * client keeps retransmitting it otherwise and the service is called
+	 * again. For other requests it is up to CoapProxyConstants.
+	 * 
+	 * @param msg
+	 * @param packetType
+	 * @param responseCode
+	 * @return the encoded error, or null if there is nothing to send
+	 */
+	private ByteBuffer error(CoapPacket msg, CoapPacketType packetType,
+			CoapResponseCode responseCode) {
+		if (msg.getPacketType() != CoapPacketType.CON)
+			return CoapProxyConstants.createError(msg, packetType,
+					responseCode);
+
+		return separate(this.responses.get().reply(msg, packetType,
+				responseCode), msg).encode(null);
 	}
 
 	/**
 	 * Internal function used to make sure the input is a coapRequest, and the
-	 * output is a CoapMessage.
+	 * output is an encoded COAP message.
 	 * 
 	 * @param message
 	 * @return
 	 */
-	private CoapMessage handleRequest(CoapRequest msg) {
-		byte[] payload = msg.getPayload();
+	private ByteBuffer handleRequest(CoapPacket msg) {
+		long received = System.nanoTime();
 
-		ANES_URN serviceID = null;
+		// Later blocks of a transfer that is going on
+		if (this.blocks != null
+				&& BlockOption.getNum(msg.getBlock1()) > 0)
+			return continueUpload(msg);
 
-		// Get the service URN, and find the service that is registered to
-		try {
-			serviceID = getURNfromPayload(payload);
-		} catch (URISyntaxException e) {
-			logger.warn(new LogEntry(this.getClass().getName(),
-					LogConstants.LOG_LEVEL_WARN, "Comm",
-					"Invalid URN received in COAPRequest " + serviceID));
+		if (this.blocks != null && msg.getBlock1() == CoapPacket.NONE
+				&& BlockOption.getNum(msg.getBlock2()) > 0) {
+			ByteBuffer download = this.blocks.getDownload(msg);
+			if (download != null)
+				return encodeBlock(this.responses.get().reply(msg,
+						CoapProxyConstants.replyType(msg),
+						CoapResponseCode.Content_205), download,
+						BlockOption.getNum(msg.getBlock2()),
+						this.blocks.getBlockSize(msg));
 
-			return CoapProxyConstants.createError(msg,
-					CoapResponseCode.Bad_Request_400);
+			// Not kept, the request is repeated in full so just answer it
 		}
 
-		RESTService service = serviceProvider.resolve(serviceID);
+		ByteBuffer payload = msg.getPayload();
+		int start = payload.position();
+		int end = payload.limit();
+
+		// Several invocations in one request
+		if (start < end
+				&& payload.get(start) == CoapProxyConstants.BATCH_MARKER
+				&& !this.serviceProvider.isCompactID(payload.get(start)))
+			return handleBatch(msg, payload);
+
+		RESTService service;
+		ANES_URN serviceID = null;
+		int argumentStart;
+
+		if (start < end
+				&& this.serviceProvider.isCompactID(payload.get(start))) {
+			// Reduced format, the first byte identifies the service
+			service = this.serviceProvider.resolve(payload.get(start));
+			if (service == null)
+				serviceID = this.serviceProvider.getCompactURN(payload
+						.get(start));
+
+			argumentStart = start + 1;
+		} else if (start < end
+				&& payload.get(start) == CoapProxyConstants.NEGOTIATED_MARKER) {
+			// Negotiated format, the prefix holds the ID of the service
+			int id = this.serviceProvider.getNegotiatedID(payload, start, end);
+			if (id < 0)
+				return stalePrefix(msg);
+
+			service = this.serviceProvider.resolveNegotiated(id);
+			if (service == null)
+				serviceID = this.serviceProvider.getNegotiatedURN(id);
+
+			argumentStart = start + CoapProxyConstants.negotiatedLength(id);
+		} else {
+			int terminator = start;
+			while (terminator < end
+					&& payload.get(terminator) != CoapProxyConstants.SERVICE_TERMINATOR)
+				terminator++;
+
+			// Most requests can be routed straight from the bytes
+			service = this.serviceProvider.resolve(payload, start, terminator);
+
+			// Get the service URN, and find the service that is registered to
+			if (service == null) {
+				try {
+					serviceID = getURNfromPayload(payload);
+				} catch (URISyntaxException e) {
+					logger.warn(new LogEntry(this.getClass().getName(),
+							LogConstants.LOG_LEVEL_WARN, "Comm",
+							"Invalid URN received in COAPRequest " + serviceID));
+
+					return error(msg, CoapProxyConstants.replyType(msg),
+							CoapResponseCode.Bad_Request_400);
+				}
+
+				service = serviceProvider.resolve(serviceID);
+			}
+
+			argumentStart = terminator + 1;
+		}
 
 		// RESTService not registered
 		if (service == null) {
@@ -145,71 +405,740 @@ public class CoapMessageHandler implements MessageDispatcher {
 					LogConstants.LOG_LEVEL_WARN, "Comm",
 					"Received COAP request for unknown service " + serviceID));
 
-			return CoapProxyConstants.createError(msg,
+			return error(msg, CoapProxyConstants.replyType(msg),
 					CoapResponseCode.Not_Found_404);
 		}
 
-		// Tell the source that we are busy coming up with an answer
-		// No piggyback-ing always ACK immediately
-		if (msg.getPacketType() == CoapPacketType.CON
-				&& socketConnector != null) {
-			CoapMessage ack = CoapProxyConstants.createAck(msg);
-			if (ack != null)
-				this.socketConnector.write(ack.serialize());
+		this.metrics.record(Stage.ROUTE, received);
+		this.metrics.request(service.identifier());
+
+		ByteBuffer argument = slice(payload, argumentStart);
+		boolean get = msg.getCode() == CoapRequestCode.GET.getValue();
+
+		// Observe 0 registers the sender as observer, 1 deregisters it
+		if (get && msg.getObserve() != CoapPacket.NONE
+				&& this.observers != null) {
+			if (msg.getObserve() == 0 && service instanceof ObservableService)
+				this.observers.add(service, msg, argument);
+			else if (msg.getObserve() == 1)
+				this.observers.remove(service, msg);
 		}
 
+		if (this.cache != null && get
+				&& msg.getObserve() == CoapPacket.NONE) {
+			ResponseCache.Entry entry = this.cache.get(service, argument);
+			if (entry != null) {
+				CoapPacket response = this.responses.get().reply(msg,
+						CoapProxyConstants.replyType(msg),
+						CoapResponseCode.Content_205);
+				response.setMaxAge(entry.getMaxAge());
+				return encodeBody(response, msg, entry.getResponse());
+			}
+		}
+
+		return dispatch(service, msg, argument);
+	}
+
+	/**
+	 * Answer a request in the negotiated format with a prefix from another
+	 * epoch. This error is always sent, the client needs it to fall back to
+	 * the urn and negotiate again.
+	 * 
+	 * @param msg
+	 * @return
+	 */
+	private ByteBuffer stalePrefix(CoapPacket msg) {
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "Comm",
+				"Received COAP request with a stale service prefix"));
+
+		return this.responses.get().reply(msg,
+				CoapProxyConstants.replyType(msg),
+				CoapResponseCode.Precondition_Failed_412).encode(null);
+	}
+
+	/**
+	 * Pass a request on to the service, through the executor if there is one
+	 * 
+	 * @param service
+	 * @param msg
+	 * @param argument
+	 * @return
+	 */
+	private ByteBuffer dispatch(RESTService service, CoapPacket msg,
+			ByteBuffer argument) {
+		if (this.executor != null)
+			return submit(service, msg, argument);
+
+		// The answer is known before we return, so it always rides on the ACK
+		return invoke(service, msg, argument, null);
+	}
+
+	/**
+	 * Execute the invocations of a batch request, each like a single request
+	 * to its service. With an executor the invocations are queued for their
+	 * services, and the worker that completes the last one sends the
+	 * response.
+	 * 
+	 * @param msg
+	 * @param payload
+	 *            starting with the batch marker
+	 * @return
+	 */
+	private ByteBuffer handleBatch(CoapPacket msg, ByteBuffer payload) {
+		// The received buffer belongs to the connector, workers need a copy
+		final Batch batch = Batch.parse(this.executor == null ? payload
+				: copy(payload));
+		if (batch == null) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm",
+					"Received invalid batch request " + msg));
+
+			return error(msg, CoapProxyConstants.replyType(msg),
+					CoapResponseCode.Bad_Request_400);
+		}
+
+		final CoapPacket request = (this.executor == null ? msg
+				: copyHeader(msg));
+		final Deadline deadline = (this.executor != null
+				&& request.getPacketType() == CoapPacketType.CON ? new Deadline(
+				request) : null);
+
+		for (int i = 0; i < batch.size(); i++) {
+			ByteBuffer invocation = batch.getInvocation(i);
+
+			// The client falls back to the urn for a stale prefix
+			int first = invocation.position();
+			if (first < invocation.limit()
+					&& invocation.get(first) == CoapProxyConstants.NEGOTIATED_MARKER
+					&& !this.serviceProvider.isCompactID(invocation.get(first))
+					&& this.serviceProvider.getNegotiatedID(invocation, first,
+							invocation.limit()) < 0) {
+				batch.complete(i, CoapResponseCode.Precondition_Failed_412,
+						null);
+				continue;
+			}
+
+			final RESTService service;
+			try {
+				service = this.serviceProvider
+						.resolve(getURNfromPayload(invocation));
+			} catch (URISyntaxException e) {
+				batch.complete(i, CoapResponseCode.Bad_Request_400, null);
+				continue;
+			}
+
+			if (service == null) {
+				batch.complete(i, CoapResponseCode.Not_Found_404, null);
+				continue;
+			}
+
+			this.metrics.request(service.identifier());
+
+			final ByteBuffer argument = getArgumentsfromPayload(invocation);
+			final int index = i;
+
+			if (this.executor == null) {
+				callBatched(batch, index, service, argument);
+				continue;
+			}
+
+			boolean accepted = this.executor.submit(service, new Runnable() {
+				@Override
+				public void run() {
+					if (callBatched(batch, index, service, argument))
+						sendBatch(request, batch, deadline);
+				}
+			});
+
+			if (!accepted)
+				batch.complete(i, CoapResponseCode.Service_Unavailable_503,
+						null);
+		}
+
+		// Everything may be done already
+		if (batch.release())
+			return encodeBody(this.responses.get().reply(request,
+					CoapProxyConstants.replyType(request),
+					CoapResponseCode.Content_205), request, batch.encode());
+
+		if (deadline != null)
+			deadline.start();
+
+		return PENDING;
+	}
+
+	/**
+	 * Call the service for one invocation of a batch
+	 * 
+	 * @param batch
+	 * @param index
+	 * @param service
+	 * @param argument
+	 * @return true if it was the last invocation to complete
+	 */
+	private boolean callBatched(Batch batch, int index, RESTService service,
+			ByteBuffer argument) {
+		int code = batch.getCode(index);
+		boolean get = code == CoapRequestCode.GET.getValue();
+
+		if (this.cache != null && get) {
+			ResponseCache.Entry entry = this.cache.get(service, argument);
+			if (entry != null)
+				return batch.complete(index, CoapResponseCode.Content_205,
+						entry.getResponse());
+		}
+
+		ByteBuffer request = (argument == null ? null : argument.duplicate());
+
+		ByteBuffer result;
+		try {
+			result = passToService(service, code, argument);
+		} catch (ServiceException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"Error occured while handling Coap request", e));
+
+			return batch.complete(index, CoapResponseCode.Bad_Option_402, null);
+		} catch (RuntimeException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"Error occured while handling Coap request", e));
+
+			return batch.complete(index,
+					CoapResponseCode.Internal_Server_Error_500, null);
+		} finally {
+			if (this.cache != null && !get)
+				this.cache.invalidate(service);
+		}
+
+		// Nothing to return, but it did work
+		if (result == null)
+			return batch.complete(index, CoapResponseCode.Changed_204, null);
+
+		if (this.cache != null && get) {
+			long maxAge = this.cache.getMaxAge(service);
+			if (maxAge > 0)
+				this.cache.put(service, request, result, maxAge);
+		}
+
+		return batch.complete(index, CoapResponseCode.Content_205, result);
+	}
+
+	/**
+	 * Send the response to a batch that was completed by a worker
+	 * 
+	 * @param request
+	 * @param batch
+	 * @param deadline
+	 */
+	private void sendBatch(CoapPacket request, Batch batch, Deadline deadline) {
+		try {
+			CoapPacket response = this.responses.get().reply(request,
+					responseType(request, deadline),
+					CoapResponseCode.Content_205);
+			ByteBuffer encoded = encodeBody(separate(response, request),
+					request, batch.encode());
+
+			if (this.duplicates != null)
+				this.duplicates.complete(request, encoded);
+
+			this.socketConnector.write(encoded.array());
+		} catch (RuntimeException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"Unable to handle COAP request", e));
+
+			if (this.duplicates != null)
+				this.duplicates.remove(request);
+		} finally {
+			this.metrics.getInFlightCounter().decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param msg
+	 * @return a packet with the header and options of the message, which
+	 *         stays valid when the received buffer is reused
+	 */
+	private static CoapPacket copyHeader(CoapPacket msg) {
+		CoapPacket request = new CoapPacket().reset(msg.getPacketType(),
+				msg.getCode(), msg.getMessageID());
+		request.setToken(msg.getToken(), msg.getTokenLength());
+		request.setObserve(msg.getObserve());
+		request.setBlock1(msg.getBlock1());
+		request.setBlock2(msg.getBlock2());
+		return request;
+	}
+
+	/**
+	 * @param buffer
+	 *            between position and limit, or null
+	 * @return a copy, ready for reading
+	 */
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		if (buffer == null)
+			return null;
+
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate()).flip();
+		return copy;
+	}
+
+	/**
+	 * Route a later block of an upload to the service the first block was
+	 * for. These blocks carry only the argument.
+	 * 
+	 * @param msg
+	 * @return
+	 */
+	private ByteBuffer continueUpload(CoapPacket msg) {
+		BlockTransfers.Upload upload = this.blocks.getUpload(msg);
+		if (upload == null) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm",
+					"Received block of unknown transfer " + msg));
+
+			return error(msg, CoapProxyConstants.replyType(msg),
+					CoapResponseCode.Bad_Request_400);
+		}
+
+		return dispatch(upload.getService(), msg, msg.getPayload());
+	}
+
+	/**
+	 * Queue the request at the executor. The received buffer belongs to the
+	 * connector, so the parts that are needed later are copied.
+	 * 
+	 * @param service
+	 * @param msg
+	 * @param argument
+	 * @return an error if the queue of the service is full, null otherwise
+	 */
+	private ByteBuffer submit(final RESTService service, CoapPacket msg,
+			ByteBuffer argument) {
+		final CoapPacket request = copyHeader(msg);
+		final ByteBuffer copy = copy(argument);
+
+		final Deadline deadline = (request.getPacketType() == CoapPacketType.CON ? new Deadline(
+				request) : null);
+
+		boolean accepted = this.executor.submit(service, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ByteBuffer response = invoke(service, request, copy,
+							deadline);
+					if (duplicates != null)
+						duplicates.complete(request, response);
+					if (response != null)
+						socketConnector.write(response.array());
+				} catch (RuntimeException e) {
+					logger.error(new LogEntry(CoapMessageHandler.this
+							.getClass().getName(),
+							LogConstants.LOG_LEVEL_ERROR, "Comm",
+							"Unable to handle COAP request", e));
+
+					if (duplicates != null)
+						duplicates.remove(request);
+				} finally {
+					metrics.getInFlightCounter().decrementAndGet();
+				}
+			}
+		});
+
+		if (accepted) {
+			if (deadline != null)
+				deadline.start();
+
+			return PENDING;
+		}
+
+		logger.warn(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_WARN, "Comm",
+				"Too many waiting requests for service " + service.identifier()));
+
+		// The sender should try again later, do not treat that as a duplicate
+		if (this.duplicates != null)
+			this.duplicates.remove(msg);
+
+		// Always said, whether or not errors are sent, or the sender just waits
+		return this.responses.get().reply(msg,
+				CoapProxyConstants.replyType(msg),
+				CoapResponseCode.Service_Unavailable_503).encode(null);
+	}
+
+	/**
+	 * Call the service and create the response message. The response to a CON
+	 * request is piggybacked on the ACK, unless the deadline has passed and
+	 * the ACK is already sent.
+	 * 
+	 * @param service
+	 * @param msg
+	 * @param argument
+	 * @param deadline
+	 *            or null if the answer is returned right away
+	 * @return the encoded response, or null if there is nothing to send
+	 */
+	private ByteBuffer invoke(RESTService service, CoapPacket msg,
+			ByteBuffer argument, Deadline deadline) {
+		boolean get = msg.getCode() == CoapRequestCode.GET.getValue();
+
+		// The service may read the argument, the cache needs it afterwards
+		ByteBuffer request = (argument == null ? null : argument.duplicate());
+
 		ByteBuffer serviceResponse;
+		BlockTransfers.Upload upload = null;
 		// Try to get a response from the service
 		try {
-			serviceResponse = passToService(service, msg);
+			if (msg.getBlock1() == CoapPacket.NONE) {
+				serviceResponse = passToService(service, msg.getCode(),
+						argument);
+			} else if (this.blocks == null) {
+				return error(msg, responseType(msg, deadline),
+						CoapResponseCode.Request_Entity_To_Large_413);
+			} else {
+				upload = receiveBlock(service, msg, argument);
+				if (upload == null)
+					return error(msg, responseType(msg, deadline),
+							CoapResponseCode.Bad_Request_400);
+
+				// Ask for the next block
+				if (!upload.isComplete()) {
+					CoapPacket response = this.responses.get().reset(
+							responseType(msg, deadline),
+							BlockOption.CONTINUE_231, msg.getMessageID());
+					response.setToken(msg.getToken(), msg.getTokenLength());
+					response.setBlock1(msg.getBlock1());
+					return separate(response, msg).encode(null);
+				}
+
+				this.blocks.remove(upload);
+
+				UploadStream stream = upload.getStream();
+				serviceResponse = (stream != null ? stream.close()
+						: passToService(service, msg.getCode(),
+								upload.getArgument()));
+			}
 		} catch (ServiceException e) {
 			logger.error(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_ERROR, "Comm",
 					"Error occured while handling Coap request", e));
 
-			return CoapProxyConstants.createError(msg,
+			if (upload != null)
+				this.blocks.abort(upload);
+
+			// An error ends the observation
+			if (this.observers != null && get)
+				this.observers.remove(service, msg);
+
+			return error(msg, responseType(msg, deadline),
 					CoapResponseCode.Bad_Option_402);
+		} finally {
+			// Anything may have changed, even if the request failed
+			if (this.cache != null && !get)
+				this.cache.invalidate(service);
 		}
 
-		// If service gives no response, send nothing
+		CoapPacketType packetType = responseType(msg, deadline);
+
+		// If service gives no response, a CON sender still learns it did work
 		if (serviceResponse == null)
-			return null;
+			return msg.getPacketType() == CoapPacketType.CON ? separate(
+					this.responses.get().reply(msg, packetType,
+							CoapResponseCode.Changed_204), msg).encode(null)
+					: null;
 
-		// Create the COAP response message (always NON because already ACKed)
-		BasicCoapResponse response = new BasicCoapResponse(CoapPacketType.NON,
-				CoapResponseCode.Content_205, msg.getMessageID(), null);
+		CoapPacket response = separate(this.responses.get().reply(msg,
+				packetType, CoapResponseCode.Content_205), msg);
+		response.setBlock1(msg.getBlock1());
 
-		response.setPayload(serviceResponse.array());
+		ObserverRegistry.Observer observer = (get && msg.getObserve() == 0
+				&& this.observers != null ? this.observers.find(service, msg)
+				: null);
+		if (observer != null) {
+			response.setObserve(observer.nextSequence());
+			observer.sent(response.getMessageID());
+		}
 
-		return response;
+		if (this.cache != null && get) {
+			long maxAge = this.cache.getMaxAge(service);
+			if (maxAge > 0) {
+				response.setMaxAge(maxAge);
+				this.cache.put(service, request, serviceResponse, maxAge);
+			}
+		}
+
+		// Straight from the buffer of the service, between position and limit
+		return encodeBody(response, msg, serviceResponse);
 	}
 
 	/**
+	 * Take a block of a block-wise argument. The first block starts a new
+	 * upload, and opens the stream of a StreamingService.
+	 * 
 	 * @param service
 	 * @param msg
-	 * @return
+	 * @param argument
+	 *            the part of the block that belongs to the argument
+	 * @return the upload, or null if the block was not expected
 	 * @throws ServiceException
 	 */
-	private ByteBuffer passToService(RESTService service, CoapRequest msg)
+	private BlockTransfers.Upload receiveBlock(RESTService service,
+			CoapPacket msg, ByteBuffer argument) throws ServiceException {
+		BlockTransfers.Upload upload;
+		if (BlockOption.getNum(msg.getBlock1()) == 0)
+			upload = this.blocks.startUpload(service, msg,
+					openUpload(service, msg));
+		else
+			upload = this.blocks.getUpload(msg);
+
+		if (upload == null || !upload.write(msg, argument)) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm",
+					"Received unexpected block " + msg));
+
+			return null;
+		}
+
+		return upload;
+	}
+
+	/**
+	 * @param service
+	 * @param msg
+	 * @return the stream for a PUT or POST to a StreamingService, null
+	 *         otherwise
+	 * @throws ServiceException
+	 */
+	private static UploadStream openUpload(RESTService service, CoapPacket msg)
 			throws ServiceException {
-		// Pass only payload to the service message dispatcher
-		ByteBuffer argument = getArgumentsfromPayload(msg.getPayload());
-
-		switch (msg.getRequestCode()) {
-		case GET:
-			return service.get(argument);
-		case PUT:
-			return service.put(argument);
-		case POST:
-			return service.post(argument);
-		case DELETE:
-			return service.delete(argument);
-		default:
+		if (!(service instanceof StreamingService))
+			return null;
+
+		if (msg.getCode() == CoapRequestCode.PUT.getValue())
+			return ((StreamingService) service).openPut();
+		if (msg.getCode() == CoapRequestCode.POST.getValue())
+			return ((StreamingService) service).openPost();
+
+		return null;
+	}
+
+	/**
+	 * Encode a response, in blocks if it is too large or the client asked
+	 * for it. The first block of a large response is kept for the requests
+	 * of the later blocks.
+	 * 
+	 * @param response
+	 *            the response without payload
+	 * @param msg
+	 *            the request
+	 * @param body
+	 *            between position and limit
+	 * @return
+	 */
+	private ByteBuffer encodeBody(CoapPacket response, CoapPacket msg,
+			ByteBuffer body) {
+		long start = System.nanoTime();
+		try {
+			int size = (this.blocks == null ? 0 : this.blocks
+					.getBlockSize(msg));
+			if (size == 0
+					|| (msg.getBlock2() == CoapPacket.NONE && body.remaining() <= size))
+				return response.encode(body);
+
+			// Without a token the later blocks are answered by calling the
+			// service again, which only a GET can take
+			if (msg.getTokenLength() == 0
+					&& msg.getCode() != CoapRequestCode.GET.getValue())
+				return response.encode(body);
+
+			int num = (msg.getBlock2() == CoapPacket.NONE ? 0 : BlockOption
+					.getNum(msg.getBlock2()));
+			if (num == 0 && body.remaining() > size)
+				this.blocks.putDownload(msg, body);
+
+			return encodeBlock(response, body, num, size);
+		} finally {
+			this.metrics.record(Stage.SERIALIZE, start);
+		}
+	}
+
+	/**
+	 * @param response
+	 *            the response without payload
+	 * @param body
+	 *            the whole response body, between position and limit
+	 * @param num
+	 *            the number of the block to send
+	 * @param size
+	 *            the block size
+	 * @return
+	 */
+	private static ByteBuffer encodeBlock(CoapPacket response, ByteBuffer body,
+			int num, int size) {
+		int from = (int) Math.min(body.limit(), body.position() + (long) num
+				* size);
+		int to = Math.min(body.limit(), from + size);
+
+		ByteBuffer block = body.duplicate();
+		block.limit(to);
+		block.position(from);
+
+		response.setBlock2(BlockOption.value(num, to < body.limit(),
+				BlockOption.toSZX(size)));
+		return response.encode(block);
+	}
+
+	/**
+	 * Send the new state of the service to all its observers. The service is
+	 * called through the executor if there is one, like for any request.
+	 * 
+	 * @param service
+	 */
+	void notifyObservers(final RESTService service) {
+		if (this.observers == null || this.observers.get(service).isEmpty())
+			return;
+
+		Runnable notification = new Runnable() {
+			@Override
+			public void run() {
+				for (ObserverRegistry.Observer o : observers.get(service))
+					sendNotification(service, o);
+			}
+		};
+
+		if (this.executor == null)
+			notification.run();
+		else if (!this.executor.submit(service, notification))
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "Comm",
+					"Too many waiting requests, dropped notification for "
+							+ service.identifier()));
+	}
+
+	/**
+	 * Forget the observers of a service that is going away
+	 * 
+	 * @param service
+	 */
+	void removeObservers(RESTService service) {
+		if (this.observers != null)
+			this.observers.removeAll(service);
+	}
+
+	private void sendNotification(RESTService service,
+			ObserverRegistry.Observer observer) {
+		ByteBuffer state;
+		try {
+			state = service.get(observer.getArgument());
+		} catch (ServiceException e) {
 			logger.error(new LogEntry(this.getClass().getName(),
 					LogConstants.LOG_LEVEL_ERROR, "Comm",
-					"Invalid CoapRequestCode " + msg.getRequestCode()));
+					"Error occured while notifying observer", e));
+			return;
+		} catch (RuntimeException e) {
+			logger.error(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_ERROR, "Comm",
+					"Error occured while notifying observer", e));
+			return;
+		}
+
+		if (state == null)
+			return;
+
+		CoapPacket notification = this.responses.get().reset(
+				CoapPacketType.NON, CoapResponseCode.Content_205.getValue(),
+				this.nextMessageID());
+		notification.setToken(observer.getToken(), observer.getTokenLength());
+		notification.setObserve(observer.nextSequence());
+		observer.sent(notification.getMessageID());
+
+		this.socketConnector.write(notification.encode(state).array());
+	}
+
+	/**
+	 * A separate response to a CON request, sent after the empty ACK, gets a
+	 * message ID of its own (RFC 7252 section 5.2.2). The client finds the
+	 * request by the token, so without token it keeps that of the request.
+	 * 
+	 * @param response
+	 * @param request
+	 * @return the response
+	 */
+	private CoapPacket separate(CoapPacket response, CoapPacket request) {
+		if (request.getPacketType() == CoapPacketType.CON
+				&& response.getPacketType() != CoapPacketType.ACK
+				&& request.getTokenLength() > 0)
+			response.setMessageID(this.nextMessageID());
+
+		return response;
+	}
+
+	/**
+	 * @return the message ID for a message the server starts itself
+	 */
+	private int nextMessageID() {
+		return this.messageIDs.incrementAndGet() & 0xFFFF;
+	}
+
+	private static CoapPacketType responseType(CoapPacket msg, Deadline deadline) {
+		if (deadline == null)
+			return CoapProxyConstants.replyType(msg);
+
+		return deadline.claim() ? CoapPacketType.ACK : CoapPacketType.NON;
+	}
+
+	/**
+	 * The part of the payload from the given index, or null if it is empty
+	 * 
+	 * @param payload
+	 * @param from
+	 * @return
+	 */
+	private static ByteBuffer slice(ByteBuffer payload, int from) {
+		if (from >= payload.limit())
+			return null;
+
+		ByteBuffer ret = payload.duplicate();
+		ret.position(from);
+		return ret.slice();
+	}
+
+	/**
+	 * Pass the request to the service. The argument the service gets is a
+	 * read-only view on the received message, so it is only valid during the
+	 * call and must be copied if the service wants to keep it.
+	 * 
+	 * @param service
+	 * @param code
+	 *            the request code
+	 * @param argument
+	 * @return
+	 * @throws ServiceException
+	 */
+	private ByteBuffer passToService(RESTService service, int code,
+			ByteBuffer argument) throws ServiceException {
+		long start = System.nanoTime();
+		try {
+			switch (CoapRequestCode.parseRequestCode(code)) {
+			case GET:
+				return service.get(argument);
+			case PUT:
+				return service.put(argument);
+			case POST:
+				return service.post(argument);
+			case DELETE:
+				return service.delete(argument);
+			default:
+				logger.error(new LogEntry(this.getClass().getName(),
+						LogConstants.LOG_LEVEL_ERROR, "Comm",
+						"Invalid CoapRequestCode " + code));
 
-			throw new IllegalArgumentException("Invalid CoapRequestCode");
+				throw new IllegalArgumentException("Invalid CoapRequestCode");
+			}
+		} finally {
+			this.metrics.record(Stage.SERVICE, start);
 		}
 	}
 
@@ -222,16 +1151,45 @@ public class CoapMessageHandler implements MessageDispatcher {
 	 * @throws URISyntaxException
 	 */
 	public ANES_URN getURNfromPayload(byte[] payload) throws URISyntaxException {
-		if (this.translator != null
-				&& this.translator.byteToURN(payload[0]) != null)
-			return this.translator.byteToURN(payload[0]);
+		return getURNfromPayload(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Return the ANES_URN that should be at the start of the payload (between
+	 * position and limit) terminated by the service termination byte
+	 * 
+	 * @param payload
+	 * @return
+	 * @throws URISyntaxException
+	 */
+	public ANES_URN getURNfromPayload(ByteBuffer payload)
+			throws URISyntaxException {
+		int start = payload.position();
+		int end = payload.limit();
+
+		if (this.translator != null && start < end
+				&& this.translator.byteToURN(payload.get(start)) != null)
+			return this.translator.byteToURN(payload.get(start));
+
+		if (start < end
+				&& payload.get(start) == CoapProxyConstants.NEGOTIATED_MARKER) {
+			ANES_URN urn = this.serviceProvider.getNegotiatedURN(this.serviceProvider
+					.getNegotiatedID(payload, start, end));
+			if (urn == null)
+				throw new URISyntaxException(String.valueOf(payload),
+						"Stale service prefix");
+
+			return urn;
+		}
 
 		StringBuilder sb = new StringBuilder();
-		for (byte b : payload)
+		for (int i = start; i < end; i++) {
+			byte b = payload.get(i);
 			if (b == CoapProxyConstants.SERVICE_TERMINATOR)
 				break;
 			else
 				sb.append((char) b);
+		}
 
 		return new ANES_URN(sb.toString());
 	}
@@ -244,22 +1202,94 @@ public class CoapMessageHandler implements MessageDispatcher {
 	 * @return
 	 */
 	public ByteBuffer getArgumentsfromPayload(byte[] payload) {
-		int pos = 0;
-		if (this.translator != null
-				&& this.translator.byteToURN(payload[0]) != null) {
-			pos = 1;
-		} else {
-			while (pos < payload.length)
-				if (payload[pos++] == CoapProxyConstants.SERVICE_TERMINATOR)
-					break;
-		}
+		ByteBuffer arguments = getArgumentsfromPayload(ByteBuffer
+				.wrap(payload));
 
-		if (pos == payload.length)
+		if (arguments == null)
 			return null;
 
-		ByteBuffer ret = ByteBuffer.allocate(payload.length - pos);
-		ret.put(payload, pos, ret.capacity()).flip();
+		ByteBuffer ret = ByteBuffer.allocate(arguments.remaining());
+		ret.put(arguments).flip();
 		return ret;
 	}
 
+	/**
+	 * Return the arguments of the payload (between position and limit) or null
+	 * if there are no arguments. The arguments are a slice of the payload, so
+	 * nothing is copied and a read-only payload gives read-only arguments.
+	 * 
+	 * @param payload
+	 * @return
+	 */
+	public ByteBuffer getArgumentsfromPayload(ByteBuffer payload) {
+		int pos = payload.position();
+		int end = payload.limit();
+
+		int id;
+		if (this.translator != null && pos < end
+				&& this.translator.byteToURN(payload.get(pos)) != null) {
+			pos++;
+		} else if (pos < end
+				&& payload.get(pos) == CoapProxyConstants.NEGOTIATED_MARKER
+				&& (id = this.serviceProvider.getNegotiatedID(payload, pos,
+						end)) >= 0) {
+			pos += CoapProxyConstants.negotiatedLength(id);
+		} else {
+			while (pos < end)
+				if (payload.get(pos++) == CoapProxyConstants.SERVICE_TERMINATOR)
+					break;
+		}
+
+		return slice(payload, pos);
+	}
+
+	/**
+	 * Decides whether the response to a CON request that was passed to the
+	 * executor still fits on the ACK. Either the response claims the ACK, or
+	 * the timer does when the piggyback timeout expires, and sends it empty.
+	 */
+	private final class Deadline implements Runnable {
+
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		private final CoapPacket request;
+
+		private volatile TimingWheel.Timeout timeout;
+
+		Deadline(CoapPacket request) {
+			this.request = request;
+		}
+
+		void start() {
+			if (piggybackTimeout <= 0 || timer == null)
+				this.run();
+			else
+				this.timeout = timer.schedule(this, piggybackTimeout,
+						TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return true if the response can be sent on the ACK
+		 */
+		boolean claim() {
+			if (!this.claimed.compareAndSet(false, true))
+				return false;
+
+			TimingWheel.Timeout t = this.timeout;
+			if (t != null)
+				t.cancel();
+			return true;
+		}
+
+		@Override
+		public void run() {
+			if (!this.claimed.compareAndSet(false, true))
+				return;
+
+			// Tell the source that we are busy coming up with an answer
+			ByteBuffer ack = emptyAck(this.request);
+			if (ack != null)
+				socketConnector.write(ack.array());
+		}
+	}
 }
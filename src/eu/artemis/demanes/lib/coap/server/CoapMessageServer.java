@@ -20,14 +20,24 @@
 package eu.artemis.demanes.lib.coap.server;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
 import aQute.bnd.annotation.component.Activate;
 import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
 import aQute.bnd.annotation.component.Reference;
 import eu.artemis.demanes.lib.MessageDispatcher;
 import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.metrics.MetricsProvider;
+import eu.artemis.demanes.lib.coap.server.api.ObservableService;
+import eu.artemis.demanes.lib.coap.server.api.ServiceChangeListener;
 import eu.artemis.demanes.lib.services.RESTService;
 import eu.artemis.demanes.lib.services.ServiceRegistry;
 import eu.artemis.demanes.lib.services.URNTranslator;
@@ -37,31 +47,195 @@ import eu.artemis.demanes.logging.LogEntry;
 /**
  * COAPMessageDispatcher
  * 
+ * By default the services are called on the thread that delivers the message.
+ * If the component property coap.server.threads is larger than zero, the
+ * services are called by that many worker threads instead, with at most
+ * coap.server.queue waiting requests for each service. A request that finds
+ * the queue of its service full is answered with 5.03 right away. The
+ * responses are then written to the socket connector, which is required for
+ * this mode. The response to a CON request is piggybacked on the ACK if the
+ * service answers within coap.server.piggyback milliseconds (500 by default),
+ * otherwise the ACK is sent at that time and the response follows separately.
+ * Without workers, responses to CON requests are always piggybacked.
+ * 
+ * If coap.server.cache is larger than zero, that many GET responses are kept
+ * in a cache. Responses of a CacheableService are kept for the Max-Age the
+ * service gives, those of other services for coap.server.maxAge seconds,
+ * which is 0 (not at all) by default.
+ * 
+ * If coap.server.dedup is larger than zero, the server remembers that many
+ * recent requests with their response. A request that is received again is
+ * answered with the same response instead of calling the service again.
+ * 
+ * With a socket connector, the state of an ObservableService can be observed
+ * (RFC 7641). Whenever the service reports a change, every client that sent a
+ * GET with Observe 0 gets a NON notification with the new response.
+ * 
+ * If coap.server.blocks is larger than zero, that many block-wise transfers
+ * (RFC 7959) can go on at the same time. Arguments are then collected up to
+ * coap.server.maxBody bytes, or streamed to a StreamingService, and responses
+ * are sent in blocks of coap.server.blockSize bytes if they are larger, or in
+ * the smaller blocks the client asks for.
+ * 
+ * With coap.server.negotiate set to true, the server registers the
+ * {@link CoapProxyConstants#NEGOTIATION_SERVICE}, from which clients learn a
+ * short prefix for every service. Requests with such a prefix are routed by
+ * a table lookup, like those in the reduced format of a translator.
+ * 
+ * The server counts the requests for each service and times the stages of
+ * handling them. The metrics are provided as MetricsProvider service, and over
+ * JMX as eu.artemis.demanes.lib.coap:type=CoapMessageServer,name=server.
+ * 
  * @author leeuwencjv
  * @version 0.1
  * @since 9 okt. 2014
  * 
  */
 @Component(immediate = true, properties = "messageType=COAP")
-public class CoapMessageServer implements ServiceRegistry, MessageDispatcher {
+public class CoapMessageServer implements ServiceRegistry, MessageDispatcher,
+		MetricsProvider {
+
+	/* Component property with the number of worker threads, 0 for none */
+	public static final String THREADS_PROPERTY = "coap.server.threads";
+
+	/* Component property with the maximum waiting requests per service */
+	public static final String QUEUE_PROPERTY = "coap.server.queue";
+
+	public static final int DEFAULT_QUEUE_SIZE = 16;
+
+	/* Component property with the time a response may take to fit on the ACK */
+	public static final String PIGGYBACK_PROPERTY = "coap.server.piggyback";
+
+	public static final int DEFAULT_PIGGYBACK_TIMEOUT = 500;
+
+	/* Component property with the number of cached GET responses, 0 for none */
+	public static final String CACHE_PROPERTY = "coap.server.cache";
+
+	/* Component property with the default Max-Age of cached responses */
+	public static final String MAX_AGE_PROPERTY = "coap.server.maxAge";
+
+	/* Component property with the number of remembered requests, 0 for none */
+	public static final String DEDUP_PROPERTY = "coap.server.dedup";
+
+	/* Component property with the number of block transfers, 0 for none */
+	public static final String BLOCKS_PROPERTY = "coap.server.blocks";
+
+	/* Component property with the block size of large responses, 0 for none */
+	public static final String BLOCK_SIZE_PROPERTY = "coap.server.blockSize";
+
+	/* Component property with the maximum size of a collected argument */
+	public static final String MAX_BODY_PROPERTY = "coap.server.maxBody";
+
+	public static final int DEFAULT_MAX_BODY = 65536;
+
+	/* Component property to hand out the prefixes of the negotiated format */
+	public static final String NEGOTIATE_PROPERTY = "coap.server.negotiate";
 
 	private final Logger logger = Logger.getLogger("dmns:log");
 
 	private final CoapServiceBroker broker = new CoapServiceBroker();
 
+	private final RESTService negotiation = new NegotiationService(
+			this.broker);
+
 	private SocketConnector connector;
 
-	private MessageDispatcher messageHandler;
+	private volatile CoapMessageHandler messageHandler;
+
+	// Stays the same while the handler is replaced on activation
+	private final ServiceChangeListener changeListener = new ServiceChangeListener() {
+		@Override
+		public void changed(RESTService service) {
+			CoapMessageHandler handler = messageHandler;
+			if (handler != null)
+				handler.notifyObservers(service);
+		}
+	};
 
 	private URNTranslator translator;
 
+	private ServiceExecutor executor;
+
+	private ResponseCache cache;
+
+	private TimingWheel timer;
+
+	private final CoapMetrics metrics = new CoapMetrics("CoapMessageServer",
+			"server");
+
 	@Activate
-	public void start() {
+	public void start(Map<String, ?> properties) {
 		logger.debug(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_DEBUG, "LifeCycle", "Activating module"));
 
+		int threads = CoapProxyConstants.getInt(properties, THREADS_PROPERTY,
+				0);
+		int queueSize = CoapProxyConstants.getInt(properties, QUEUE_PROPERTY,
+				DEFAULT_QUEUE_SIZE);
+
+		if (threads > 0 && this.connector == null) {
+			logger.warn(new LogEntry(this.getClass().getName(),
+					LogConstants.LOG_LEVEL_WARN, "LifeCycle",
+					"No socket connector, calling services directly"));
+		} else if (threads > 0) {
+			this.executor = new ServiceExecutor(threads, queueSize);
+		}
+
+		int cacheSize = CoapProxyConstants.getInt(properties, CACHE_PROPERTY, 0);
+		this.cache = (cacheSize > 0 ? new ResponseCache(cacheSize,
+				CoapProxyConstants.getInt(properties, MAX_AGE_PROPERTY, 0))
+				: null);
+
+		int dedupSize = CoapProxyConstants.getInt(properties, DEDUP_PROPERTY, 0);
+		int piggybackTimeout = CoapProxyConstants.getInt(properties,
+				PIGGYBACK_PROPERTY, DEFAULT_PIGGYBACK_TIMEOUT);
+
+		int transfers = CoapProxyConstants.getInt(properties, BLOCKS_PROPERTY,
+				0);
+
+		// One wheel for the piggyback deadlines, duplicates and transfers
+		if (this.executor != null || dedupSize > 0 || transfers > 0)
+			this.timer = new TimingWheel("CoapMessageServer timer");
+
+		DuplicateFilter duplicates = (dedupSize > 0 ? new DuplicateFilter(
+				dedupSize, this.timer) : null);
+
+		BlockTransfers blocks = (transfers > 0 ? new BlockTransfers(
+				CoapProxyConstants.getInt(properties, BLOCK_SIZE_PROPERTY, 0),
+				CoapProxyConstants.getInt(properties, MAX_BODY_PROPERTY,
+						DEFAULT_MAX_BODY), transfers, this.timer) : null);
+
 		this.messageHandler = new CoapMessageHandler(this.broker,
-				this.connector, this.translator);
+				this.connector, this.translator, this.executor, this.cache,
+				duplicates, this.timer, piggybackTimeout, blocks, this.metrics);
+
+		if (CoapProxyConstants.getBoolean(properties, NEGOTIATE_PROPERTY, false))
+			this.broker.registerService(this.negotiation);
+
+		this.metrics.register();
+	}
+
+	@Deactivate
+	public void stop() {
+		logger.debug(new LogEntry(this.getClass().getName(),
+				LogConstants.LOG_LEVEL_DEBUG, "LifeCycle",
+				"Deactivating module"));
+
+		this.metrics.unregister();
+		this.broker.unregisterService(this.negotiation);
+
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+		}
+
+		if (this.timer != null) {
+			this.timer.stop();
+			this.timer = null;
+		}
+
+		// The services may change while inactive, start afresh
+		this.cache = null;
 	}
 
 	/*
@@ -76,6 +250,14 @@ public class CoapMessageServer implements ServiceRegistry, MessageDispatcher {
 		return messageHandler.dispatchMessage(msg);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<CoapMetrics> getMetrics() {
+		return Collections.singletonList(this.metrics);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
@@ -87,6 +269,9 @@ public class CoapMessageServer implements ServiceRegistry, MessageDispatcher {
 	@Reference(optional = true, dynamic = true, multiple = true)
 	public void registerService(RESTService s) {
 		this.broker.registerService(s);
+
+		if (s instanceof ObservableService)
+			((ObservableService) s).addChangeListener(this.changeListener);
 	}
 
 	/**
@@ -99,6 +284,21 @@ public class CoapMessageServer implements ServiceRegistry, MessageDispatcher {
 	@Override
 	public void unregisterService(RESTService s) {
 		this.broker.unregisterService(s);
+
+		if (s instanceof ObservableService)
+			((ObservableService) s).removeChangeListener(this.changeListener);
+
+		CoapMessageHandler handler = this.messageHandler;
+		if (handler != null)
+			handler.removeObservers(s);
+
+		ServiceExecutor e = this.executor;
+		if (e != null)
+			e.remove(s);
+
+		ResponseCache c = this.cache;
+		if (c != null)
+			c.invalidate(s);
 	}
 
 	/**
@@ -126,5 +326,6 @@ public class CoapMessageServer implements ServiceRegistry, MessageDispatcher {
 				"Setting URNTranslator " + ut));
 
 		this.translator = ut;
+		this.broker.setTranslator(ut);
 	}
 }
@@ -19,15 +19,17 @@
  */
 package eu.artemis.demanes.lib.coap.server;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.apache.log4j.Logger;
 
 import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
 import eu.artemis.demanes.lib.services.ServiceProvider;
 import eu.artemis.demanes.lib.services.ServiceRegistry;
 import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.URNTranslator;
 import eu.artemis.demanes.logging.LogConstants;
 import eu.artemis.demanes.logging.LogEntry;
 
@@ -37,7 +39,16 @@ import eu.artemis.demanes.logging.LogEntry;
  * This contains the collection of COAP services that are available in the
  * system. It keeps a Map of the service identifiers to the services. Services
  * can register at it, and it will make it available to other modules using the
- * ServiceProvider interface.
+ * ServiceProvider interface. For the message handler it also keeps a routing
+ * index, so services can be found straight from the bytes of a request.
+ * 
+ * Services come and go on OSGi threads while requests are being handled, so
+ * the registry is an immutable snapshot that is replaced as a whole on every
+ * change. Changes are serialized, lookups take no locks.
+ * 
+ * The negotiated IDs of the services are only valid within an epoch, a
+ * random number that differs between runs of the broker, so IDs that a client
+ * learned before a restart are recognized as such.
  *
  * @author leeuwencjv
  * @version 0.1
@@ -48,34 +59,46 @@ public class CoapServiceBroker implements ServiceRegistry, ServiceProvider {
 
 	private final Logger logger = Logger.getLogger("dmns:log");
 	
-	private Map<ANES_URN, RESTService> serviceMap;
+	private volatile ServiceIndex index = ServiceIndex.EMPTY;
+
+	private final int epoch = new Random().nextInt();
 
 	public CoapServiceBroker() {
-		this.serviceMap = new HashMap<ANES_URN, RESTService>();
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void registerService(RESTService s) {
+	public synchronized void registerService(RESTService s) {
 		logger.debug(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_DEBUG, "Comm",
 				"Registering coap service with urn " + s.identifier()));
 
-		this.serviceMap.put(s.identifier(), s);
+		this.index = this.index.with(s);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void unregisterService(RESTService s) {
+	public synchronized void unregisterService(RESTService s) {
 		logger.debug(new LogEntry(this.getClass().getName(),
 				LogConstants.LOG_LEVEL_DEBUG, "Comm",
 				"Unregistering coap service with urn " + s.identifier()));
-		
-		this.serviceMap.remove(s.identifier());
+
+		// A newer service with the same urn may already have replaced it
+		this.index = this.index.without(s);
+	}
+
+	/**
+	 * Set the translator for requests in the reduced format, where the first
+	 * byte of the payload identifies the service.
+	 * 
+	 * @param ut
+	 */
+	public synchronized void setTranslator(URNTranslator ut) {
+		this.index = this.index.withTranslator(ut);
 	}
 
 	/**
@@ -83,7 +106,119 @@ public class CoapServiceBroker implements ServiceRegistry, ServiceProvider {
 	 */
 	@Override
 	public RESTService resolve(ANES_URN identifier) {
-		return this.serviceMap.get(identifier);
+		return this.index.get(identifier);
+	}
+
+	/**
+	 * Find the service whose textual urn is exactly the bytes from (inclusive)
+	 * to (exclusive) of the buffer, without creating any objects. Only an exact
+	 * match of the bytes is found, use {@link #resolve(ANES_URN)} if this
+	 * fails.
+	 * 
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 * @return the service or null
+	 */
+	public RESTService resolve(ByteBuffer buffer, int from, int to) {
+		return this.index.get(buffer, from, to);
+	}
+
+	/**
+	 * @param id
+	 * @return whether the translator knows this byte
+	 */
+	public boolean isCompactID(byte id) {
+		return this.index.isCompactID(id);
+	}
+
+	/**
+	 * @param id
+	 * @return the urn the translator gives for this byte, or null
+	 */
+	public ANES_URN getCompactURN(byte id) {
+		return this.index.getCompactURN(id);
+	}
+
+	/**
+	 * Find the service for a request in the reduced format
+	 * 
+	 * @param id
+	 *            the first byte of the payload
+	 * @return the service or null
+	 */
+	public RESTService resolve(byte id) {
+		return this.index.get(id);
+	}
+
+	/**
+	 * @param identifier
+	 * @return the prefix of requests to the service in the negotiated format
+	 *         (see {@link CoapProxyConstants#NEGOTIATED_MARKER}), or null if
+	 *         it is not registered
+	 */
+	public byte[] getNegotiatedPrefix(ANES_URN identifier) {
+		ServiceIndex current = this.index;
+		if (current.get(identifier) == null)
+			return null;
+
+		int id = current.getNegotiatedID(identifier);
+		ByteBuffer prefix = ByteBuffer.allocate(CoapProxyConstants
+				.negotiatedLength(id));
+		prefix.put(CoapProxyConstants.NEGOTIATED_MARKER);
+		prefix.putInt(this.epoch);
+		CoapProxyConstants.putVarint(prefix, id);
+		return prefix.array();
+	}
+
+	/**
+	 * Read the negotiated ID at the start of a payload in the negotiated
+	 * format, without moving the buffer. The arguments start right after it,
+	 * at start + {@link CoapProxyConstants#negotiatedLength(int)}.
+	 * 
+	 * @param payload
+	 * @param start
+	 *            the position of the marker
+	 * @param end
+	 * @return the ID, or -1 if the prefix is invalid or from another epoch
+	 */
+	public int getNegotiatedID(ByteBuffer payload, int start, int end) {
+		int first = start + 1 + CoapProxyConstants.EPOCH_LENGTH;
+		if (end - first < 1
+				|| payload.get(start) != CoapProxyConstants.NEGOTIATED_MARKER
+				|| payload.getInt(start + 1) != this.epoch)
+			return -1;
+
+		int id = 0;
+		for (int i = first, shift = 0; i < end && shift < 32; i++, shift += 7) {
+			int b = payload.get(i) & 0xFF;
+			id |= (b & 0x7F) << shift;
+
+			// Only the shortest encoding, or the arguments would not be found
+			if ((b & 0x80) == 0)
+				return (id < 0 || (b == 0 && shift > 0)) ? -1 : id;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @param id
+	 * @return the urn that has this negotiated ID, or null
+	 */
+	public ANES_URN getNegotiatedURN(int id) {
+		return this.index.getNegotiatedURN(id);
+	}
+
+	/**
+	 * Find the service for a request in the negotiated format
+	 * 
+	 * @param id
+	 *            the negotiated ID
+	 * @return the service or null
+	 */
+	public RESTService resolveNegotiated(int id) {
+		return this.index.getNegotiated(id);
 	}
 
 }
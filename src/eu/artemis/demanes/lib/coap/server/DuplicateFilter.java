@@ -0,0 +1,205 @@
+/**
+ * File DuplicateFilter.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.ws4d.coap.messages.CoapPacketType;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.TimingWheel;
+
+/**
+ * Internal class DuplicateFilter
+ * 
+ * Remembers the requests that were received recently, by message ID and
+ * token, together with the response that was sent for them. A request that
+ * arrives again, because the sender retransmitted it or the link duplicated
+ * it, can then be answered without calling the service a second time.
+ * 
+ * Entries are kept for the EXCHANGE_LIFETIME (confirmable) or NON_LIFETIME
+ * (non-confirmable) of RFC 7252, after which the sender may reuse the message
+ * ID. They are removed by a timing wheel when they expire, and when the
+ * filter is full, the oldest request is forgotten.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class DuplicateFilter {
+
+	/* RFC 7252 section 4.8.2, with the default transmission parameters */
+	private static final long EXCHANGE_LIFETIME = 247;
+
+	private static final long NON_LIFETIME = 145;
+
+	private final int capacity;
+
+	private final TimingWheel timer;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
+
+	/**
+	 * @param capacity
+	 *            the maximum number of requests to remember
+	 * @param timer
+	 *            to expire the requests with
+	 */
+	DuplicateFilter(int capacity, TimingWheel timer) {
+		this.capacity = capacity;
+		this.timer = timer;
+	}
+
+	/**
+	 * Register a received request.
+	 * 
+	 * @param msg
+	 * @return null if the request is new, the entry of the earlier request
+	 *         otherwise
+	 */
+	synchronized Entry register(CoapPacket msg) {
+		Key key = new Key(msg);
+
+		Entry entry = this.entries.get(key);
+		if (entry != null)
+			return entry;
+
+		// Make room by forgetting the oldest
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.entries.size() >= this.capacity && it.hasNext()) {
+			it.next().expiry.cancel();
+			it.remove();
+		}
+
+		entry = new Entry(key);
+		entry.expiry = this.timer.schedule(entry,
+				msg.getPacketType() == CoapPacketType.CON ? EXCHANGE_LIFETIME
+						: NON_LIFETIME, TimeUnit.SECONDS);
+
+		this.entries.put(key, entry);
+		return null;
+	}
+
+	/**
+	 * Store the response to a registered request
+	 * 
+	 * @param msg
+	 *            the request, or a packet with its message ID and token
+	 * @param response
+	 *            the encoded response, or null if nothing was sent
+	 */
+	synchronized void complete(CoapPacket msg, ByteBuffer response) {
+		Entry entry = this.entries.get(new Key(msg));
+		if (entry != null) {
+			entry.response = response;
+			entry.done = true;
+		}
+	}
+
+	/**
+	 * Forget a request, so it is handled again if it is retransmitted
+	 * 
+	 * @param msg
+	 */
+	synchronized void remove(CoapPacket msg) {
+		Entry entry = this.entries.remove(new Key(msg));
+		if (entry != null)
+			entry.expiry.cancel();
+	}
+
+	private synchronized void expire(Entry entry) {
+		if (this.entries.get(entry.key) == entry)
+			this.entries.remove(entry.key);
+	}
+
+	/**
+	 * A request that was received before
+	 */
+	final class Entry implements Runnable {
+
+		private final Key key;
+
+		private TimingWheel.Timeout expiry;
+
+		private volatile boolean done;
+
+		private volatile ByteBuffer response;
+
+		private Entry(Key key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			expire(this);
+		}
+
+		/**
+		 * @return whether the response is known
+		 */
+		boolean isDone() {
+			return this.done;
+		}
+
+		/**
+		 * @return the response that was sent, or null if there was none
+		 */
+		ByteBuffer getResponse() {
+			ByteBuffer r = this.response;
+			return r == null ? null : r.duplicate();
+		}
+	}
+
+	private static final class Key {
+
+		private final int messageID;
+
+		private final long token;
+
+		private final int tokenLength;
+
+		Key(CoapPacket msg) {
+			this.messageID = msg.getMessageID();
+			this.token = msg.getToken();
+			this.tokenLength = msg.getTokenLength();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * this.messageID + this.tokenLength)
+					+ (int) (this.token ^ (this.token >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return this.messageID == other.messageID
+					&& this.token == other.token
+					&& this.tokenLength == other.tokenLength;
+		}
+	}
+}
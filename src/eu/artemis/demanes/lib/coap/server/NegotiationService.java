@@ -0,0 +1,92 @@
+/**
+ * File NegotiationService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * Internal class NegotiationService
+ * 
+ * The {@link CoapProxyConstants#NEGOTIATION_SERVICE}. A GET with the urn of a
+ * service as argument returns the prefix of requests to it in the negotiated
+ * format, or an empty response if the service is not registered. Clients ask once for
+ * every service and keep the answer, so they send short requests without
+ * sharing a URNTranslator with the server.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class NegotiationService implements RESTService {
+
+	private static final Charset URN_CHARSET = Charset.forName("ISO-8859-1");
+
+	private final CoapServiceBroker broker;
+
+	NegotiationService(CoapServiceBroker broker) {
+		this.broker = broker;
+	}
+
+	@Override
+	public ByteBuffer get(ByteBuffer input) {
+		// An empty answer rather than none, so the client need not time out
+		if (input == null || !input.hasRemaining())
+			return ByteBuffer.allocate(0);
+
+		byte[] urn = new byte[input.remaining()];
+		input.get(urn);
+
+		try {
+			byte[] prefix = this.broker.getNegotiatedPrefix(new ANES_URN(
+					new String(urn, URN_CHARSET).trim()));
+			return prefix == null ? ByteBuffer.allocate(0) : ByteBuffer
+					.wrap(prefix);
+		} catch (URISyntaxException e) {
+			return ByteBuffer.allocate(0);
+		}
+	}
+
+	@Override
+	public ByteBuffer put(ByteBuffer input) {
+		return null;
+	}
+
+	@Override
+	public ByteBuffer post(ByteBuffer input) {
+		return null;
+	}
+
+	@Override
+	public ByteBuffer delete(ByteBuffer input) {
+		return null;
+	}
+
+	@Override
+	public ANES_URN identifier() {
+		return CoapProxyConstants.NEGOTIATION_SERVICE;
+	}
+}
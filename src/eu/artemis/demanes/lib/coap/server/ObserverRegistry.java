@@ -0,0 +1,218 @@
+/**
+ * File ObserverRegistry.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * Internal class ObserverRegistry
+ * 
+ * The clients that observe each service, identified by the token of their
+ * GET request. Every observation numbers its own notifications, so a client
+ * sees its sequence grow by one each time (modulo 2^24). A client that no
+ * longer knows the observation rejects a notification with an RST, which is
+ * found by the message ID of the last notification.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class ObserverRegistry {
+
+	private final ConcurrentMap<RESTService, List<Observer>> observers = new ConcurrentHashMap<RESTService, List<Observer>>();
+
+	/**
+	 * Register (or refresh) the sender of the request as an observer
+	 * 
+	 * @param service
+	 * @param request
+	 * @param argument
+	 *            the argument of the request, which is copied
+	 */
+	void add(RESTService service, CoapPacket request, ByteBuffer argument) {
+		List<Observer> list = this.observers.get(service);
+		if (list == null) {
+			List<Observer> created = new CopyOnWriteArrayList<Observer>();
+			list = this.observers.putIfAbsent(service, created);
+			if (list == null)
+				list = created;
+		}
+
+		Observer observer = new Observer(request, argument);
+
+		// A refresh goes on with the sequence of the observation
+		for (Observer previous : list)
+			if (previous.equals(observer))
+				observer.sequence.set(previous.sequence.get());
+
+		list.remove(observer);
+		list.add(observer);
+	}
+
+	/**
+	 * @param service
+	 * @param request
+	 *            with the token of the observer
+	 * @return true if it was observing
+	 */
+	boolean remove(RESTService service, CoapPacket request) {
+		List<Observer> list = this.observers.get(service);
+		return list != null && list.remove(new Observer(request, null));
+	}
+
+	/**
+	 * Forget all observers of a service
+	 * 
+	 * @param service
+	 */
+	void removeAll(RESTService service) {
+		this.observers.remove(service);
+	}
+
+	/**
+	 * Forget the observer that got the notification with the message ID
+	 * 
+	 * @param messageID
+	 *            of the notification that was rejected
+	 * @return true if there was one
+	 */
+	boolean reset(int messageID) {
+		for (List<Observer> list : this.observers.values())
+			for (Observer observer : list)
+				if (observer.messageID == messageID)
+					return list.remove(observer);
+
+		return false;
+	}
+
+	/**
+	 * @param service
+	 * @param request
+	 * @return the observer that sent the request, or null if it does not
+	 *         observe the service
+	 */
+	Observer find(RESTService service, CoapPacket request) {
+		List<Observer> list = this.observers.get(service);
+		if (list == null)
+			return null;
+
+		Observer observer = new Observer(request, null);
+		for (Observer o : list)
+			if (o.equals(observer))
+				return o;
+
+		return null;
+	}
+
+	/**
+	 * @param service
+	 * @return the observers of the service
+	 */
+	List<Observer> get(RESTService service) {
+		List<Observer> list = this.observers.get(service);
+		return list == null ? Collections.<Observer> emptyList() : list;
+	}
+
+	/**
+	 * A client observing a service
+	 */
+	static final class Observer {
+
+		private final long token;
+
+		private final int tokenLength;
+
+		private final ByteBuffer argument;
+
+		private final AtomicInteger sequence = new AtomicInteger(2);
+
+		// Of the last notification, to match an RST with
+		private volatile int messageID = -1;
+
+		Observer(CoapPacket request, ByteBuffer argument) {
+			this.token = request.getToken();
+			this.tokenLength = request.getTokenLength();
+
+			if (argument == null) {
+				this.argument = null;
+			} else {
+				ByteBuffer copy = ByteBuffer.allocate(argument.remaining());
+				copy.put(argument.duplicate()).flip();
+				this.argument = copy.asReadOnlyBuffer();
+			}
+		}
+
+		long getToken() {
+			return token;
+		}
+
+		int getTokenLength() {
+			return tokenLength;
+		}
+
+		/**
+		 * @return the Observe option for the next response, which only grows
+		 *         (modulo 2^24) so the client can put notifications in order
+		 */
+		int nextSequence() {
+			return this.sequence.incrementAndGet() & 0xFFFFFF;
+		}
+
+		/**
+		 * @param messageID
+		 *            of the notification that is sent to the observer
+		 */
+		void sent(int messageID) {
+			this.messageID = messageID;
+		}
+
+		/**
+		 * @return a fresh view on the argument of the GET, or null
+		 */
+		ByteBuffer getArgument() {
+			return this.argument == null ? null : this.argument.duplicate();
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (this.token ^ (this.token >>> 32)) + this.tokenLength;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Observer))
+				return false;
+
+			Observer other = (Observer) obj;
+			return this.token == other.token
+					&& this.tokenLength == other.tokenLength;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * File ResponseCache.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import eu.artemis.demanes.lib.coap.server.api.CacheableService;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * Internal class ResponseCache
+ * 
+ * Keeps the responses of services to GET requests, keyed by the service and
+ * the argument bytes. Entries expire after their Max-Age, and when the cache
+ * is full the least recently used entry is dropped.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class ResponseCache {
+
+	private static final ByteBuffer NO_ARGUMENT = ByteBuffer.allocate(0);
+
+	private final long defaultMaxAge;
+
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of responses to keep
+	 * @param defaultMaxAge
+	 *            the seconds a response stays fresh for services that do not
+	 *            implement CacheableService
+	 */
+	ResponseCache(final int capacity, long defaultMaxAge) {
+		this.defaultMaxAge = defaultMaxAge;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, ResponseCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param service
+	 * @return the seconds a response of the service stays fresh, 0 if it
+	 *         should not be cached
+	 */
+	long getMaxAge(RESTService service) {
+		if (service instanceof CacheableService)
+			return ((CacheableService) service).getMaxAge();
+
+		return this.defaultMaxAge;
+	}
+
+	/**
+	 * @param service
+	 * @param argument
+	 * @return the fresh entry for this request, or null
+	 */
+	synchronized Entry get(RESTService service, ByteBuffer argument) {
+		Key key = new Key(service, argument == null ? NO_ARGUMENT : argument);
+		Entry entry = this.entries.get(key);
+
+		if (entry != null && entry.getMaxAge() <= 0) {
+			this.entries.remove(key);
+			return null;
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Keep a copy of the response. Neither buffer is changed.
+	 * 
+	 * @param service
+	 * @param argument
+	 * @param response
+	 * @param maxAge
+	 *            in seconds
+	 */
+	synchronized void put(RESTService service, ByteBuffer argument,
+			ByteBuffer response, long maxAge) {
+		this.entries.put(new Key(service, copy(argument)), new Entry(
+				copy(response), System.nanoTime()
+						+ TimeUnit.SECONDS.toNanos(maxAge)));
+	}
+
+	/**
+	 * Remove all responses of the service
+	 * 
+	 * @param service
+	 */
+	synchronized void invalidate(RESTService service) {
+		Iterator<Key> it = this.entries.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().service == service)
+				it.remove();
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		if (buffer == null)
+			return NO_ARGUMENT;
+
+		ByteBuffer ret = ByteBuffer.allocate(buffer.remaining());
+		ret.put(buffer.duplicate()).flip();
+		return ret;
+	}
+
+	/**
+	 * A cached response
+	 */
+	static final class Entry {
+
+		private final ByteBuffer response;
+
+		private final long expires;
+
+		private Entry(ByteBuffer response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return a read-only view on the response
+		 */
+		ByteBuffer getResponse() {
+			return this.response.asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return the number of seconds the response is still fresh
+		 */
+		long getMaxAge() {
+			return TimeUnit.NANOSECONDS.toSeconds(this.expires
+					- System.nanoTime());
+		}
+	}
+
+	private static final class Key {
+
+		private final RESTService service;
+
+		private final ByteBuffer argument;
+
+		Key(RESTService service, ByteBuffer argument) {
+			this.service = service;
+			this.argument = argument;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(this.service)
+					+ this.argument.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return this.service == other.service
+					&& this.argument.equals(other.argument);
+		}
+	}
+}
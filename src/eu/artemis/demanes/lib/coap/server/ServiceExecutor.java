@@ -0,0 +1,171 @@
+/**
+ * File ServiceExecutor.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * Internal class ServiceExecutor
+ * 
+ * Runs service invocations on a pool of worker threads, so a slow service does
+ * not hold up the receive thread of the connector. Every service has its own
+ * bounded queue of invocations. The invocations of one service run one after
+ * the other, like they did on the receive thread, so services do not have to
+ * be thread safe. Different services run in parallel.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class ServiceExecutor {
+
+	/* Invocations a worker handles for one service before moving on */
+	private static final int BATCH_SIZE = 8;
+
+	private final ExecutorService workers;
+
+	private final int queueSize;
+
+	private final ConcurrentMap<RESTService, Mailbox> mailboxes = new ConcurrentHashMap<RESTService, Mailbox>();
+
+	/**
+	 * @param threads
+	 *            the number of worker threads
+	 * @param queueSize
+	 *            the number of invocations that may wait for each service
+	 */
+	ServiceExecutor(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+
+		this.queueSize = queueSize;
+		this.workers = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "CoapMessageServer worker "
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Queue an invocation of the given service
+	 * 
+	 * @param service
+	 * @param invocation
+	 * @return false if the queue of the service is full, or the executor is
+	 *         shut down
+	 */
+	boolean submit(RESTService service, Runnable invocation) {
+		Mailbox mailbox = this.mailboxes.get(service);
+		if (mailbox == null) {
+			Mailbox created = new Mailbox();
+			mailbox = this.mailboxes.putIfAbsent(service, created);
+			if (mailbox == null)
+				mailbox = created;
+		}
+
+		return mailbox.offer(invocation);
+	}
+
+	/**
+	 * Forget the queue of a service that is no longer registered. Invocations
+	 * that were already accepted still run.
+	 * 
+	 * @param service
+	 */
+	void remove(RESTService service) {
+		this.mailboxes.remove(service);
+	}
+
+	/**
+	 * Stop the workers, invocations that have not started are dropped
+	 */
+	void shutdown() {
+		this.workers.shutdownNow();
+		this.mailboxes.clear();
+	}
+
+	/**
+	 * The queue of a single service. It is on the pool of workers at most
+	 * once, which is what keeps the invocations of a service in order.
+	 */
+	private final class Mailbox implements Runnable {
+
+		private final ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(
+				queueSize);
+
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		boolean offer(Runnable invocation) {
+			if (!this.queue.offer(invocation))
+				return false;
+
+			if (this.schedule())
+				return true;
+
+			// Shut down, nobody is going to run it
+			this.queue.remove(invocation);
+			return false;
+		}
+
+		private boolean schedule() {
+			if (!this.scheduled.compareAndSet(false, true))
+				return true;
+
+			try {
+				workers.execute(this);
+				return true;
+			} catch (RejectedExecutionException e) {
+				this.scheduled.set(false);
+				return false;
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				Runnable invocation;
+				for (int i = 0; i < BATCH_SIZE
+						&& (invocation = this.queue.poll()) != null; i++)
+					invocation.run();
+			} finally {
+				this.scheduled.set(false);
+
+				// Something may have been added after the last poll
+				if (!this.queue.isEmpty())
+					this.schedule();
+			}
+		}
+	}
+}
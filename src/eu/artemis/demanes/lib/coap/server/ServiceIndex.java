@@ -0,0 +1,285 @@
+/**
+ * File ServiceIndex.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.URNTranslator;
+
+/**
+ * Internal class ServiceIndex
+ * 
+ * Immutable snapshot of the registered services. The broker never changes a
+ * snapshot, it builds a new one and swaps it in, so lookups need no locks and
+ * never see a half updated registry.
+ * 
+ * Next to the map of identifiers it keeps a routing index that finds a service
+ * directly from the URN bytes at the start of a request payload, without
+ * building a String or ANES_URN. It is
+ * an open addressing hash table keyed by the textual form of the service
+ * identifiers, so a lookup costs one hash over the prefix and a byte compare.
+ * Requests in the reduced format are routed by a table indexed by the
+ * translator byte, which is a single array load.
+ * 
+ * Every identifier that was ever registered also has a negotiated ID, handed
+ * out in order of registration. IDs are never reused, so a client that still
+ * uses the ID of a service that went away does not reach another service.
+ * Requests in the negotiated format are routed by a table indexed by the ID.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+final class ServiceIndex {
+
+	/* The handler reads URN bytes as ISO-8859-1 characters */
+	private static final Charset URN_CHARSET = Charset.forName("ISO-8859-1");
+
+	static final ServiceIndex EMPTY = new ServiceIndex(
+			Collections.<ANES_URN, RESTService> emptyMap(), null,
+			Collections.<ANES_URN, Integer> emptyMap());
+
+	private final Map<ANES_URN, RESTService> serviceMap;
+
+	private final URNTranslator translator;
+
+	private final byte[][] keys;
+
+	private final RESTService[] services;
+
+	private final int mask;
+
+	private final ANES_URN[] compactURNs = new ANES_URN[256];
+
+	private final RESTService[] compactServices = new RESTService[256];
+
+	private final Map<ANES_URN, Integer> ids;
+
+	private final ANES_URN[] negotiatedURNs;
+
+	private final RESTService[] negotiatedServices;
+
+	private ServiceIndex(Map<ANES_URN, RESTService> serviceMap,
+			URNTranslator translator, Map<ANES_URN, Integer> ids) {
+		this.serviceMap = serviceMap;
+		this.translator = translator;
+		this.ids = ids;
+
+		// At most half full, so probe sequences stay short
+		int size = 8;
+		while (size < 2 * serviceMap.size())
+			size <<= 1;
+
+		this.keys = new byte[size][];
+		this.services = new RESTService[size];
+		this.mask = size - 1;
+
+		for (RESTService s : serviceMap.values()) {
+			byte[] key = s.identifier().toString().getBytes(URN_CHARSET);
+
+			int i = hash(ByteBuffer.wrap(key), 0, key.length) & this.mask;
+			while (this.keys[i] != null)
+				i = (i + 1) & this.mask;
+
+			this.keys[i] = key;
+			this.services[i] = s;
+		}
+
+		if (translator != null)
+			for (int b = 0; b < 256; b++) {
+				ANES_URN urn = translator.byteToURN((byte) b);
+				this.compactURNs[b] = urn;
+				this.compactServices[b] = (urn == null ? null : serviceMap
+						.get(urn));
+			}
+
+		this.negotiatedURNs = new ANES_URN[ids.size()];
+		this.negotiatedServices = new RESTService[ids.size()];
+		for (Map.Entry<ANES_URN, Integer> e : ids.entrySet()) {
+			this.negotiatedURNs[e.getValue()] = e.getKey();
+			this.negotiatedServices[e.getValue()] = serviceMap.get(e.getKey());
+		}
+	}
+
+	/**
+	 * @param s
+	 * @return a snapshot that also holds s, replacing any service with the
+	 *         same identifier
+	 */
+	ServiceIndex with(RESTService s) {
+		Map<ANES_URN, RESTService> copy = new HashMap<ANES_URN, RESTService>(
+				this.serviceMap);
+		copy.put(s.identifier(), s);
+
+		Map<ANES_URN, Integer> newIDs = this.ids;
+		if (!newIDs.containsKey(s.identifier())) {
+			newIDs = new HashMap<ANES_URN, Integer>(this.ids);
+			newIDs.put(s.identifier(), this.ids.size());
+			newIDs = Collections.unmodifiableMap(newIDs);
+		}
+
+		return new ServiceIndex(Collections.unmodifiableMap(copy),
+				this.translator, newIDs);
+	}
+
+	/**
+	 * @param s
+	 * @return a snapshot without s, or this one if s is not registered under
+	 *         its identifier (any more)
+	 */
+	ServiceIndex without(RESTService s) {
+		if (this.serviceMap.get(s.identifier()) != s)
+			return this;
+
+		Map<ANES_URN, RESTService> copy = new HashMap<ANES_URN, RESTService>(
+				this.serviceMap);
+		copy.remove(s.identifier());
+		return new ServiceIndex(Collections.unmodifiableMap(copy),
+				this.translator, this.ids);
+	}
+
+	/**
+	 * @param ut
+	 * @return a snapshot with the same services, that routes the reduced
+	 *         format with the given translator
+	 */
+	ServiceIndex withTranslator(URNTranslator ut) {
+		return new ServiceIndex(this.serviceMap, ut, this.ids);
+	}
+
+	/**
+	 * @param identifier
+	 * @return the service, or null if there is none
+	 */
+	RESTService get(ANES_URN identifier) {
+		return this.serviceMap.get(identifier);
+	}
+
+	/**
+	 * @return the number of registered services
+	 */
+	int size() {
+		return this.serviceMap.size();
+	}
+
+	/**
+	 * Find the service whose identifier is exactly the bytes from (inclusive)
+	 * to (exclusive) of the buffer.
+	 * 
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 * @return the service, or null if there is none
+	 */
+	RESTService get(ByteBuffer buffer, int from, int to) {
+		int i = hash(buffer, from, to) & this.mask;
+
+		byte[] key;
+		while ((key = this.keys[i]) != null) {
+			if (matches(key, buffer, from, to))
+				return this.services[i];
+
+			i = (i + 1) & this.mask;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param id
+	 * @return whether the translator knows this byte
+	 */
+	boolean isCompactID(byte id) {
+		return this.compactURNs[id & 0xFF] != null;
+	}
+
+	/**
+	 * @param id
+	 * @return the urn the translator gives for this byte, or null
+	 */
+	ANES_URN getCompactURN(byte id) {
+		return this.compactURNs[id & 0xFF];
+	}
+
+	/**
+	 * @param id
+	 * @return the registered service for this translator byte, or null
+	 */
+	RESTService get(byte id) {
+		return this.compactServices[id & 0xFF];
+	}
+
+	/**
+	 * @param identifier
+	 * @return the negotiated ID of the identifier, or -1 if it was never
+	 *         registered
+	 */
+	int getNegotiatedID(ANES_URN identifier) {
+		Integer id = this.ids.get(identifier);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 * @return the identifier with this negotiated ID, or null if there is none
+	 */
+	ANES_URN getNegotiatedURN(int id) {
+		return (id >= 0 && id < this.negotiatedURNs.length ? this.negotiatedURNs[id]
+				: null);
+	}
+
+	/**
+	 * @param id
+	 * @return the registered service with this negotiated ID, or null
+	 */
+	RESTService getNegotiated(int id) {
+		return (id >= 0 && id < this.negotiatedServices.length ? this.negotiatedServices[id]
+				: null);
+	}
+
+	private static boolean matches(byte[] key, ByteBuffer buffer, int from,
+			int to) {
+		if (key.length != to - from)
+			return false;
+
+		for (int i = 0; i < key.length; i++)
+			if (key[i] != buffer.get(from + i))
+				return false;
+
+		return true;
+	}
+
+	/* FNV-1a */
+	private static int hash(ByteBuffer buffer, int from, int to) {
+		int h = 0x811C9DC5;
+		for (int i = from; i < to; i++) {
+			h ^= buffer.get(i) & 0xFF;
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,46 @@
+/**
+ * File CacheableService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server.api;
+
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * CacheableService
+ * 
+ * A RESTService whose GET responses may be reused for a while. If the server
+ * has a response cache, the response to a GET on this service is kept for the
+ * given number of seconds, and identical requests are answered from the cache
+ * without calling the service. A PUT, POST or DELETE on the service removes
+ * its responses from the cache.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface CacheableService extends RESTService {
+
+	/**
+	 * @return the number of seconds a GET response stays fresh, 0 if the
+	 *         responses should not be cached
+	 */
+	public long getMaxAge();
+
+}
@@ -0,0 +1,49 @@
+/**
+ * File ObservableService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server.api;
+
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * ObservableService
+ * 
+ * A RESTService whose state can be observed (RFC 7641). Clients that send a
+ * GET with the Observe option get a notification with the new response every
+ * time the service tells its listeners that it has changed.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface ObservableService extends RESTService {
+
+	/**
+	 * @param listener
+	 *            to call whenever the response to a GET may have changed
+	 */
+	public void addChangeListener(ServiceChangeListener listener);
+
+	/**
+	 * @param listener
+	 */
+	public void removeChangeListener(ServiceChangeListener listener);
+
+}
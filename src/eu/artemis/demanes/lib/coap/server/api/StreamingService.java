@@ -0,0 +1,56 @@
+/**
+ * File StreamingService.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server.api;
+
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * StreamingService
+ * 
+ * A RESTService that takes the argument of a PUT or POST that arrives in
+ * blocks (RFC 7959) piece by piece, instead of having the server collect the
+ * whole argument first. Requests that fit in a single message still go to
+ * {@link #put} and {@link #post}.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface StreamingService extends RESTService {
+
+	/**
+	 * Start receiving the argument of a PUT request in blocks
+	 * 
+	 * @return the stream to write the blocks to
+	 * @throws ServiceException
+	 */
+	public UploadStream openPut() throws ServiceException;
+
+	/**
+	 * Start receiving the argument of a POST request in blocks
+	 * 
+	 * @return the stream to write the blocks to
+	 * @throws ServiceException
+	 */
+	public UploadStream openPost() throws ServiceException;
+
+}
@@ -0,0 +1,62 @@
+/**
+ * File UploadStream.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coap.server.api;
+
+import java.nio.ByteBuffer;
+
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * UploadStream
+ * 
+ * The argument of a block-wise PUT or POST request to a StreamingService. The
+ * blocks are written in order, and the stream is either closed after the last
+ * one or aborted when the transfer is given up.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public interface UploadStream {
+
+	/**
+	 * @param block
+	 *            the next part of the argument, between position and limit.
+	 *            The buffer is only valid during the call.
+	 * @throws ServiceException
+	 */
+	public void write(ByteBuffer block) throws ServiceException;
+
+	/**
+	 * The whole argument has been written
+	 * 
+	 * @return the response, like that of put or post
+	 * @throws ServiceException
+	 */
+	public ByteBuffer close() throws ServiceException;
+
+	/**
+	 * The rest of the argument will not come. Called from the timer of the
+	 * server when the client stops sending blocks.
+	 */
+	public void abort();
+
+}
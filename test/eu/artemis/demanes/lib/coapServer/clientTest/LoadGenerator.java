@@ -0,0 +1,333 @@
+/**
+ * File LoadGenerator.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.clientTest;
+
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import aQute.bnd.annotation.component.Activate;
+import aQute.bnd.annotation.component.Component;
+import aQute.bnd.annotation.component.Deactivate;
+import aQute.bnd.annotation.component.Reference;
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.metrics.LatencyHistogram;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+import eu.artemis.demanes.lib.services.ServiceProvider;
+
+/**
+ * LoadGenerator
+ * 
+ * Sends requests to services through the COAP client, and reports the
+ * throughput and latency percentiles. The component properties are:
+ * <ul>
+ * <li>load.services: the URNs of the services, comma separated
+ * (urn:dmns:par)</li>
+ * <li>load.concurrency: the number of requests that are sent at the same
+ * time, each by a thread of its own (1)</li>
+ * <li>load.rate: the requests per second of all threads together, 0 to send
+ * as fast as the responses come (0)</li>
+ * <li>load.mix: the weights of the request codes, for example get=8,post=2
+ * (get=1,post=1)</li>
+ * <li>load.payload: the size of the arguments in bytes, or a range like 16-256
+ * (16)</li>
+ * <li>load.duration: the seconds to run, 0 to run until deactivated (0)</li>
+ * <li>load.report: the seconds between reports (10)</li>
+ * </ul>
+ * 
+ * With a rate, the latency of a request is counted from the time it should
+ * have been sent, so a server that falls behind shows in the percentiles.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+@Component
+public class LoadGenerator {
+
+	public static final String SERVICES_PROPERTY = "load.services";
+
+	public static final String CONCURRENCY_PROPERTY = "load.concurrency";
+
+	public static final String RATE_PROPERTY = "load.rate";
+
+	public static final String MIX_PROPERTY = "load.mix";
+
+	public static final String PAYLOAD_PROPERTY = "load.payload";
+
+	public static final String DURATION_PROPERTY = "load.duration";
+
+	public static final String REPORT_PROPERTY = "load.report";
+
+	private static final String[] CODES = { "get", "put", "post", "delete" };
+
+	private ServiceProvider serviceProvider;
+
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	private Thread reporter;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final AtomicLong succeeded = new AtomicLong();
+
+	private final AtomicLong empty = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	// The time the next request should be sent, with a rate
+	private final AtomicLong nextSlot = new AtomicLong();
+
+	private RESTService[] services;
+
+	private int[] mix;
+
+	private int minPayload;
+
+	private int maxPayload;
+
+	private long interval;
+
+	private long started;
+
+	private long deadline;
+
+	@Reference(target = "(messageType=COAP)")
+	public void setServiceProvider(ServiceProvider sp) {
+		this.serviceProvider = sp;
+	}
+
+	@Activate
+	public void start(Map<String, ?> properties) throws URISyntaxException {
+		String[] urns = getString(properties, SERVICES_PROPERTY, "urn:dmns:par")
+				.split(",");
+		this.services = new RESTService[urns.length];
+		for (int i = 0; i < urns.length; i++)
+			this.services[i] = this.serviceProvider.resolve(new ANES_URN(urns[i]
+					.trim()));
+
+		this.mix = parseMix(getString(properties, MIX_PROPERTY,
+				"get=1,post=1"));
+
+		String[] payload = getString(properties, PAYLOAD_PROPERTY, "16")
+				.split("-");
+		this.minPayload = Integer.parseInt(payload[0].trim());
+		this.maxPayload = Integer.parseInt(payload[payload.length - 1].trim());
+
+		int rate = getInt(properties, RATE_PROPERTY, 0);
+		this.interval = (rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0);
+
+		int duration = getInt(properties, DURATION_PROPERTY, 0);
+		this.started = System.nanoTime();
+		this.nextSlot.set(this.started);
+		this.deadline = (duration > 0 ? this.started
+				+ TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE);
+
+		int concurrency = getInt(properties, CONCURRENCY_PROPERTY, 1);
+		for (int i = 0; i < concurrency; i++) {
+			Thread worker = new Thread(new Worker(new Random(i)),
+					"LoadGenerator " + i);
+			this.workers.add(worker);
+			worker.start();
+		}
+
+		final long reportInterval = TimeUnit.SECONDS.toMillis(getInt(
+				properties, REPORT_PROPERTY, 10));
+		this.reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(reportInterval);
+						System.out.println(report());
+					}
+				} catch (InterruptedException e) {
+					// Done
+				}
+			}
+		}, "LoadGenerator report");
+		this.reporter.setDaemon(true);
+		this.reporter.start();
+	}
+
+	@Deactivate
+	public void stop() {
+		for (Thread worker : this.workers)
+			worker.interrupt();
+
+		this.await();
+		this.reporter.interrupt();
+
+		System.out.println(report());
+	}
+
+	/**
+	 * Wait until the workers are done, which is after the load.duration
+	 */
+	public void await() {
+		try {
+			for (Thread worker : this.workers)
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the throughput and latencies since the start
+	 */
+	public String report() {
+		long now = Math.min(System.nanoTime(), this.deadline);
+		double seconds = (now - this.started) / 1e9;
+		long requests = this.latency.getCount();
+
+		return String.format("LoadGenerator: %d requests in %.1f s, "
+				+ "%.1f requests/s (%d ok, %d empty, %d failed), "
+				+ "latency mean %d us, p50 %d us, p90 %d us, p99 %d us, "
+				+ "p99.9 %d us", requests, seconds, requests / seconds,
+				this.succeeded.get(), this.empty.get(), this.failed.get(),
+				micros(this.latency.getMean()),
+				micros(this.latency.getPercentile(50)),
+				micros(this.latency.getPercentile(90)),
+				micros(this.latency.getPercentile(99)),
+				micros(this.latency.getPercentile(99.9)));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static int getInt(Map<String, ?> properties, String key,
+			int defaultValue) {
+		return Integer.parseInt(getString(properties, key,
+				String.valueOf(defaultValue)).trim());
+	}
+
+	private static String getString(Map<String, ?> properties, String key,
+			String defaultValue) {
+		Object value = (properties == null ? null : properties.get(key));
+		return value == null ? defaultValue : value.toString();
+	}
+
+	/**
+	 * @param mix
+	 *            like get=8,post=2
+	 * @return the cumulative weights of the CODES
+	 */
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[CODES.length];
+		for (String part : mix.split(",")) {
+			String[] kv = part.split("=");
+			for (int i = 0; i < CODES.length; i++)
+				if (CODES[i].equalsIgnoreCase(kv[0].trim()))
+					weights[i] = Integer.parseInt(kv[1].trim());
+		}
+
+		for (int i = 1; i < CODES.length; i++)
+			weights[i] += weights[i - 1];
+
+		if (weights[CODES.length - 1] <= 0)
+			throw new IllegalArgumentException("Invalid load.mix " + mix);
+
+		return weights;
+	}
+
+	private class Worker implements Runnable {
+
+		private final Random random;
+
+		Worker(Random random) {
+			this.random = random;
+		}
+
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				long start = System.nanoTime();
+
+				// Open loop, every request has its own time to be sent
+				if (interval > 0) {
+					start = nextSlot.getAndAdd(interval);
+					long now;
+					while ((now = System.nanoTime()) < start
+							&& !Thread.currentThread().isInterrupted())
+						LockSupport.parkNanos(start - now);
+				}
+
+				if (start >= deadline || Thread.currentThread().isInterrupted())
+					return;
+
+				this.request(start);
+			}
+		}
+
+		private void request(long start) {
+			RESTService service = services[this.random.nextInt(services.length)];
+
+			int size = minPayload
+					+ this.random.nextInt(maxPayload - minPayload + 1);
+			byte[] argument = new byte[size];
+			this.random.nextBytes(argument);
+
+			int code = 0;
+			int pick = this.random.nextInt(mix[mix.length - 1]);
+			while (pick >= mix[code])
+				code++;
+
+			try {
+				ByteBuffer input = ByteBuffer.wrap(argument);
+				ByteBuffer response;
+				switch (code) {
+				case 0:
+					response = service.get(input);
+					break;
+				case 1:
+					response = service.put(input);
+					break;
+				case 2:
+					response = service.post(input);
+					break;
+				default:
+					response = service.delete(input);
+					break;
+				}
+
+				if (response == null)
+					empty.incrementAndGet();
+				else
+					succeeded.incrementAndGet();
+			} catch (ServiceException e) {
+				failed.incrementAndGet();
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+			}
+
+			latency.record(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * File RecordingConnector.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.MessageDispatcherRegistry;
+import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+
+/**
+ * RecordingConnector
+ * 
+ * Keeps what is written to it, so a test can check the messages that are
+ * sent on their own, like separate responses and ACKs. The test plays the
+ * other side, by delivering its answers to the dispatchers.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+class RecordingConnector implements SocketConnector,
+		MessageDispatcherRegistry {
+
+	private final BlockingQueue<byte[]> written = new LinkedBlockingQueue<byte[]>();
+
+	private final Set<MessageDispatcher> dispatchers = new CopyOnWriteArraySet<MessageDispatcher>();
+
+	@Override
+	public MessageDispatcherRegistry write(byte[] msg) {
+		this.written.add(msg.clone());
+		return this;
+	}
+
+	@Override
+	public void addDispatcher(MessageDispatcher d) {
+		this.dispatchers.add(d);
+	}
+
+	@Override
+	public void removeDispatcher(MessageDispatcher d) {
+		this.dispatchers.remove(d);
+	}
+
+	@Override
+	public boolean containsDispatcher(MessageDispatcher d) {
+		return this.dispatchers.contains(d);
+	}
+
+	/**
+	 * @return whether any dispatcher listens to this connector
+	 */
+	boolean hasDispatchers() {
+		return !this.dispatchers.isEmpty();
+	}
+
+	/**
+	 * Pass a message to the dispatchers, as if it came from the other side
+	 * 
+	 * @param msg
+	 */
+	void deliver(ByteBuffer msg) {
+		for (MessageDispatcher d : this.dispatchers)
+			d.dispatchMessage(msg.duplicate());
+	}
+
+	/**
+	 * @param millis
+	 * @return the next written message, or null if none came in time
+	 */
+	CoapPacket next(long millis) throws InterruptedException {
+		byte[] msg = this.written.poll(millis, TimeUnit.MILLISECONDS);
+		if (msg == null)
+			return null;
+
+		CoapPacket packet = new CoapPacket();
+		return packet.decode(ByteBuffer.wrap(msg)) ? packet : null;
+	}
+}
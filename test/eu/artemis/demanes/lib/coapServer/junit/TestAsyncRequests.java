@@ -0,0 +1,180 @@
+/**
+ * File TestAsyncRequests.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.api.AsyncRESTService;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestAsyncRequests
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestAsyncRequests {
+
+	@Test
+	public void testGetAsync() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageClient client = start(connector);
+
+		AsyncRESTService service = client.resolveAsync(new ANES_URN("dmns",
+				"echo"));
+		ResponseFuture future = service.getAsync(ByteBuffer.wrap("a"
+				.getBytes()));
+
+		CoapPacket request = connector.next(500);
+		assertEquals(CoapRequestCode.GET.getValue(), request.getCode());
+		assertEquals("urn:dmns:echo?a", new String(request.copyPayload()));
+		assertFalse(future.isDone());
+
+		connector.deliver(response(request, CoapResponseCode.Content_205,
+				"r"));
+		assertEquals(ByteBuffer.wrap("r".getBytes()),
+				future.get(500, TimeUnit.MILLISECONDS));
+
+		client.stop();
+	}
+
+	@Test
+	public void testListeners() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageClient client = start(connector);
+		AsyncRESTService service = client.resolveAsync(new ANES_URN("dmns",
+				"echo"));
+
+		// Added before the response comes in
+		Listener before = new Listener();
+		ResponseFuture future = service.postAsync(ByteBuffer.wrap("a"
+				.getBytes()));
+		future.addListener(before);
+		connector.deliver(response(connector.next(500),
+				CoapResponseCode.Content_205, "r"));
+		assertEquals(ByteBuffer.wrap("r".getBytes()),
+				before.results.poll(500, TimeUnit.MILLISECONDS));
+
+		// Added after the response, called right away
+		Listener after = new Listener();
+		future.addListener(after);
+		assertEquals(ByteBuffer.wrap("r".getBytes()), after.results.poll());
+
+		// An error response fails the future and its listeners
+		Listener failed = new Listener();
+		future = service.deleteAsync(null);
+		future.addListener(failed);
+		connector.deliver(response(connector.next(500),
+				CoapResponseCode.Not_Found_404, null));
+		assertNotNull(failed.failures.poll(500, TimeUnit.MILLISECONDS));
+		try {
+			future.get();
+			fail("The future should fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServiceException);
+		}
+
+		client.stop();
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageClient client = start(connector);
+		AsyncRESTService service = client.resolveAsync(new ANES_URN("dmns",
+				"echo"));
+
+		long start = System.currentTimeMillis();
+		Listener listener = new Listener();
+		ResponseFuture future = service.putAsync(ByteBuffer.wrap("a"
+				.getBytes()));
+		future.addListener(listener);
+		connector.next(500);
+
+		// Nobody answers, so the request completes without a response
+		assertSame(Listener.NONE,
+				listener.results.poll(3000, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertTrue(future.isDone());
+		assertNull(future.get());
+
+		client.stop();
+	}
+
+	private static CoapMessageClient start(RecordingConnector connector) {
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(connector, null);
+		client.start(null);
+		return client;
+	}
+
+	private static ByteBuffer response(CoapPacket request,
+			CoapResponseCode code, String payload) {
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.NON,
+				code.getValue(), (request.getMessageID() + 1) & 0xFFFF);
+		response.setToken(request.getToken(), request.getTokenLength());
+		return response.encode(payload == null ? null : ByteBuffer
+				.wrap(payload.getBytes()));
+	}
+
+	private static class Listener implements ResponseListener {
+
+		// Stands in for a null response, the queue does not take null
+		static final ByteBuffer NONE = ByteBuffer.allocate(0);
+
+		final BlockingQueue<ByteBuffer> results = new LinkedBlockingQueue<ByteBuffer>();
+
+		final BlockingQueue<ServiceException> failures = new LinkedBlockingQueue<ServiceException>();
+
+		@Override
+		public void completed(ByteBuffer response) {
+			this.results.add(response == null ? NONE : response);
+		}
+
+		@Override
+		public void failed(ServiceException e) {
+			this.failures.add(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * File TestBatch.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.junit.TestResponseCache.CountingService;
+
+/**
+ * TestBatch
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestBatch {
+
+	private CoapMessageServer server;
+
+	private CountingService service;
+
+	@Before
+	public void setUp() {
+		service = new CountingService();
+		server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(null);
+	}
+
+	@Test
+	public void testBatchInOneResponse() {
+		ByteBuffer batch = ByteBuffer.allocate(64);
+		batch.put(CoapProxyConstants.BATCH_MARKER);
+		invocation(batch, CoapRequestCode.GET, "urn:dmns:cnt?a");
+		invocation(batch, CoapRequestCode.PUT, "urn:dmns:none?b");
+		invocation(batch, CoapRequestCode.GET, "urn:dmns:cnt?c");
+		batch.flip();
+
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(new CoapPacket()
+				.reset(CoapPacketType.NON, CoapRequestCode.POST.getValue(), 1)
+				.encode(batch))));
+		assertEquals(2, service.calls);
+
+		ByteBuffer in = response.getPayload();
+		assertEquals(CoapProxyConstants.BATCH_MARKER, in.get());
+		assertResult(in, CoapResponseCode.Content_205, "a1");
+		assertResult(in, CoapResponseCode.Not_Found_404, "");
+		assertResult(in, CoapResponseCode.Content_205, "c2");
+		assertEquals(0, in.remaining());
+	}
+
+	private static void invocation(ByteBuffer out, CoapRequestCode code,
+			String payload) {
+		out.put((byte) code.getValue());
+		CoapProxyConstants.putVarint(out, payload.length());
+		out.put(payload.getBytes());
+	}
+
+	private static void assertResult(ByteBuffer in, CoapResponseCode code,
+			String result) {
+		assertEquals(code.getValue(), in.get() & 0xFF);
+
+		byte[] bytes = new byte[CoapProxyConstants.getVarint(in)];
+		in.get(bytes);
+		assertEquals(result, new String(bytes));
+	}
+}
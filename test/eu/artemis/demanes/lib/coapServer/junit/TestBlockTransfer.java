@@ -0,0 +1,161 @@
+/**
+ * File TestBlockTransfer.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.BlockOption;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.junit.TestResponseCache.CountingService;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestBlockTransfer
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestBlockTransfer {
+
+	private CoapMessageServer server;
+
+	private CountingService service;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.BLOCKS_PROPERTY, "4");
+
+		service = new CountingService();
+		server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(properties);
+	}
+
+	@Test
+	public void testUploadInBlocks() {
+		CoapPacket response = request(CoapRequestCode.PUT, 1, "urn:dmns:cnt?xyz",
+				BlockOption.value(0, true, 0), CoapPacket.NONE);
+		assertEquals(BlockOption.CONTINUE_231, response.getCode());
+		assertEquals(0, service.calls);
+
+		response = request(CoapRequestCode.PUT, 2, "0123456789abcdef",
+				BlockOption.value(1, false, 0), CoapPacket.NONE);
+		assertEquals(1, service.calls);
+		assertEquals(ByteBuffer.wrap("xyz0123456789abcdef1".getBytes()),
+				response.getPayload());
+	}
+
+	@Test
+	public void testDownloadInBlocks() {
+		CoapPacket response = request(CoapRequestCode.GET, 1,
+				"urn:dmns:cnt?abcdefghijklmnopqrstu", CoapPacket.NONE,
+				BlockOption.value(0, false, 0));
+		assertTrue(BlockOption.hasMore(response.getBlock2()));
+		assertEquals(ByteBuffer.wrap("abcdefghijklmnop".getBytes()),
+				response.getPayload());
+
+		// The rest is kept, the service is not called again
+		response = request(CoapRequestCode.GET, 2, "", CoapPacket.NONE,
+				BlockOption.value(1, false, 0));
+		assertFalse(BlockOption.hasMore(response.getBlock2()));
+		assertEquals(1, service.calls);
+		assertEquals(ByteBuffer.wrap("qrstu1".getBytes()),
+				response.getPayload());
+	}
+
+	@Test
+	public void testSmallBlocksKeepTheUrn() throws ServiceException {
+		// The urn alone does not fit in the smallest blocks
+		final ANES_URN urn = new ANES_URN("dmns", "a:rather:long:service:name");
+		CoapMessageServer longServer = new CoapMessageServer();
+		longServer.registerService(new TestConcurrentRequests.EchoService() {
+			@Override
+			public ANES_URN identifier() {
+				return urn;
+			}
+		});
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(longServer);
+		longServer.setSocketConnector(serverEnd);
+
+		Map<String, Object> serverProperties = new HashMap<String, Object>();
+		serverProperties.put(CoapMessageServer.BLOCKS_PROPERTY, "8");
+		longServer.start(serverProperties);
+
+		byte[] argument = new byte[80];
+		for (int i = 0; i < argument.length; i++)
+			argument[i] = (byte) ('a' + i % 26);
+
+		try {
+			for (String size : new String[] { "16", "32" }) {
+				Map<String, Object> properties = new HashMap<String, Object>();
+				properties.put(CoapMessageClient.BLOCK_SIZE_PROPERTY, size);
+
+				CoapMessageClient client = new CoapMessageClient();
+				client.addConnector(clientEnd, null);
+				client.start(properties);
+				try {
+					assertEquals(ByteBuffer.wrap(argument), client.resolve(urn)
+							.post(ByteBuffer.wrap(argument)));
+				} finally {
+					client.stop();
+					client.removeConnector(clientEnd);
+				}
+			}
+		} finally {
+			longServer.stop();
+			clientEnd.close();
+		}
+	}
+
+	private CoapPacket request(CoapRequestCode code, int id, String payload,
+			long block1, long block2) {
+		CoapPacket request = new CoapPacket().reset(CoapPacketType.NON,
+				code.getValue(), id);
+		request.setToken(5, 1);
+		request.setBlock1(block1);
+		request.setBlock2(block2);
+
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(request
+				.encode(ByteBuffer.wrap(payload.getBytes())))));
+		return response;
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * File TestClientCache.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestClientCache
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestClientCache {
+
+	private CoapMessageServer server;
+
+	private CoapMessageClient client;
+
+	private LoopbackConnector clientEnd;
+
+	private CallCounter counter;
+
+	@Before
+	public void setUp() {
+		counter = new CallCounter();
+		server = new CoapMessageServer();
+		server.registerService(counter);
+
+		clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+
+		// The service gives no Max-Age, so the client keeps it for a second
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.CACHE_PROPERTY, "8");
+		properties.put(CoapMessageClient.MAX_AGE_PROPERTY, "1");
+
+		client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+	}
+
+	private void tearDown() {
+		client.stop();
+		server.stop();
+		clientEnd.close();
+	}
+
+	@Test
+	public void testHit() throws ServiceException {
+		RESTService service = client.resolve(counter.identifier());
+
+		try {
+			assertEquals(bytes("a1"), service.get(bytes("a")));
+			// Cached by the time the first caller has it
+			assertEquals(bytes("a1"), service.get(bytes("a")));
+			assertEquals(1, counter.calls.get());
+
+			// Other arguments are another request
+			assertEquals(bytes("b2"), service.get(bytes("b")));
+			assertEquals(2, counter.calls.get());
+		} finally {
+			tearDown();
+		}
+	}
+
+	@Test
+	public void testExpiry() throws ServiceException, InterruptedException {
+		RESTService service = client.resolve(counter.identifier());
+
+		try {
+			assertEquals(bytes("a1"), service.get(bytes("a")));
+			Thread.sleep(1100);
+			assertEquals(bytes("a2"), service.get(bytes("a")));
+			assertEquals(2, counter.calls.get());
+		} finally {
+			tearDown();
+		}
+	}
+
+	@Test
+	public void testIndependentBuffers() throws ServiceException {
+		RESTService service = client.resolve(counter.identifier());
+
+		try {
+			// Neither the response that filled the cache, nor a hit, is shared
+			ByteBuffer first = service.get(bytes("a"));
+			first.put(0, (byte) 'x');
+			ByteBuffer hit = service.get(bytes("a"));
+			assertEquals(bytes("a1"), hit);
+			hit.put(0, (byte) 'y');
+			hit.position(1);
+			assertEquals(bytes("a1"), service.get(bytes("a")));
+			assertEquals(1, counter.calls.get());
+		} finally {
+			tearDown();
+		}
+	}
+
+	@Test
+	public void testReactivation() throws ServiceException {
+		try {
+			assertEquals(bytes("a1"), client.resolve(counter.identifier())
+					.get(bytes("a")));
+
+			// Without a cache now, nothing from before is answered
+			client.stop();
+			client.start(null);
+			assertEquals(bytes("a2"), client.resolve(counter.identifier())
+					.get(bytes("a")));
+			assertEquals(bytes("a3"), client.resolve(counter.identifier())
+					.get(bytes("a")));
+		} finally {
+			tearDown();
+		}
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes());
+	}
+
+	/**
+	 * Answers with the argument and the number of calls so far, without a
+	 * Max-Age
+	 */
+	private static class CallCounter implements RESTService {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			byte[] arg = new byte[input.remaining()];
+			input.get(arg);
+			return bytes(new String(arg) + calls.incrementAndGet());
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "calls");
+		}
+	}
+}
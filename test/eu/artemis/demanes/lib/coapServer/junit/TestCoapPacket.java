@@ -0,0 +1,141 @@
+/**
+ * File TestCoapPacket.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ws4d.coap.interfaces.CoapMessage;
+import org.ws4d.coap.interfaces.CoapResponse;
+import org.ws4d.coap.messages.AbstractCoapMessage;
+import org.ws4d.coap.messages.BasicCoapRequest;
+import org.ws4d.coap.messages.BasicCoapResponse;
+import org.ws4d.coap.messages.CoapBlockOption;
+import org.ws4d.coap.messages.CoapBlockOption.CoapBlockSize;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+
+/**
+ * TestCoapPacket
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestCoapPacket {
+
+	private CoapPacket packet = new CoapPacket();
+
+	@Test
+	public void testDecodeRequest() {
+		BasicCoapRequest req = new BasicCoapRequest(CoapPacketType.CON,
+				CoapRequestCode.POST, 0x1234);
+		req.setToken(new byte[] { 0x0A, 0x0B });
+		req.setPayload("urn:dmns:log?hello".getBytes());
+
+		// Put some garbage in front, decoding must respect the position
+		byte[] bytes = req.serialize();
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 3);
+		buffer.put(new byte[3]).put(bytes).flip().position(3);
+
+		assertTrue(packet.decode(buffer));
+		assertEquals(3, buffer.position());
+		assertEquals(CoapPacketType.CON, packet.getPacketType());
+		assertEquals(CoapRequestCode.POST.getValue(), packet.getCode());
+		assertTrue(packet.isRequest());
+		assertEquals(0x1234, packet.getMessageID());
+		assertEquals(0x0A0B, packet.getToken());
+		assertEquals(2, packet.getTokenLength());
+		assertArrayEquals("urn:dmns:log?hello".getBytes(),
+				packet.copyPayload());
+	}
+
+	@Test
+	public void testDecodeOptions() {
+		BasicCoapResponse resp = new BasicCoapResponse(CoapPacketType.NON,
+				CoapResponseCode.Content_205, 7, null);
+		resp.setMaxAge(60);
+		resp.setObserveOption(3);
+		resp.setBlock2(new CoapBlockOption(2, true, CoapBlockSize.BLOCK_64));
+		resp.setPayload(new byte[] { 5, 6 });
+
+		assertTrue(packet.decode(ByteBuffer.wrap(resp.serialize())));
+		assertTrue(packet.isResponse());
+		assertEquals(60, packet.getMaxAge());
+		assertEquals(3, packet.getObserve());
+		assertEquals(0x2A, packet.getBlock2());
+		assertEquals(CoapPacket.NONE, packet.getBlock1());
+		assertEquals(2, packet.getPayloadLength());
+	}
+
+	@Test
+	public void testEncodeIsReadByWs4d() {
+		packet.reset(CoapPacketType.NON, CoapResponseCode.Content_205.getValue(),
+				0xBEEF);
+		packet.setToken(0x0102, 2);
+		packet.setMaxAge(30);
+		ByteBuffer payload = ByteBuffer.wrap("xxpayload".getBytes());
+		payload.position(2);
+
+		byte[] bytes = packet.encode(payload).array();
+		assertEquals(2, payload.position());
+
+		CoapMessage msg = AbstractCoapMessage.parseMessage(bytes,
+				bytes.length);
+		assertTrue(msg instanceof CoapResponse);
+		assertEquals(0xBEEF, msg.getMessageID());
+		assertEquals(30, ((CoapResponse) msg).getMaxAge());
+		assertArrayEquals(new byte[] { 1, 2 }, msg.getToken());
+		assertArrayEquals("payload".getBytes(), msg.getPayload());
+	}
+
+	@Test
+	public void testEncodeFencepost() {
+		// Block1 alone needs a fencepost, option delta is limited to 15
+		packet.reset(CoapPacketType.CON, CoapRequestCode.PUT.getValue(), 1);
+		packet.setBlock1(0x1E);
+
+		ByteBuffer encoded = packet.encode(null);
+		assertEquals(packet.encodedLength(null), encoded.remaining());
+		assertTrue(packet.decode(encoded));
+		assertEquals(0x1E, packet.getBlock1());
+		assertEquals(CoapPacket.NONE, packet.getBlock2());
+	}
+
+	@Test
+	public void testDecodeInvalid() {
+		assertFalse(packet.decode(ByteBuffer.wrap(new byte[] { 0x50, 1 })));
+		assertFalse(packet.decode(ByteBuffer.wrap("urn:dmns:par".getBytes())));
+
+		// No separator between header and payload
+		assertFalse(packet.decode(ByteBuffer.wrap(new byte[] { 0x50, 1, 0,
+				1, 0x41 })));
+	}
+
+}
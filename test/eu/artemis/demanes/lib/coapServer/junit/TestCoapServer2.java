@@ -22,6 +22,7 @@ package eu.artemis.demanes.lib.coapServer.junit;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.net.URISyntaxException;
@@ -58,6 +59,18 @@ public class TestCoapServer2 {
 		assertArrayEquals("somethingcool".getBytes(), arg.array());
 	}
 
+	@Test
+	public void testArgumentSliceFromPayload() {
+		ByteBuffer testbuffer = ByteBuffer.wrap(
+				"xxurn:dmsn:par?somethingcoolxx".getBytes()).asReadOnlyBuffer();
+		testbuffer.position(2).limit(testbuffer.limit() - 2);
+
+		ByteBuffer arg = cmh.getArgumentsfromPayload(testbuffer);
+		assertTrue(arg.isReadOnly());
+		assertEquals(ByteBuffer.wrap("somethingcool".getBytes()), arg);
+		assertEquals(2, testbuffer.position());
+	}
+
 	@Test(expected = URISyntaxException.class)
 	public void testInvalidURN() throws URISyntaxException {
 		byte[] testbytes = "gekkehenkies?somethingcool".getBytes();
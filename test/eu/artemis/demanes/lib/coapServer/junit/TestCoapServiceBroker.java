@@ -0,0 +1,169 @@
+/**
+ * File TestCoapServiceBroker.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.server.CoapServiceBroker;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.URNTranslator;
+
+/**
+ * TestCoapServiceBroker
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestCoapServiceBroker {
+
+	private CoapServiceBroker broker = new CoapServiceBroker();
+
+	@Test
+	public void testResolveFromBytes() {
+		RESTService par = new DummyService(new ANES_URN("dmns", "par"));
+		RESTService log = new DummyService(new ANES_URN("dmns", "log"));
+		broker.registerService(par);
+		broker.registerService(log);
+
+		ByteBuffer payload = ByteBuffer.wrap("urn:dmns:log?somethingcool"
+				.getBytes());
+		assertSame(log, broker.resolve(payload, 0, 12));
+		assertSame(par, broker.resolve(new ANES_URN("dmns", "par")));
+
+		// Only whole identifiers match
+		assertNull(broker.resolve(payload, 0, 11));
+		assertNull(broker.resolve(payload, 0, 13));
+
+		broker.unregisterService(log);
+		assertNull(broker.resolve(payload, 0, 12));
+	}
+
+	/**
+	 * Service that does nothing but have an identifier
+	 */
+	@Test
+	public void testReplaceBeforeUnregister() {
+		ANES_URN urn = new ANES_URN("dmns", "par");
+		RESTService oldPar = new DummyService(urn);
+		RESTService newPar = new DummyService(urn);
+
+		// During a redeploy the new bundle may come up before the old is gone
+		broker.registerService(oldPar);
+		broker.registerService(newPar);
+		broker.unregisterService(oldPar);
+
+		ByteBuffer payload = ByteBuffer.wrap("urn:dmns:par".getBytes());
+		assertSame(newPar, broker.resolve(urn));
+		assertSame(newPar, broker.resolve(payload, 0, 12));
+
+		broker.unregisterService(newPar);
+		assertNull(broker.resolve(urn));
+	}
+
+	@Test
+	public void testResolveCompact() {
+		final ANES_URN parURN = new ANES_URN("dmns", "par");
+		final ANES_URN logURN = new ANES_URN("dmns", "log");
+		RESTService par = new DummyService(parURN);
+		broker.registerService(par);
+
+		assertNull(broker.resolve((byte) 1));
+
+		broker.setTranslator(new URNTranslator() {
+			@Override
+			public ANES_URN byteToURN(byte b) {
+				return b == 1 ? parURN : (b == (byte) 0xF0 ? logURN : null);
+			}
+
+			@Override
+			public Byte URNToByte(ANES_URN urn) {
+				return parURN.equals(urn) ? Byte.valueOf((byte) 1)
+						: (logURN.equals(urn) ? Byte.valueOf((byte) 0xF0)
+								: null);
+			}
+		});
+
+		assertTrue(broker.isCompactID((byte) 1));
+		assertFalse(broker.isCompactID((byte) 2));
+		assertSame(par, broker.resolve((byte) 1));
+
+		// Known to the translator but not registered yet
+		assertTrue(broker.isCompactID((byte) 0xF0));
+		assertNull(broker.resolve((byte) 0xF0));
+		assertEquals(logURN, broker.getCompactURN((byte) 0xF0));
+
+		RESTService log = new DummyService(logURN);
+		broker.registerService(log);
+		assertSame(log, broker.resolve((byte) 0xF0));
+
+		broker.unregisterService(par);
+		assertNull(broker.resolve((byte) 1));
+
+		broker.setTranslator(null);
+		assertFalse(broker.isCompactID((byte) 0xF0));
+		assertNull(broker.resolve((byte) 0xF0));
+	}
+
+	static class DummyService implements RESTService {
+
+		private final ANES_URN identifier;
+
+		DummyService(ANES_URN identifier) {
+			this.identifier = identifier;
+		}
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return identifier;
+		}
+	}
+
+}
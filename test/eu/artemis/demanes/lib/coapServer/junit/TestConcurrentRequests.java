@@ -0,0 +1,173 @@
+/**
+ * File TestConcurrentRequests.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * TestConcurrentRequests
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestConcurrentRequests {
+
+	@Test
+	public void testOverlappingCallers() throws InterruptedException {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new EchoService());
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.WINDOW_PROPERTY, "8");
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+
+		final RESTService service = client.resolve(new ANES_URN("dmns",
+				"echo"));
+		final AtomicReference<String> mismatch = new AtomicReference<String>();
+		final AtomicInteger answered = new AtomicInteger();
+
+		Thread[] callers = new Thread[8];
+		for (int i = 0; i < callers.length; i++) {
+			final int n = i;
+			callers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100; j++) {
+						String argument = n + "-" + j;
+						try {
+							ByteBuffer response = service.post(ByteBuffer
+									.wrap(argument.getBytes()));
+							if (!ByteBuffer.wrap(argument.getBytes()).equals(
+									response))
+								mismatch.compareAndSet(null, argument);
+							answered.incrementAndGet();
+						} catch (Exception e) {
+							mismatch.compareAndSet(null, argument + ": " + e);
+						}
+					}
+				}
+			};
+			callers[i].start();
+		}
+
+		try {
+			for (Thread caller : callers)
+				caller.join(10000);
+
+			// Every caller got the response to its own request
+			assertNull(mismatch.get());
+			assertEquals(800, answered.get());
+		} finally {
+			client.stop();
+			server.stop();
+			clientEnd.close();
+		}
+	}
+
+	@Test
+	public void testResponsesOutOfOrder() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 4);
+
+		ResponseFuture[] futures = new ResponseFuture[4];
+		CoapPacket[] sent = new CoapPacket[futures.length];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = dispatcher.dispatchRequestAsync(CoapRequestCode.GET,
+					("q" + i).getBytes());
+			sent[i] = connector.next(500);
+		}
+
+		// Answered last to first, each with a message ID of its own
+		for (int i = sent.length - 1; i >= 0; i--) {
+			CoapPacket response = new CoapPacket().reset(CoapPacketType.NON,
+					CoapResponseCode.Content_205.getValue(), 1000 + i);
+			response.setToken(sent[i].getToken(), sent[i].getTokenLength());
+			connector.deliver(response.encode(ByteBuffer.wrap(("r" + i)
+					.getBytes())));
+		}
+
+		for (int i = 0; i < futures.length; i++)
+			assertEquals(ByteBuffer.wrap(("r" + i).getBytes()),
+					futures[i].get());
+
+		dispatcher.close();
+	}
+
+	static class EchoService implements RESTService {
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "echo");
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/**
+ * File TestConfirmable.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestConfirmable
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestConfirmable {
+
+	@Test
+	public void testNullResultIsAcknowledged() {
+		NullService service = new NullService();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(null);
+
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(request(
+				CoapPacketType.CON, 7, "urn:dmns:null?x"))));
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(7, response.getMessageID());
+		assertEquals(CoapResponseCode.Changed_204.getValue(),
+				response.getCode());
+		assertEquals(1, service.calls.get());
+
+		// Nothing to say to a NON request
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 8,
+				"urn:dmns:null?x")));
+
+		server.stop();
+	}
+
+	@Test
+	public void testSlowServiceGetsEmptyAck() throws InterruptedException {
+		SlowService service = new SlowService();
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+		server.setSocketConnector(connector);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.THREADS_PROPERTY, "1");
+		properties.put(CoapMessageServer.PIGGYBACK_PROPERTY, "20");
+		properties.put(CoapMessageServer.DEDUP_PROPERTY, "16");
+		server.start(properties);
+
+		assertNull(server.dispatchMessage(request(CoapPacketType.CON, 9,
+				"urn:dmns:slow?")));
+
+		// The deadline passes before the service answers
+		CoapPacket ack = connector.next(1000);
+		assertEquals(CoapPacketType.ACK, ack.getPacketType());
+		assertEquals(9, ack.getMessageID());
+		assertEquals(0, ack.getCode());
+
+		// A retransmission meanwhile is acknowledged again, not executed
+		CoapPacket again = new CoapPacket();
+		assertTrue(again.decode(server.dispatchMessage(request(
+				CoapPacketType.CON, 9, "urn:dmns:slow?"))));
+		assertEquals(CoapPacketType.ACK, again.getPacketType());
+		assertEquals(0, again.getCode());
+
+		CoapPacket response = connector.next(2000);
+		assertEquals(CoapResponseCode.Content_205.getValue(),
+				response.getCode());
+		assertEquals(0x1234, response.getToken());
+		assertEquals("done", new String(response.copyPayload()));
+		assertEquals(1, service.calls.get());
+
+		server.stop();
+	}
+
+	@Test
+	public void testClientRoundTrip() throws ServiceException {
+		NullService nothing = new NullService();
+		SlowService slow = new SlowService();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(nothing);
+		server.registerService(slow);
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+
+		Map<String, Object> serverProperties = new HashMap<String, Object>();
+		serverProperties.put(CoapMessageServer.THREADS_PROPERTY, "2");
+		serverProperties.put(CoapMessageServer.PIGGYBACK_PROPERTY, "20");
+		server.start(serverProperties);
+
+		// Without the ACKs the slow service would be retransmitted to
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.CONFIRMABLE_PROPERTY, "true");
+		properties.put(CoapMessageClient.ACK_TIMEOUT_PROPERTY, "100");
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+
+		try {
+			// Answered right away, not after the request timeout
+			long start = System.nanoTime();
+			assertNull(client.resolve(new ANES_URN("dmns", "null")).post(
+					ByteBuffer.wrap("x".getBytes())));
+			assertTrue(System.nanoTime() - start < 1000000000L);
+			assertEquals(1, nothing.calls.get());
+
+			assertEquals(ByteBuffer.wrap("done".getBytes()), client.resolve(
+					new ANES_URN("dmns", "slow")).post(
+					ByteBuffer.wrap("y".getBytes())));
+			assertEquals(1, slow.calls.get());
+		} finally {
+			client.stop();
+			server.stop();
+			clientEnd.close();
+		}
+	}
+
+	@Test
+	public void testErrorsAreAcknowledged() {
+		FailingService service = new FailingService();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(null);
+
+		// Piggybacked on the ACK, even though errors are not sent otherwise
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(request(
+				CoapPacketType.CON, 11, "urn:dmns:fail?x"))));
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(11, response.getMessageID());
+		assertEquals(CoapResponseCode.Bad_Option_402.getValue(),
+				response.getCode());
+
+		assertTrue(response.decode(server.dispatchMessage(request(
+				CoapPacketType.CON, 12, "urn:dmns:nowhere?x"))));
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(CoapResponseCode.Not_Found_404.getValue(),
+				response.getCode());
+
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 13,
+				"urn:dmns:nowhere?x")));
+
+		server.stop();
+	}
+
+	@Test
+	public void testClientLearnsOfErrors() {
+		FailingService service = new FailingService();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+
+		Map<String, Object> serverProperties = new HashMap<String, Object>();
+		serverProperties.put(CoapMessageServer.THREADS_PROPERTY, "2");
+		serverProperties.put(CoapMessageServer.PIGGYBACK_PROPERTY, "20");
+		server.start(serverProperties);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.CONFIRMABLE_PROPERTY, "true");
+		properties.put(CoapMessageClient.ACK_TIMEOUT_PROPERTY, "100");
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+
+		try {
+			long start = System.nanoTime();
+			try {
+				client.resolve(new ANES_URN("dmns", "fail")).post(
+						ByteBuffer.wrap("x".getBytes()));
+				fail("The service failed");
+			} catch (ServiceException e) {
+				// Expected
+			}
+			assertEquals(1, service.calls.get());
+
+			try {
+				client.resolve(new ANES_URN("dmns", "nowhere")).post(
+						ByteBuffer.wrap("x".getBytes()));
+				fail("There is no such service");
+			} catch (ServiceException e) {
+				// Expected
+			}
+
+			// Neither waited for the retransmissions to run out
+			assertTrue(System.nanoTime() - start < 1000000000L);
+		} finally {
+			client.stop();
+			server.stop();
+			clientEnd.close();
+		}
+	}
+
+	@Test
+	public void testClientAcknowledgesSeparateResponses() throws Exception {
+		RecordingConnector link = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(link);
+
+		try {
+			ResponseFuture future = dispatcher.dispatchRequestAsync(
+					CoapRequestCode.POST, "urn:dmns:slow?".getBytes());
+			CoapPacket request = link.next(1000);
+
+			CoapPacket ack = new CoapPacket();
+			assertTrue(ack.decode(dispatcher.dispatchMessage(response(request,
+					500, CoapPacket.NONE))));
+			assertEquals(CoapPacketType.ACK, ack.getPacketType());
+			assertEquals(500, ack.getMessageID());
+			assertEquals(ByteBuffer.wrap("done".getBytes()), future.get());
+
+			// The notifications of an observation as well
+			final BlockingQueue<ByteBuffer> states = new LinkedBlockingQueue<ByteBuffer>();
+			dispatcher.observe("urn:dmns:slow?".getBytes(),
+					new ResponseListener() {
+						@Override
+						public void completed(ByteBuffer response) {
+							states.add(response);
+						}
+
+						@Override
+						public void failed(ServiceException e) {
+						}
+					});
+			request = link.next(1000);
+
+			assertTrue(ack.decode(dispatcher.dispatchMessage(response(request,
+					501, 2))));
+			assertEquals(501, ack.getMessageID());
+			assertTrue(ack.decode(dispatcher.dispatchMessage(response(request,
+					502, 3))));
+			assertEquals(CoapPacketType.ACK, ack.getPacketType());
+			assertEquals(502, ack.getMessageID());
+			assertEquals(2, states.size());
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	/**
+	 * @return a CON response to the request, as it is sent after an empty ACK
+	 */
+	private static ByteBuffer response(CoapPacket request, int messageID,
+			int observe) {
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.CON,
+				CoapResponseCode.Content_205.getValue(), messageID);
+		response.setToken(request.getToken(), request.getTokenLength());
+		response.setObserve(observe);
+		return response.encode(ByteBuffer.wrap("done".getBytes()));
+	}
+
+	private static ByteBuffer request(CoapPacketType type, int messageID,
+			String payload) {
+		CoapPacket request = new CoapPacket().reset(type,
+				CoapRequestCode.POST.getValue(), messageID);
+		request.setToken(0x1234, 2);
+		return request.encode(ByteBuffer.wrap(payload.getBytes()));
+	}
+
+	static class NullService implements RESTService {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			calls.incrementAndGet();
+			return null;
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "null");
+		}
+	}
+
+	static class FailingService implements RESTService {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) throws ServiceException {
+			calls.incrementAndGet();
+			throw new ServiceException("Out of order");
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) throws ServiceException {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) throws ServiceException {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) throws ServiceException {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "fail");
+		}
+	}
+
+	static class SlowService implements RESTService {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			calls.incrementAndGet();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return ByteBuffer.wrap("done".getBytes());
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "slow");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ * File TestDuplicateFilter.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.junit.TestResponseCache.CountingService;
+
+/**
+ * TestDuplicateFilter
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestDuplicateFilter {
+
+	private CoapMessageServer server;
+
+	private CountingService service;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.DEDUP_PROPERTY, "2");
+
+		service = new CountingService();
+		server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(properties);
+	}
+
+	@Test
+	public void testRetransmissionIsReplayed() {
+		ByteBuffer first = server.dispatchMessage(post(1, 7));
+		ByteBuffer again = server.dispatchMessage(post(1, 7));
+		assertEquals(1, service.calls);
+		assertEquals(first, again);
+
+		// The response is piggybacked on the ACK of the CON request
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(again));
+		assertEquals(CoapPacketType.ACK, response.getPacketType());
+		assertEquals(7, response.getToken());
+
+		// Same message ID with another token is another request
+		server.dispatchMessage(post(1, 8));
+		assertEquals(2, service.calls);
+	}
+
+	@Test
+	public void testOldestIsForgotten() {
+		server.dispatchMessage(post(1, 0));
+		server.dispatchMessage(post(2, 0));
+		server.dispatchMessage(post(3, 0));
+		assertEquals(3, service.calls);
+
+		server.dispatchMessage(post(3, 0));
+		assertEquals(3, service.calls);
+
+		server.dispatchMessage(post(1, 0));
+		assertEquals(4, service.calls);
+	}
+
+	private static ByteBuffer post(int id, long token) {
+		CoapPacket request = new CoapPacket().reset(CoapPacketType.CON,
+				CoapRequestCode.POST.getValue(), id);
+		request.setToken(token, token == 0 ? 0 : 1);
+		return request.encode(ByteBuffer.wrap("urn:dmns:cnt?x".getBytes()));
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * File TestLinkEmulator.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LinkEmulator;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestLinkEmulator
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class TestLinkEmulator {
+
+	@Test
+	public void testSameSeedSameFate() throws InterruptedException {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(LinkEmulator.SEED_PROPERTY, "7");
+		properties.put(LinkEmulator.LOSS_PROPERTY, "0.3");
+		properties.put(LinkEmulator.DUPLICATE_PROPERTY, "0.1");
+
+		List<Integer> first = arrivals(properties);
+		List<Integer> second = arrivals(properties);
+
+		assertEquals(first, second);
+		assertTrue(first.size() < 100);
+
+		properties.put(LinkEmulator.SEED_PROPERTY, "8");
+		assertTrue(!first.equals(arrivals(properties)));
+	}
+
+	@Test
+	public void testRetransmitOverLossyLink() throws ServiceException {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new TestResponseCache.CountingService());
+
+		LoopbackConnector clientEnd = new LoopbackConnector(false);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.DEDUP_PROPERTY, "16");
+		server.start(properties);
+
+		properties.put(LinkEmulator.SEED_PROPERTY, "1");
+		properties.put(LinkEmulator.LOSS_PROPERTY, "0.1");
+		properties.put(CoapMessageClient.CONFIRMABLE_PROPERTY, "true");
+		properties.put(CoapMessageClient.ACK_TIMEOUT_PROPERTY, "20");
+		LinkEmulator link = new LinkEmulator(clientEnd, properties);
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(link, null);
+		client.start(properties);
+
+		try {
+			RESTService service = client.resolve(new ANES_URN("dmns", "cnt"));
+			// A lost response is repeated from the duplicate filter, so
+			// every request reaches the service once
+			for (int i = 1; i <= 20; i++)
+				assertEquals(ByteBuffer.wrap(("a" + i).getBytes()),
+						service.put(ByteBuffer.wrap("a".getBytes())));
+
+			assertTrue(link.getLost() > 0);
+		} finally {
+			client.stop();
+			server.stop();
+			link.close();
+		}
+	}
+
+	/**
+	 * Write 100 numbered messages over an emulated link
+	 * 
+	 * @return the numbers that arrived, in order of arrival
+	 */
+	private static List<Integer> arrivals(Map<String, ?> properties)
+			throws InterruptedException {
+		LoopbackConnector end = new LoopbackConnector(false);
+		final List<Integer> arrived = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		end.getPeer().addDispatcher(new MessageDispatcher() {
+			@Override
+			public ByteBuffer dispatchMessage(ByteBuffer msg) {
+				arrived.add(msg.getInt());
+				return null;
+			}
+		});
+
+		LinkEmulator link = new LinkEmulator(end, properties);
+		for (int i = 0; i < 100; i++)
+			link.write(ByteBuffer.allocate(4).putInt(i).array());
+
+		long expected = link.getSent() - link.getLost()
+				+ link.getDuplicated();
+		for (int i = 0; i < 100 && arrived.size() < expected; i++)
+			Thread.sleep(10);
+
+		link.close();
+		return new ArrayList<Integer>(arrived);
+	}
+}
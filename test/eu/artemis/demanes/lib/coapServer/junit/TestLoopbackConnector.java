@@ -0,0 +1,86 @@
+/**
+ * File TestLoopbackConnector.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestLoopbackConnector
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class TestLoopbackConnector {
+
+	@Test
+	public void testSynchronous() throws ServiceException {
+		roundTrip(false);
+	}
+
+	@Test
+	public void testAsynchronous() throws ServiceException {
+		roundTrip(true);
+	}
+
+	private void roundTrip(boolean asynchronous) throws ServiceException {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new TestResponseCache.CountingService());
+
+		LoopbackConnector clientEnd = new LoopbackConnector(asynchronous);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.CONFIRMABLE_PROPERTY, "true");
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+
+		try {
+			RESTService service = client.resolve(new ANES_URN("dmns", "cnt"));
+			assertEquals(ByteBuffer.wrap("a1".getBytes()),
+					service.get(ByteBuffer.wrap("a".getBytes())));
+			assertEquals(ByteBuffer.wrap("b2".getBytes()),
+					service.put(ByteBuffer.wrap("b".getBytes())));
+		} finally {
+			client.stop();
+			server.stop();
+			clientEnd.close();
+		}
+	}
+}
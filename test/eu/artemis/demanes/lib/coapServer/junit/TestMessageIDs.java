@@ -0,0 +1,117 @@
+/**
+ * File TestMessageIDs.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+
+/**
+ * TestMessageIDs
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestMessageIDs {
+
+	@Test
+	public void testWraparound() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1);
+
+		int previous = -1;
+		boolean wrapped = false;
+		for (int i = 0; i < 0x10001; i++) {
+			ResponseFuture future = dispatcher.dispatchRequestAsync(
+					CoapRequestCode.GET, "q".getBytes());
+			CoapPacket request = connector.next(500);
+
+			int id = request.getMessageID();
+			assertTrue(id >= 0 && id <= 0xFFFF && id != 10);
+			if (previous == 0xFFFF) {
+				assertEquals(0, id);
+				wrapped = true;
+			}
+			previous = id;
+
+			connector.deliver(response(request.getToken(),
+					request.getTokenLength(), "r"));
+			assertEquals(ByteBuffer.wrap("r".getBytes()), future.get());
+		}
+
+		assertTrue(wrapped);
+		dispatcher.close();
+	}
+
+	@Test
+	public void testUnknownAndStaleTokens() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1);
+
+		ResponseFuture first = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		CoapPacket a = connector.next(500);
+		connector.deliver(response(a.getToken(), a.getTokenLength(), "ra"));
+		assertEquals(ByteBuffer.wrap("ra".getBytes()), first.get());
+
+		ResponseFuture second = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "b".getBytes());
+		CoapPacket b = connector.next(500);
+		long unmatched = dispatcher.getMetrics().getUnmatchedResponses();
+
+		// A late copy of the first response, a token nobody used, and the
+		// right token with another length are all dropped
+		connector.deliver(response(a.getToken(), a.getTokenLength(), "late"));
+		connector.deliver(response(b.getToken() + 1000, 4, "unknown"));
+		connector.deliver(response(b.getToken(), b.getTokenLength() + 1,
+				"length"));
+		assertFalse(second.isDone());
+		assertEquals(unmatched + 3, dispatcher.getMetrics()
+				.getUnmatchedResponses());
+
+		connector.deliver(response(b.getToken(), b.getTokenLength(), "rb"));
+		assertEquals(ByteBuffer.wrap("rb".getBytes()), second.get());
+
+		dispatcher.close();
+	}
+
+	private static ByteBuffer response(long token, int tokenLength,
+			String payload) {
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.NON,
+				CoapResponseCode.Content_205.getValue(), (int) token & 0xFFFF);
+		response.setToken(token, tokenLength);
+		return response.encode(ByteBuffer.wrap(payload.getBytes()));
+	}
+}
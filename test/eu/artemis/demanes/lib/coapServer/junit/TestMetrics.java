@@ -0,0 +1,98 @@
+/**
+ * File TestMetrics.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics.Stage;
+import eu.artemis.demanes.lib.coap.metrics.LatencyHistogram;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+
+/**
+ * TestMetrics
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestMetrics {
+
+	@Test
+	public void testServerMetrics() {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new TestResponseCache.CountingService());
+		server.start(null);
+
+		request(server, "urn:dmns:cnt?a", 1);
+		request(server, "urn:dmns:cnt?b", 2);
+		request(server, "urn:dmns:none?", 3);
+		server.dispatchMessage(ByteBuffer.wrap(new byte[] { 0x50, 1 }));
+
+		CoapMetrics metrics = server.getMetrics().get(0);
+		assertEquals(4, metrics.getMessages());
+		assertEquals(1, metrics.getParseFailures());
+		assertEquals(2, metrics.getRequests(new ANES_URN("dmns", "cnt")));
+		assertEquals(Long.valueOf(2), metrics.getRequests().get("urn:dmns:cnt"));
+		assertEquals(3, metrics.getLatency(Stage.PARSE).getCount());
+		assertEquals(2, metrics.getLatency(Stage.ROUTE).getCount());
+		assertEquals(2, metrics.getLatency(Stage.SERVICE).getCount());
+		assertEquals(2, metrics.getLatency(Stage.SERIALIZE).getCount());
+		assertEquals(0, metrics.getInFlight());
+
+		server.stop();
+	}
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(99));
+
+		for (int i = 0; i < 99; i++)
+			histogram.record(1000);
+		histogram.record(1000000);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals((99 * 1000 + 1000000) / 100, histogram.getMean());
+
+		// Upper bounds of the buckets, within a factor two
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 > 1000 && p50 <= 2000);
+		long p100 = histogram.getPercentile(100);
+		assertTrue(p100 > 1000000 && p100 <= 2000000);
+	}
+
+	private static void request(CoapMessageServer server, String payload,
+			int id) {
+		server.dispatchMessage(new CoapPacket().reset(CoapPacketType.NON,
+				CoapRequestCode.GET.getValue(), id).encode(
+				ByteBuffer.wrap(payload.getBytes())));
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * File TestMultiConnectorClient.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.api.BatchRequest;
+import eu.artemis.demanes.lib.coap.metrics.CoapMetrics;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestMultiConnectorClient
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestMultiConnectorClient {
+
+	private ANES_URN first = new ANES_URN("dmns", "node1:cnt");
+
+	private ANES_URN second = new ANES_URN("dmns", "node2:cnt");
+
+	@Test
+	public void testLinksBeforeActivation() {
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(new RecordingConnector(), routes("urn:dmns:node1:"));
+		client.addConnector(new RecordingConnector(), routes("urn:dmns:node2:"));
+		assertEquals(0, client.getMetrics().size());
+
+		// A dispatcher for every link while active, and none after
+		client.start(null);
+		assertEquals(2, client.getMetrics().size());
+		client.stop();
+		assertEquals(0, client.getMetrics().size());
+
+		client.start(null);
+		assertEquals(2, client.getMetrics().size());
+		client.stop();
+	}
+
+	@Test
+	public void testTwoNodes() throws ServiceException {
+		LoopbackConnector link1 = new LoopbackConnector(true);
+		LoopbackConnector link2 = new LoopbackConnector(true);
+		CoapMessageServer node1 = node(link1, new Counter(first, "x"));
+		CoapMessageServer node2 = node(link2, new Counter(second, "y"));
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(link1, routes("urn:dmns:node1:"));
+		client.addConnector(link2, routes("urn:dmns:node2:"));
+		client.start(null);
+
+		// Each service is reached over its own link
+		assertEquals(ByteBuffer.wrap("x1".getBytes()), client.resolve(first)
+				.post(null));
+		assertEquals(ByteBuffer.wrap("y1".getBytes()), client.resolve(second)
+				.post(null));
+		assertEquals(ByteBuffer.wrap("y2".getBytes()), client.resolve(second)
+				.post(null));
+
+		// And counted there
+		List<CoapMetrics> metrics = client.getMetrics();
+		assertEquals(2, metrics.size());
+		assertEquals(1, metrics.get(0).getRequests(first));
+		assertEquals(0, metrics.get(0).getRequests(second));
+		assertEquals(0, metrics.get(1).getRequests(first));
+		assertEquals(2, metrics.get(1).getRequests(second));
+
+		client.stop();
+		node1.stop();
+		node2.stop();
+		link1.close();
+		link2.close();
+	}
+
+	@Test
+	public void testBatchOnOneLink() {
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(new RecordingConnector(), routes("urn:dmns:node1:"));
+		client.addConnector(new RecordingConnector(), routes("urn:dmns:node2:"));
+		client.start(null);
+
+		BatchRequest batch = client.batch();
+		batch.get(first, null);
+		try {
+			batch.get(second, null);
+			fail("A batch cannot span two links");
+		} catch (IllegalArgumentException e) {
+			assertEquals(1, batch.size());
+		}
+
+		client.stop();
+	}
+
+	@Test
+	public void testRemovedLinkIsClosed() {
+		RecordingConnector link1 = new RecordingConnector();
+		RecordingConnector link2 = new RecordingConnector();
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(link1, routes("urn:dmns:node1:"));
+		client.addConnector(link2, routes("urn:dmns:node2:"));
+		client.start(null);
+
+		// Its dispatcher stops listening to the connector
+		client.resolveAsync(first).getAsync(null);
+		CoapMetrics removed = client.getMetrics().get(0);
+		assertEquals(1, removed.getRequests(first));
+		assertTrue(link1.hasDispatchers());
+		client.removeConnector(link1);
+
+		assertEquals(1, client.getMetrics().size());
+		assertTrue(client.getMetrics().get(0) != removed);
+		assertFalse(link1.hasDispatchers());
+
+		client.stop();
+	}
+
+	/**
+	 * Start a server with the service at the other end of the link
+	 */
+	private static CoapMessageServer node(LoopbackConnector link,
+			Counter service) {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+
+		LoopbackConnector serverEnd = link.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+		return server;
+	}
+
+	private static Map<String, Object> routes(String routes) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.ROUTES_PROPERTY, routes);
+		return properties;
+	}
+
+	/**
+	 * Answers with its name and the number of calls so far
+	 */
+	static class Counter extends TestConcurrentRequests.EchoService {
+
+		private final ANES_URN identifier;
+
+		private final String name;
+
+		private int calls;
+
+		Counter(ANES_URN identifier, String name) {
+			this.identifier = identifier;
+			this.name = name;
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return ByteBuffer.wrap((this.name + ++this.calls).getBytes());
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return this.identifier;
+		}
+	}
+}
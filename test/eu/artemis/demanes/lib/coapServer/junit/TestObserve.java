@@ -0,0 +1,277 @@
+/**
+ * File TestObserve.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.AsyncRESTService;
+import eu.artemis.demanes.lib.coap.client.api.Observation;
+import eu.artemis.demanes.lib.coap.client.api.ResponseListener;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coap.server.api.ObservableService;
+import eu.artemis.demanes.lib.coap.server.api.ServiceChangeListener;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestObserve
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestObserve {
+
+	private Thermometer thermometer;
+
+	private RecordingConnector connector;
+
+	private CoapMessageServer server;
+
+	@Before
+	public void setUp() {
+		thermometer = new Thermometer();
+		connector = new RecordingConnector();
+		server = new CoapMessageServer();
+		server.registerService(thermometer);
+		server.setSocketConnector(connector);
+		server.start(null);
+	}
+
+	@Test
+	public void testRegistrationAndNotification() throws InterruptedException {
+		CoapPacket first = observe(0xA1, 0);
+		assertEquals(CoapResponseCode.Content_205.getValue(), first.getCode());
+		assertEquals("20", new String(first.copyPayload()));
+
+		// Every observation counts on its own
+		assertEquals(first.getObserve(), observe(0xB2, 0).getObserve());
+
+		thermometer.change(21);
+		CoapPacket a = connector.next(500);
+		CoapPacket b = connector.next(500);
+		if (a.getToken() != 0xA1) {
+			CoapPacket swap = a;
+			a = b;
+			b = swap;
+		}
+		assertEquals(0xA1, a.getToken());
+		assertEquals(0xB2, b.getToken());
+		assertEquals("21", new String(a.copyPayload()));
+		assertEquals(first.getObserve() + 1, a.getObserve());
+		assertEquals(first.getObserve() + 1, b.getObserve());
+
+		// A refresh goes on with the sequence it had
+		assertEquals(first.getObserve() + 2, observe(0xA1, 0).getObserve());
+
+		server.stop();
+	}
+
+	@Test
+	public void testDeregistration() throws InterruptedException {
+		observe(0xA1, 0);
+		observe(0xB2, 0);
+
+		// Observe 1 is answered like a plain GET
+		assertEquals(CoapPacket.NONE, observe(0xA1, 1).getObserve());
+
+		thermometer.change(22);
+		assertEquals(0xB2, connector.next(500).getToken());
+		assertNull(connector.next(100));
+
+		server.stop();
+	}
+
+	@Test
+	public void testLostObserver() throws InterruptedException {
+		observe(0xA1, 0);
+		observe(0xB2, 0);
+
+		thermometer.change(23);
+		CoapPacket a = connector.next(500);
+		CoapPacket b = connector.next(500);
+		CoapPacket lost = (a.getToken() == 0xB2 ? a : b);
+
+		// The client of B no longer knows the observation, and says so
+		assertNull(server.dispatchMessage(CoapPacket.encodeEmpty(
+				CoapPacketType.RST, lost.getMessageID())));
+
+		thermometer.change(24);
+		assertEquals(0xA1, connector.next(500).getToken());
+		assertNull(connector.next(100));
+
+		server.stop();
+	}
+
+	@Test
+	public void testClientRejectsUnknownNotification() {
+		RecordingConnector link = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(link);
+
+		CoapPacket notification = new CoapPacket().reset(CoapPacketType.NON,
+				CoapResponseCode.Content_205.getValue(), 77);
+		notification.setToken(0xC3, 1);
+		notification.setObserve(5);
+
+		CoapPacket reply = new CoapPacket();
+		assertTrue(reply.decode(dispatcher.dispatchMessage(notification
+				.encode(ByteBuffer.wrap("25".getBytes())))));
+		assertEquals(CoapPacketType.RST, reply.getPacketType());
+		assertEquals(77, reply.getMessageID());
+
+		dispatcher.close();
+		server.stop();
+	}
+
+	@Test
+	public void testClientObservation() throws InterruptedException {
+		server.stop();
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(null);
+
+		final BlockingQueue<String> states = new LinkedBlockingQueue<String>();
+		AsyncRESTService service = (AsyncRESTService) client
+				.resolve(thermometer.identifier());
+		Observation observation = service.observe(null,
+				new ResponseListener() {
+					@Override
+					public void completed(ByteBuffer response) {
+						states.add(response == null ? "" : new String(response
+								.array(), response.position(), response
+								.remaining()));
+					}
+
+					@Override
+					public void failed(ServiceException e) {
+						states.add("failed");
+					}
+				});
+
+		try {
+			assertEquals("20", states.poll(500, TimeUnit.MILLISECONDS));
+			thermometer.change(21);
+			assertEquals("21", states.poll(500, TimeUnit.MILLISECONDS));
+			thermometer.change(22);
+			assertEquals("22", states.poll(500, TimeUnit.MILLISECONDS));
+
+			observation.cancel();
+			assertFalse(observation.isActive());
+			Thread.sleep(100);
+			thermometer.change(23);
+			assertNull(states.poll(200, TimeUnit.MILLISECONDS));
+		} finally {
+			client.stop();
+			server.stop();
+			clientEnd.close();
+		}
+	}
+
+	private CoapPacket observe(long token, int observe) {
+		CoapPacket request = new CoapPacket().reset(CoapPacketType.NON,
+				CoapRequestCode.GET.getValue(), (int) token);
+		request.setToken(token, 1);
+		request.setObserve(observe);
+
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(request
+				.encode(ByteBuffer.wrap("urn:dmns:temp?".getBytes())))));
+		assertEquals(token, response.getToken());
+		return response;
+	}
+
+	static class Thermometer implements ObservableService {
+
+		private final List<ServiceChangeListener> listeners = new CopyOnWriteArrayList<ServiceChangeListener>();
+
+		private final AtomicInteger degrees = new AtomicInteger(20);
+
+		void change(int degrees) {
+			this.degrees.set(degrees);
+			for (ServiceChangeListener l : this.listeners)
+				l.changed(this);
+		}
+
+		@Override
+		public void addChangeListener(ServiceChangeListener listener) {
+			this.listeners.add(listener);
+		}
+
+		@Override
+		public void removeChangeListener(ServiceChangeListener listener) {
+			this.listeners.remove(listener);
+		}
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			return ByteBuffer.wrap(String.valueOf(this.degrees.get())
+					.getBytes());
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return null;
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return null;
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return null;
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "temp");
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * File TestRequestWindow.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.MessageDispatcherRegistry;
+import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestRequestWindow
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestRequestWindow {
+
+	@Test
+	public void testConcurrentCallers() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		final CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector);
+		assertEquals(4, dispatcher.getWindow());
+
+		final ByteBuffer[] results = new ByteBuffer[8];
+		Thread[] callers = new Thread[results.length];
+		for (int i = 0; i < callers.length; i++) {
+			final int n = i;
+			callers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						results[n] = dispatcher.dispatchRequest(
+								CoapRequestCode.POST, ("q" + n).getBytes());
+					} catch (ServiceException e) {
+						// Leaves the result empty
+					}
+				}
+			};
+			callers[i].start();
+		}
+
+		// A full window of callers is on the link at once, the rest waits
+		CoapPacket[] sent = new CoapPacket[4];
+		for (int i = 0; i < sent.length; i++)
+			sent[i] = connector.next(500);
+		assertNull(connector.next(100));
+
+		for (CoapPacket request : sent)
+			answer(connector, request);
+		for (int i = 0; i < sent.length; i++)
+			answer(connector, connector.next(500));
+
+		for (int i = 0; i < callers.length; i++) {
+			callers[i].join(1000);
+			assertEquals(ByteBuffer.wrap(("q" + i + "!").getBytes()),
+					results[i]);
+		}
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testQueuedRequestsWait() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1);
+
+		ResponseFuture lost = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		ResponseFuture queued = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "b".getBytes());
+
+		// Only the first is on the link, the second waits for its place
+		connector.next(500);
+		assertNull(connector.next(100));
+
+		// The first is never answered, so its timeout sends the second
+		assertNull(lost.get(2, TimeUnit.SECONDS));
+		answer(connector, connector.next(500));
+
+		// Whose own timeout only started when it was sent
+		assertEquals(ByteBuffer.wrap("b!".getBytes()), queued.get());
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1, false, CoapRequestDispatcher.DEFAULT_ACK_TIMEOUT,
+				0, 2);
+
+		ResponseFuture sent = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		ResponseFuture first = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "b".getBytes());
+		ResponseFuture second = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "c".getBytes());
+		ResponseFuture refused = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "d".getBytes());
+
+		// Refused at once, without waiting for the window
+		assertTrue(refused.isDone());
+		try {
+			refused.get();
+			fail("A request that finds the queue full must fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServiceException);
+		}
+
+		// The requests that did find a place are sent in order
+		answer(connector, connector.next(500));
+		assertEquals(ByteBuffer.wrap("a!".getBytes()), sent.get());
+		answer(connector, connector.next(500));
+		assertEquals(ByteBuffer.wrap("b!".getBytes()), first.get());
+
+		// And the room they left can be taken again
+		ResponseFuture later = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "e".getBytes());
+		answer(connector, connector.next(500));
+		answer(connector, connector.next(500));
+		assertEquals(ByteBuffer.wrap("c!".getBytes()), second.get());
+		assertEquals(ByteBuffer.wrap("e!".getBytes()), later.get());
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testDeepQueueOnSynchronousConnector() throws Exception {
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				new SynchronousServer(), 1, false,
+				CoapRequestDispatcher.DEFAULT_ACK_TIMEOUT, 0, 20000);
+
+		// The first request is lost, so the others pile up behind it
+		ResponseFuture lost = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "lost".getBytes());
+		ResponseFuture[] waiting = new ResponseFuture[10000];
+		for (int i = 0; i < waiting.length; i++)
+			waiting[i] = dispatcher.dispatchRequestAsync(CoapRequestCode.GET,
+					("q" + i).getBytes());
+
+		// Its timeout sends the whole queue, each answered within the write
+		assertNull(lost.get(5, TimeUnit.SECONDS));
+		for (int i = 0; i < waiting.length; i++)
+			assertEquals(ByteBuffer.wrap(("q" + i + "!").getBytes()),
+					waiting[i].get(5, TimeUnit.SECONDS));
+
+		dispatcher.close();
+	}
+
+	/**
+	 * Answer a request with its own payload and an exclamation mark
+	 * 
+	 * @param connector
+	 * @param request
+	 */
+	private static void answer(RecordingConnector connector, CoapPacket request) {
+		connector.deliver(response(request));
+	}
+
+	private static ByteBuffer response(CoapPacket request) {
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.NON,
+				CoapResponseCode.Content_205.getValue(),
+				(request.getMessageID() + 1) & 0xFFFF);
+		response.setToken(request.getToken(), request.getTokenLength());
+
+		String payload = new String(request.copyPayload()) + "!";
+		return response.encode(ByteBuffer.wrap(payload.getBytes()));
+	}
+
+	/**
+	 * Answers every request but the first within the write
+	 */
+	private static class SynchronousServer implements SocketConnector,
+			MessageDispatcherRegistry {
+
+		private final Set<MessageDispatcher> dispatchers = new CopyOnWriteArraySet<MessageDispatcher>();
+
+		private final AtomicBoolean first = new AtomicBoolean(true);
+
+		@Override
+		public MessageDispatcherRegistry write(byte[] msg) {
+			CoapPacket request = new CoapPacket();
+			if (!this.first.getAndSet(false)
+					&& request.decode(ByteBuffer.wrap(msg)))
+				for (MessageDispatcher d : this.dispatchers)
+					d.dispatchMessage(response(request));
+
+			return this;
+		}
+
+		@Override
+		public void addDispatcher(MessageDispatcher d) {
+			this.dispatchers.add(d);
+		}
+
+		@Override
+		public void removeDispatcher(MessageDispatcher d) {
+			this.dispatchers.remove(d);
+		}
+
+		@Override
+		public boolean containsDispatcher(MessageDispatcher d) {
+			return this.dispatchers.contains(d);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * File TestResponseCache.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coap.server.api.CacheableService;
+
+/**
+ * TestResponseCache
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestResponseCache {
+
+	private CoapMessageServer server;
+
+	private CountingService service;
+
+	@Before
+	public void setUp() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.CACHE_PROPERTY, "8");
+
+		service = new CountingService();
+		server = new CoapMessageServer();
+		server.registerService(service);
+		server.start(properties);
+	}
+
+	@Test
+	public void testCachedGet() {
+		CoapPacket response = request(CoapRequestCode.GET, "a", 1);
+		assertEquals(1, service.calls);
+		assertEquals(30, response.getMaxAge());
+		assertEquals(ByteBuffer.wrap("a1".getBytes()), response.getPayload());
+
+		// Same request, served from the cache with the same message ID
+		response = request(CoapRequestCode.GET, "a", 2);
+		assertEquals(1, service.calls);
+		assertEquals(2, response.getMessageID());
+		assertTrue(response.getMaxAge() > 0 && response.getMaxAge() <= 30);
+		assertEquals(ByteBuffer.wrap("a1".getBytes()), response.getPayload());
+
+		// Other arguments are other entries
+		request(CoapRequestCode.GET, "b", 3);
+		assertEquals(2, service.calls);
+	}
+
+	@Test
+	public void testInvalidatedByPut() {
+		request(CoapRequestCode.GET, "a", 1);
+		request(CoapRequestCode.PUT, "a", 2);
+		assertEquals(2, service.calls);
+
+		CoapPacket response = request(CoapRequestCode.GET, "a", 3);
+		assertEquals(3, service.calls);
+		assertEquals(ByteBuffer.wrap("a3".getBytes()), response.getPayload());
+	}
+
+	@Test
+	public void testReactivation() {
+		request(CoapRequestCode.GET, "a", 1);
+		assertEquals(1, service.calls);
+
+		// Without a cache, nothing is served from the old one
+		server.stop();
+		server.start(null);
+		CoapPacket response = request(CoapRequestCode.GET, "a", 2);
+		assertEquals(2, service.calls);
+		assertEquals(ByteBuffer.wrap("a2".getBytes()), response.getPayload());
+
+		// With one again, it starts empty
+		server.stop();
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.CACHE_PROPERTY, "8");
+		server.start(properties);
+		response = request(CoapRequestCode.GET, "a", 3);
+		assertEquals(3, service.calls);
+		assertEquals(ByteBuffer.wrap("a3".getBytes()), response.getPayload());
+
+		server.stop();
+	}
+
+	private CoapPacket request(CoapRequestCode code, String argument, int id) {
+		ByteBuffer msg = new CoapPacket().reset(CoapPacketType.NON,
+				code.getValue(), id).encode(
+				ByteBuffer.wrap(("urn:dmns:cnt?" + argument).getBytes()));
+
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(msg)));
+		return response;
+	}
+
+	static class CountingService implements CacheableService {
+
+		int calls;
+
+		@Override
+		public long getMaxAge() {
+			return 30;
+		}
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			calls++;
+
+			// Read the argument, like a real service would
+			byte[] arg = new byte[input.remaining()];
+			input.get(arg);
+			return ByteBuffer.wrap((new String(arg) + calls).getBytes());
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "cnt");
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * File TestRetransmission.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapRequestDispatcher;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestRetransmission
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestRetransmission {
+
+	@Test
+	public void testNonByDefault() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector);
+		assertFalse(dispatcher.isConfirmable());
+
+		dispatcher.dispatchRequestAsync(CoapRequestCode.GET, "a".getBytes());
+		assertEquals(CoapPacketType.NON, connector.next(500).getPacketType());
+		assertNull(connector.next(300));
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testBackoff() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1, true, 100);
+		assertTrue(dispatcher.isConfirmable());
+
+		ResponseFuture future = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		CoapPacket first = connector.next(500);
+		assertEquals(CoapPacketType.CON, first.getPacketType());
+
+		// Sent again after 100 to 150 ms, then after twice that
+		long sent = System.nanoTime();
+		for (int i = 0; i < 2; i++) {
+			CoapPacket again = connector.next(1000);
+			long waited = (System.nanoTime() - sent) / 1000000;
+			sent = System.nanoTime();
+
+			assertEquals(first.getMessageID(), again.getMessageID());
+			assertEquals("a", new String(again.copyPayload()));
+			assertTrue(waited >= (90 << i) && waited < (150 << i) + 100);
+		}
+
+		// A piggybacked response ends it
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.ACK,
+				CoapResponseCode.Content_205.getValue(), first.getMessageID());
+		response.setToken(first.getToken(), first.getTokenLength());
+		connector.deliver(response.encode(ByteBuffer.wrap("r".getBytes())));
+		assertEquals(ByteBuffer.wrap("r".getBytes()), future.get());
+		assertNull(connector.next(500));
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testGiveUp() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1, true, 20);
+
+		ResponseFuture future = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+
+		// Once and four retransmissions, then it times out
+		assertNull(future.get(3, TimeUnit.SECONDS));
+		int sent = 0;
+		while (connector.next(0) != null)
+			sent++;
+		assertEquals(5, sent);
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testEmptyAck() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1, true, 100);
+
+		ResponseFuture future = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		CoapPacket request = connector.next(500);
+
+		// Acknowledged, so it is not sent again while the answer is made
+		connector.deliver(CoapPacket.encodeEmpty(CoapPacketType.ACK,
+				request.getMessageID()));
+		assertNull(connector.next(400));
+		assertFalse(future.isDone());
+
+		// The separate response comes with a message ID of its own
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.CON,
+				CoapResponseCode.Content_205.getValue(),
+				(request.getMessageID() + 1) & 0xFFFF);
+		response.setToken(request.getToken(), request.getTokenLength());
+		connector.deliver(response.encode(ByteBuffer.wrap("r".getBytes())));
+		assertEquals(ByteBuffer.wrap("r".getBytes()), future.get());
+
+		dispatcher.close();
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		RecordingConnector connector = new RecordingConnector();
+		CoapRequestDispatcher dispatcher = new CoapRequestDispatcher(
+				connector, 1, true, 100);
+
+		ResponseFuture future = dispatcher.dispatchRequestAsync(
+				CoapRequestCode.GET, "a".getBytes());
+		connector.deliver(CoapPacket.encodeEmpty(CoapPacketType.RST,
+				connector.next(500).getMessageID()));
+
+		try {
+			future.get(500, TimeUnit.MILLISECONDS);
+			fail("A reset request must fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServiceException);
+		}
+		assertNull(connector.next(300));
+
+		dispatcher.close();
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * File TestRouting.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.client.api.AsyncRESTService;
+import eu.artemis.demanes.lib.coap.client.api.ResponseFuture;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestRouting
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestRouting {
+
+	@Test
+	public void testLongestPrefix() throws InterruptedException {
+		RecordingConnector all = new RecordingConnector();
+		RecordingConnector sensors = new RecordingConnector();
+		RecordingConnector other = new RecordingConnector();
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(all, routes("urn:dmns:"));
+		client.addConnector(sensors, routes(new String[] {
+				"urn:dmns:sensor:", "urn:dmns:x" }));
+		client.addConnector(other, null);
+		client.start(null);
+
+		assertRoutedTo(sensors, client, "sensor:temp", all, other);
+		assertRoutedTo(all, client, "actuator", sensors, other);
+		assertRoutedTo(sensors, client, "x", all, other);
+
+		// Matches no route, so goes to the link without routes
+		client.resolveAsync(new ANES_URN("ext", "thing")).getAsync(null);
+		assertNotNull(other.next(500));
+
+		client.stop();
+	}
+
+	@Test
+	public void testNoLink() {
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(new RecordingConnector(),
+				routes(Arrays.asList("urn:dmns:sensor:")));
+		client.start(null);
+
+		assertNull(client.resolve(new ANES_URN("dmns", "actuator")));
+		assertNotNull(client.resolve(new ANES_URN("dmns", "sensor:temp")));
+
+		client.stop();
+	}
+
+	@Test
+	public void testDynamicConnectors() throws InterruptedException {
+		RecordingConnector all = new RecordingConnector();
+		RecordingConnector sensors = new RecordingConnector();
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.start(null);
+		assertNull(client.resolve(new ANES_URN("dmns", "sensor:temp")));
+
+		client.addConnector(all, routes("urn:dmns:"));
+		assertRoutedTo(all, client, "sensor:temp", sensors);
+
+		// A more specific link takes over for new resolves
+		client.addConnector(sensors, routes("urn:dmns:sensor:"));
+		assertRoutedTo(sensors, client, "sensor:temp", all);
+
+		client.removeConnector(sensors);
+		assertRoutedTo(all, client, "sensor:temp", sensors);
+		assertEquals(1, client.getMetrics().size());
+
+		client.stop();
+	}
+
+	@Test
+	public void testRemoveRouteInUse() throws Exception {
+		RecordingConnector all = new RecordingConnector();
+		RecordingConnector sensors = new RecordingConnector();
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(all, routes("urn:dmns:"));
+		client.addConnector(sensors, routes("urn:dmns:sensor:"));
+		client.start(null);
+
+		ANES_URN temp = new ANES_URN("dmns", "sensor:temp");
+		AsyncRESTService service = client.resolveAsync(temp);
+		ResponseFuture running = service.getAsync(null);
+		assertNotNull(sensors.next(500));
+
+		// The running request fails, and so does the service
+		client.removeConnector(sensors);
+		assertFailed(running);
+		try {
+			service.get(null);
+			fail("A service on a removed link must fail");
+		} catch (ServiceException e) {
+			// Resolve it again
+		}
+
+		// Resolved again, it goes over the link that is left
+		assertRoutedTo(all, client, "sensor:temp", sensors);
+
+		client.stop();
+	}
+
+	@Test
+	public void testLinksAreSeparate() throws Exception {
+		RecordingConnector a = new RecordingConnector();
+		RecordingConnector b = new RecordingConnector();
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(a, routes("urn:dmns:a"));
+		client.addConnector(b, routes("urn:dmns:b"));
+		client.start(null);
+
+		ResponseFuture onA = client.resolveAsync(new ANES_URN("dmns", "a"))
+				.getAsync(null);
+		ResponseFuture onB = client.resolveAsync(new ANES_URN("dmns", "b"))
+				.getAsync(null);
+		CoapPacket requestA = a.next(500);
+		CoapPacket requestB = b.next(500);
+
+		// The response to B arriving over A does not complete anything
+		a.deliver(response(requestB, "b"));
+		assertFalse(onA.isDone());
+		assertFalse(onB.isDone());
+
+		b.deliver(response(requestB, "b"));
+		a.deliver(response(requestA, "a"));
+		assertEquals(ByteBuffer.wrap("b".getBytes()), onB.get());
+		assertEquals(ByteBuffer.wrap("a".getBytes()), onA.get());
+
+		client.stop();
+	}
+
+	/**
+	 * Check that requests to the service go over the expected connector only
+	 */
+	private static void assertRoutedTo(RecordingConnector expected,
+			CoapMessageClient client, String service,
+			RecordingConnector... others) throws InterruptedException {
+		client.resolveAsync(new ANES_URN("dmns", service)).getAsync(null);
+		assertNotNull(expected.next(500));
+		for (RecordingConnector other : others)
+			assertNull(other.next(50));
+	}
+
+	private static void assertFailed(ResponseFuture future)
+			throws InterruptedException {
+		try {
+			future.get();
+			fail("The request should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ServiceException);
+		}
+	}
+
+	private static Map<String, Object> routes(Object routes) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.ROUTES_PROPERTY, routes);
+		return properties;
+	}
+
+	private static ByteBuffer response(CoapPacket request, String payload) {
+		CoapPacket response = new CoapPacket().reset(CoapPacketType.NON,
+				CoapResponseCode.Content_205.getValue(), 1);
+		response.setToken(request.getToken(), request.getTokenLength());
+		return response.encode(ByteBuffer.wrap(payload.getBytes()));
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * File TestServiceNegotiation.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.CoapProxyConstants;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.junit.TestResponseCache.CountingService;
+import eu.artemis.demanes.lib.coapServer.loopback.LoopbackConnector;
+import eu.artemis.demanes.lib.services.RESTService;
+import eu.artemis.demanes.lib.services.ServiceException;
+
+/**
+ * TestServiceNegotiation
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestServiceNegotiation {
+
+	@Test
+	public void testServerHandsOutPrefixes() {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new CountingService());
+		server.start(negotiating());
+
+		CoapPacket response = request(server, CoapRequestCode.GET,
+				bytes("urn:dmns:serviceid?urn:dmns:cnt"));
+		byte[] prefix = response.copyPayload();
+		assertEquals(2 + CoapProxyConstants.EPOCH_LENGTH, prefix.length);
+		assertEquals(CoapProxyConstants.NEGOTIATED_MARKER, prefix[0]);
+
+		response = request(server, CoapRequestCode.PUT, concat(prefix,
+				bytes("a")));
+		assertEquals("a1", new String(response.copyPayload()));
+
+		// Unknown services get no prefix
+		response = request(server, CoapRequestCode.GET,
+				bytes("urn:dmns:serviceid?urn:dmns:none"));
+		assertEquals(0, response.copyPayload().length);
+
+		// A prefix of another epoch is refused
+		prefix[CoapProxyConstants.EPOCH_LENGTH]++;
+		response = request(server, CoapRequestCode.PUT, concat(prefix,
+				bytes("b")));
+		assertEquals(CoapResponseCode.Precondition_Failed_412.getValue(),
+				response.getCode());
+
+		server.stop();
+	}
+
+	@Test
+	public void testServerNegotiatesOnRequest() {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new CountingService());
+		server.start(null);
+
+		// Without the property there is no negotiation service to ask
+		assertNull(server.dispatchMessage(new CoapPacket().reset(
+				CoapPacketType.NON, CoapRequestCode.GET.getValue(), 1).encode(
+				ByteBuffer.wrap(bytes("urn:dmns:serviceid?urn:dmns:cnt")))));
+
+		server.stop();
+	}
+
+	@Test
+	public void testClientLearnsPrefix() throws ServiceException {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new CountingService());
+
+		LoopbackConnector clientEnd = new LoopbackConnector(false);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(negotiating());
+
+		final List<Byte> firstBytes = new ArrayList<Byte>();
+		serverEnd.addDispatcher(new MessageDispatcher() {
+			@Override
+			public ByteBuffer dispatchMessage(ByteBuffer msg) {
+				CoapPacket request = new CoapPacket();
+				if (request.decode(msg) && request.getPayload().hasRemaining())
+					firstBytes.add(request.getPayload().get());
+				return null;
+			}
+		});
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageClient.NEGOTIATE_PROPERTY, "true");
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(properties);
+
+		RESTService service = client.resolve(new ANES_URN("dmns", "cnt"));
+		assertEquals(ByteBuffer.wrap(bytes("a1")),
+				service.put(ByteBuffer.wrap(bytes("a"))));
+		assertEquals(ByteBuffer.wrap(bytes("b2")),
+				service.put(ByteBuffer.wrap(bytes("b"))));
+		assertEquals(Byte.valueOf(CoapProxyConstants.NEGOTIATED_MARKER),
+				firstBytes.get(firstBytes.size() - 1));
+
+		// Another server, where the prefix is stale
+		server.stop();
+		serverEnd.removeDispatcher(server);
+		CoapMessageServer restarted = new CoapMessageServer();
+		restarted.registerService(new CountingService());
+		restarted.setSocketConnector(serverEnd);
+		restarted.start(negotiating());
+		serverEnd.addDispatcher(restarted);
+
+		// Repeated with the urn, then the new prefix is learned
+		assertEquals(ByteBuffer.wrap(bytes("c1")),
+				service.put(ByteBuffer.wrap(bytes("c"))));
+		assertEquals(ByteBuffer.wrap(bytes("d2")),
+				service.put(ByteBuffer.wrap(bytes("d"))));
+		assertEquals(ByteBuffer.wrap(bytes("e3")),
+				service.put(ByteBuffer.wrap(bytes("e"))));
+		assertEquals(Byte.valueOf(CoapProxyConstants.NEGOTIATED_MARKER),
+				firstBytes.get(firstBytes.size() - 1));
+
+		client.stop();
+		restarted.stop();
+	}
+
+	@Test
+	public void testClientUsesUrnByDefault() throws ServiceException {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(new CountingService());
+
+		LoopbackConnector clientEnd = new LoopbackConnector(false);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(null);
+
+		final List<Byte> firstBytes = new ArrayList<Byte>();
+		serverEnd.addDispatcher(new MessageDispatcher() {
+			@Override
+			public ByteBuffer dispatchMessage(ByteBuffer msg) {
+				CoapPacket request = new CoapPacket();
+				if (request.decode(msg) && request.getPayload().hasRemaining())
+					firstBytes.add(request.getPayload().get());
+				return null;
+			}
+		});
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(clientEnd, null);
+		client.start(null);
+
+		RESTService service = client.resolve(new ANES_URN("dmns", "cnt"));
+		assertEquals(ByteBuffer.wrap(bytes("a1")),
+				service.put(ByteBuffer.wrap(bytes("a"))));
+		assertEquals(ByteBuffer.wrap(bytes("b2")),
+				service.put(ByteBuffer.wrap(bytes("b"))));
+
+		// No question for the prefix goes ahead of the requests
+		assertEquals(2, firstBytes.size());
+		assertFalse(firstBytes.contains(CoapProxyConstants.NEGOTIATED_MARKER));
+
+		client.stop();
+		server.stop();
+	}
+
+	private static CoapPacket request(CoapMessageServer server,
+			CoapRequestCode code, byte[] payload) {
+		CoapPacket response = new CoapPacket();
+		assertTrue(response.decode(server.dispatchMessage(new CoapPacket()
+				.reset(CoapPacketType.NON, code.getValue(), 1).encode(
+						ByteBuffer.wrap(payload)))));
+		return response;
+	}
+
+	private static Map<String, Object> negotiating() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.NEGOTIATE_PROPERTY, "true");
+		return properties;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		return ByteBuffer.allocate(a.length + b.length).put(a).put(b).array();
+	}
+}
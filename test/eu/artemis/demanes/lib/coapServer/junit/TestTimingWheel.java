@@ -0,0 +1,85 @@
+/**
+ * File TestTimingWheel.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import eu.artemis.demanes.lib.coap.TimingWheel;
+
+/**
+ * TestTimingWheel
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 28 okt. 2014
+ *
+ */
+public class TestTimingWheel {
+
+	@Test
+	public void testExpireAndCancel() throws InterruptedException {
+		// Small wheel, so the timeouts need more than one round
+		TimingWheel wheel = new TimingWheel("test", 1, TimeUnit.MILLISECONDS,
+				8);
+		final CountDownLatch latch = new CountDownLatch(2);
+		final AtomicInteger cancelledRuns = new AtomicInteger();
+
+		long start = System.nanoTime();
+		TimingWheel.Timeout first = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 20, TimeUnit.MILLISECONDS);
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 30, TimeUnit.MILLISECONDS);
+		TimingWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancelledRuns.incrementAndGet();
+			}
+		}, 25, TimeUnit.MILLISECONDS);
+
+		assertTrue(cancelled.cancel());
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+
+		// Never early
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(30));
+		assertTrue(first.isExpired());
+		assertFalse(first.cancel());
+		assertTrue(cancelled.isCancelled());
+		assertEquals(0, cancelledRuns.get());
+
+		wheel.stop();
+	}
+}
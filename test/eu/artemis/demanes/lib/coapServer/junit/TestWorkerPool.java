@@ -0,0 +1,211 @@
+/**
+ * File TestWorkerPool.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.junit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ws4d.coap.messages.CoapPacketType;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapResponseCode;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.coap.CoapPacket;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * TestWorkerPool
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 15 okt. 2014
+ *
+ */
+public class TestWorkerPool {
+
+	@Test
+	public void testQueueOverflow() throws InterruptedException {
+		GateService service = new GateService();
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageServer server = start(service, connector);
+
+		// The worker holds the first, two more fit in the queue
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 0)));
+		assertTrue(service.started.await(500, TimeUnit.MILLISECONDS));
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 1)));
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 2)));
+
+		// The next one is refused right away, NON or CON
+		CoapPacket refused = new CoapPacket();
+		assertTrue(refused.decode(server.dispatchMessage(request(
+				CoapPacketType.NON, 3))));
+		assertEquals(CoapResponseCode.Service_Unavailable_503.getValue(),
+				refused.getCode());
+		assertTrue(refused.decode(server.dispatchMessage(request(
+				CoapPacketType.CON, 4))));
+		assertEquals(CoapPacketType.ACK, refused.getPacketType());
+		assertEquals(104, refused.getMessageID());
+		assertEquals(CoapResponseCode.Service_Unavailable_503.getValue(),
+				refused.getCode());
+
+		service.gate.countDown();
+		for (int i = 0; i < 3; i++)
+			assertEquals(CoapResponseCode.Content_205.getValue(), connector
+					.next(500).getCode());
+		assertNull(connector.next(100));
+		assertEquals(3, service.calls.size());
+
+		server.stop();
+	}
+
+	@Test
+	public void testOrderUnderFullQueue() throws InterruptedException {
+		GateService service = new GateService();
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageServer server = start(service, connector);
+
+		server.dispatchMessage(request(CoapPacketType.NON, 0));
+		assertTrue(service.started.await(500, TimeUnit.MILLISECONDS));
+		server.dispatchMessage(request(CoapPacketType.NON, 1));
+		server.dispatchMessage(request(CoapPacketType.NON, 2));
+		server.dispatchMessage(request(CoapPacketType.NON, 3));
+
+		// As soon as there is room again, later requests queue up behind
+		service.gate.countDown();
+		assertEquals("0", new String(connector.next(500).copyPayload()));
+		assertEquals("1", new String(connector.next(500).copyPayload()));
+		assertNull(server.dispatchMessage(request(CoapPacketType.NON, 5)));
+		for (String expected : new String[] { "2", "5" })
+			assertEquals(expected, new String(connector.next(500)
+					.copyPayload()));
+
+		assertEquals("[0, 1, 2, 5]", service.calls.toString());
+
+		server.stop();
+	}
+
+	@Test
+	public void testOtherServicesGoOn() throws InterruptedException {
+		GateService service = new GateService();
+		RecordingConnector connector = new RecordingConnector();
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+		server.registerService(new TestConcurrentRequests.EchoService());
+		server.setSocketConnector(connector);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.THREADS_PROPERTY, "2");
+		server.start(properties);
+
+		server.dispatchMessage(request(CoapPacketType.NON, 0));
+		assertTrue(service.started.await(500, TimeUnit.MILLISECONDS));
+
+		// The echo service answers while the gate is still closed
+		CoapPacket echo = new CoapPacket().reset(CoapPacketType.NON,
+				CoapRequestCode.GET.getValue(), 200);
+		server.dispatchMessage(echo.encode(ByteBuffer.wrap("urn:dmns:echo?e"
+				.getBytes())));
+		assertEquals("e", new String(connector.next(500).copyPayload()));
+
+		service.gate.countDown();
+		assertEquals("0", new String(connector.next(500).copyPayload()));
+
+		server.stop();
+	}
+
+	private static CoapMessageServer start(RESTService service,
+			RecordingConnector connector) {
+		CoapMessageServer server = new CoapMessageServer();
+		server.registerService(service);
+		server.setSocketConnector(connector);
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(CoapMessageServer.THREADS_PROPERTY, "1");
+		properties.put(CoapMessageServer.QUEUE_PROPERTY, "2");
+		server.start(properties);
+		return server;
+	}
+
+	private static ByteBuffer request(CoapPacketType type, int n) {
+		CoapPacket request = new CoapPacket().reset(type,
+				CoapRequestCode.POST.getValue(), 100 + n);
+		request.setToken(100 + n, 1);
+		return request.encode(ByteBuffer.wrap(("urn:dmns:gate?" + n)
+				.getBytes()));
+	}
+
+	/**
+	 * Holds the first call until the gate opens, and answers with the argument
+	 */
+	static class GateService implements RESTService {
+
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final CountDownLatch gate = new CountDownLatch(1);
+
+		final List<String> calls = new CopyOnWriteArrayList<String>();
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			byte[] arg = new byte[input.remaining()];
+			input.get(arg);
+			calls.add(new String(arg));
+
+			started.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return ByteBuffer.wrap(arg);
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return get(input);
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return new ANES_URN("dmns", "gate");
+		}
+	}
+}
@@ -0,0 +1,404 @@
+/**
+ * File LinkEmulator.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.loopback;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.MessageDispatcherRegistry;
+import eu.artemis.demanes.lib.SocketConnector;
+
+/**
+ * LinkEmulator
+ * 
+ * A SocketConnector that wraps another one and makes it behave like a slow
+ * and lossy link, to try timeouts, retransmissions and window sizes of the
+ * COAP client and server without field trials. Both directions lose,
+ * duplicate, reorder and delay messages, and share out a bandwidth cap, as
+ * configured with the properties:
+ * 
+ * <pre>
+ * link.seed=0          the seed of the random choices
+ * link.loss=0.1        the chance a message is lost
+ * link.duplicate=0.01  the chance a message arrives twice
+ * link.reorder=0.05    the chance a message is held back link.reorder.delay ms
+ * link.delay=50        the delay of every message in ms
+ * link.jitter=20       the extra random delay of a message, up to this in ms
+ * link.bandwidth=1200  the bytes per second of each direction, 0 for unlimited
+ * </pre>
+ * 
+ * The choices of each direction come from a random generator of their own, so
+ * the same messages in the same order meet the same fate with the same seed.
+ * A message is put on the link after the ones before it have been sent at the
+ * bandwidth, and jitter may reorder messages as well.
+ * 
+ * <pre>
+ * LinkEmulator link = new LinkEmulator(clientEnd, properties);
+ * client.addConnector(link, null);
+ * </pre>
+ * 
+ * For a server, add its dispatcher to the emulator and use the emulator as
+ * its socket connector.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class LinkEmulator implements SocketConnector,
+		MessageDispatcherRegistry, MessageDispatcher {
+
+	public static final String SEED_PROPERTY = "link.seed";
+
+	public static final String LOSS_PROPERTY = "link.loss";
+
+	public static final String DUPLICATE_PROPERTY = "link.duplicate";
+
+	public static final String REORDER_PROPERTY = "link.reorder";
+
+	public static final String REORDER_DELAY_PROPERTY = "link.reorder.delay";
+
+	public static final String DELAY_PROPERTY = "link.delay";
+
+	public static final String JITTER_PROPERTY = "link.jitter";
+
+	public static final String BANDWIDTH_PROPERTY = "link.bandwidth";
+
+	private final SocketConnector connector;
+
+	private final Set<MessageDispatcher> dispatchers = new CopyOnWriteArraySet<MessageDispatcher>();
+
+	// Where the wrapped connector delivers its messages
+	private volatile MessageDispatcherRegistry registry;
+
+	private final double loss;
+
+	private final double duplicate;
+
+	private final double reorder;
+
+	// In nanoseconds
+	private final long reorderDelay;
+
+	private final long delay;
+
+	private final long jitter;
+
+	// Bytes per second, 0 for unlimited
+	private final int bandwidth;
+
+	private final Direction outgoing;
+
+	private final Direction incoming;
+
+	private final AtomicLong sent = new AtomicLong();
+
+	private final AtomicLong lost = new AtomicLong();
+
+	private final AtomicLong duplicated = new AtomicLong();
+
+	private final AtomicLong reordered = new AtomicLong();
+
+	/**
+	 * @param connector
+	 *            the connector to emulate the link on
+	 * @param properties
+	 *            the link.* properties, missing ones leave that aspect of
+	 *            the link perfect
+	 */
+	public LinkEmulator(SocketConnector connector, Map<String, ?> properties) {
+		this.connector = connector;
+
+		this.loss = getDouble(properties, LOSS_PROPERTY, 0);
+		this.duplicate = getDouble(properties, DUPLICATE_PROPERTY, 0);
+		this.reorder = getDouble(properties, REORDER_PROPERTY, 0);
+		this.reorderDelay = millis(getDouble(properties,
+				REORDER_DELAY_PROPERTY, 10));
+		this.delay = millis(getDouble(properties, DELAY_PROPERTY, 0));
+		this.jitter = millis(getDouble(properties, JITTER_PROPERTY, 0));
+		this.bandwidth = (int) getDouble(properties, BANDWIDTH_PROPERTY, 0);
+
+		long seed = (long) getDouble(properties, SEED_PROPERTY, 0);
+
+		this.outgoing = new Direction(seed, "LinkEmulator out") {
+			@Override
+			void arrive(byte[] msg) {
+				send(msg);
+			}
+		};
+
+		this.incoming = new Direction(seed + 1, "LinkEmulator in") {
+			@Override
+			void arrive(byte[] msg) {
+				receive(msg);
+			}
+		};
+
+		// A server end is listened to before anything is written to it
+		if (connector instanceof MessageDispatcherRegistry)
+			listen((MessageDispatcherRegistry) connector);
+	}
+
+	/**
+	 * @param properties
+	 * @return whether any of the properties configures a link emulator
+	 */
+	public static boolean isConfigured(Map<String, ?> properties) {
+		if (properties != null)
+			for (String key : properties.keySet())
+				if (key.startsWith("link."))
+					return true;
+
+		return false;
+	}
+
+	/**
+	 * Stop delivering messages, the ones that are still on the link are lost
+	 */
+	public void close() {
+		this.outgoing.executor.shutdownNow();
+		this.incoming.executor.shutdownNow();
+
+		MessageDispatcherRegistry r = this.registry;
+		if (r != null)
+			r.removeDispatcher(this);
+	}
+
+	/**
+	 * @return the number of messages put on the link in both directions
+	 */
+	public long getSent() {
+		return this.sent.get();
+	}
+
+	/**
+	 * @return the number of messages that were lost
+	 */
+	public long getLost() {
+		return this.lost.get();
+	}
+
+	/**
+	 * @return the number of messages that arrived twice
+	 */
+	public long getDuplicated() {
+		return this.duplicated.get();
+	}
+
+	/**
+	 * @return the number of messages that were held back
+	 */
+	public long getReordered() {
+		return this.reordered.get();
+	}
+
+	/**
+	 * @return the counters, in one line
+	 */
+	public String report() {
+		return String.format("link: %d sent, %d lost, %d duplicated, "
+				+ "%d reordered", getSent(), getLost(), getDuplicated(),
+				getReordered());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see eu.artemis.demanes.lib.SocketConnector#write(byte[])
+	 */
+	@Override
+	public MessageDispatcherRegistry write(byte[] msg) {
+		this.outgoing.transmit(msg.clone());
+		return this;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * eu.artemis.demanes.lib.MessageDispatcher#dispatchMessage(java.nio.ByteBuffer
+	 * )
+	 */
+	@Override
+	public ByteBuffer dispatchMessage(ByteBuffer msg) {
+		byte[] copy = new byte[msg.remaining()];
+		msg.duplicate().get(copy);
+		this.incoming.transmit(copy);
+
+		// Responses are written over the link once the message arrived
+		return null;
+	}
+
+	@Override
+	public void addDispatcher(MessageDispatcher d) {
+		this.dispatchers.add(d);
+	}
+
+	@Override
+	public void removeDispatcher(MessageDispatcher d) {
+		this.dispatchers.remove(d);
+	}
+
+	@Override
+	public boolean containsDispatcher(MessageDispatcher d) {
+		return this.dispatchers.contains(d);
+	}
+
+	/**
+	 * A message arrives at the other end of the outgoing direction
+	 * 
+	 * @param msg
+	 */
+	private void send(byte[] msg) {
+		listen(this.connector.write(msg));
+	}
+
+	/**
+	 * A message arrives at this end of the incoming direction
+	 * 
+	 * @param msg
+	 */
+	private void receive(byte[] msg) {
+		for (MessageDispatcher d : this.dispatchers) {
+			ByteBuffer response = d.dispatchMessage(ByteBuffer.wrap(msg));
+			if (response != null && response.hasRemaining()) {
+				byte[] copy = new byte[response.remaining()];
+				response.duplicate().get(copy);
+				this.outgoing.transmit(copy);
+			}
+		}
+	}
+
+	private void listen(MessageDispatcherRegistry r) {
+		this.registry = r;
+		if (!r.containsDispatcher(this))
+			synchronized (this) {
+				if (!r.containsDispatcher(this))
+					r.addDispatcher(this);
+			}
+	}
+
+	private static long millis(double ms) {
+		return (long) (ms * 1000000);
+	}
+
+	private static double getDouble(Map<String, ?> properties, String key,
+			double defaultValue) {
+		Object value = (properties == null ? null : properties.get(key));
+		return value == null ? defaultValue : Double.parseDouble(value
+				.toString().trim());
+	}
+
+	/**
+	 * One direction of the link
+	 */
+	private abstract class Direction {
+
+		private final Random random;
+
+		private final ScheduledExecutorService executor;
+
+		// When the link is free to send the next message, in System.nanoTime()
+		private long busyUntil = 0;
+
+		Direction(long seed, final String name) {
+			this.random = new Random(seed);
+
+			ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			this.executor = e;
+		}
+
+		/**
+		 * Called on the delivery thread of the direction
+		 * 
+		 * @param msg
+		 */
+		abstract void arrive(byte[] msg);
+
+		/**
+		 * Put a message on the link
+		 * 
+		 * @param msg
+		 */
+		synchronized void transmit(final byte[] msg) {
+			long now = System.nanoTime();
+			long departure = now;
+			if (bandwidth > 0) {
+				departure = Math.max(now, this.busyUntil) + msg.length
+						* 1000000000L / bandwidth;
+				this.busyUntil = departure;
+			}
+
+			sent.incrementAndGet();
+
+			// Always draw the same numbers, so one setting does not change
+			// the fate of the messages for another
+			boolean isLost = this.random.nextDouble() < loss;
+			boolean isDuplicated = this.random.nextDouble() < duplicate;
+
+			if (isLost) {
+				lost.incrementAndGet();
+				return;
+			}
+
+			if (isDuplicated)
+				duplicated.incrementAndGet();
+
+			for (int copies = (isDuplicated ? 2 : 1); copies > 0; copies--) {
+				long arrival = departure + delay
+						+ (long) (this.random.nextDouble() * jitter);
+				if (this.random.nextDouble() < reorder) {
+					reordered.incrementAndGet();
+					arrival += reorderDelay;
+				}
+
+				try {
+					this.executor.schedule(new Runnable() {
+						@Override
+						public void run() {
+							arrive(msg);
+						}
+					}, arrival - now, TimeUnit.NANOSECONDS);
+				} catch (RejectedExecutionException e) {
+					// Closed, the message is lost like on a link that is down
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * File LoopbackConnector.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.loopback;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import eu.artemis.demanes.lib.MessageDispatcher;
+import eu.artemis.demanes.lib.MessageDispatcherRegistry;
+import eu.artemis.demanes.lib.SocketConnector;
+
+/**
+ * LoopbackConnector
+ * 
+ * One end of an in-memory link, to connect a CoapMessageClient to a
+ * CoapMessageServer in the same process without hardware. What is written to
+ * one end is passed to the dispatchers of the other end (its peer), and what
+ * those return is passed back to the dispatchers of the writing end.
+ * 
+ * <pre>
+ * LoopbackConnector clientEnd = new LoopbackConnector(true);
+ * LoopbackConnector serverEnd = clientEnd.getPeer();
+ * serverEnd.addDispatcher(server);
+ * server.setSocketConnector(serverEnd);
+ * client.addConnector(clientEnd, null);
+ * </pre>
+ * 
+ * An asynchronous link delivers the messages of each direction in order on a
+ * thread of its own, like a serial link. A synchronous link delivers them on
+ * the writing thread, before write returns.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class LoopbackConnector implements SocketConnector,
+		MessageDispatcherRegistry {
+
+	private final LoopbackConnector peer;
+
+	private final Set<MessageDispatcher> dispatchers = new CopyOnWriteArraySet<MessageDispatcher>();
+
+	// Messages that arrive before anyone listens, the client only starts
+	// listening after its first write
+	private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Delivers the messages to this end, null for a synchronous link
+	private final ExecutorService delivery;
+
+	/**
+	 * Create a link, and return one end of it
+	 * 
+	 * @param asynchronous
+	 *            whether to deliver messages on a thread of their own
+	 */
+	public LoopbackConnector(boolean asynchronous) {
+		this.delivery = (asynchronous ? newDelivery() : null);
+		this.peer = new LoopbackConnector(this, asynchronous ? newDelivery()
+				: null);
+	}
+
+	private LoopbackConnector(LoopbackConnector peer, ExecutorService delivery) {
+		this.peer = peer;
+		this.delivery = delivery;
+	}
+
+	/**
+	 * @return the other end of the link
+	 */
+	public LoopbackConnector getPeer() {
+		return this.peer;
+	}
+
+	/**
+	 * Stop the delivery threads of both ends. Messages that are still on their
+	 * way are dropped.
+	 */
+	public void close() {
+		if (this.delivery != null)
+			this.delivery.shutdownNow();
+		if (this.peer.delivery != null)
+			this.peer.delivery.shutdownNow();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see eu.artemis.demanes.lib.SocketConnector#write(byte[])
+	 */
+	@Override
+	public MessageDispatcherRegistry write(byte[] msg) {
+		this.peer.deliver(ByteBuffer.wrap(msg.clone()));
+		return this;
+	}
+
+	@Override
+	public void addDispatcher(MessageDispatcher d) {
+		this.dispatchers.add(d);
+
+		ByteBuffer msg;
+		while ((msg = this.pending.poll()) != null)
+			this.deliver(msg);
+	}
+
+	@Override
+	public void removeDispatcher(MessageDispatcher d) {
+		this.dispatchers.remove(d);
+	}
+
+	@Override
+	public boolean containsDispatcher(MessageDispatcher d) {
+		return this.dispatchers.contains(d);
+	}
+
+	/**
+	 * Pass a message to the dispatchers of this end
+	 * 
+	 * @param msg
+	 */
+	private void deliver(final ByteBuffer msg) {
+		if (this.delivery == null) {
+			this.dispatch(msg);
+			return;
+		}
+
+		try {
+			this.delivery.execute(new Runnable() {
+				@Override
+				public void run() {
+					dispatch(msg);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed, the message is lost like on a link that is down
+		}
+	}
+
+	private void dispatch(ByteBuffer msg) {
+		if (!this.dispatchers.isEmpty()) {
+			this.dispatchNow(msg);
+			return;
+		}
+
+		this.pending.offer(msg);
+
+		// A dispatcher that was added meanwhile may have missed it
+		if (!this.dispatchers.isEmpty())
+			while ((msg = this.pending.poll()) != null)
+				this.dispatchNow(msg);
+	}
+
+	private void dispatchNow(ByteBuffer msg) {
+		for (MessageDispatcher d : this.dispatchers) {
+			ByteBuffer response = d.dispatchMessage(msg.duplicate());
+			if (response != null && response.hasRemaining()) {
+				byte[] copy = new byte[response.remaining()];
+				response.duplicate().get(copy);
+				this.peer.deliver(ByteBuffer.wrap(copy));
+			}
+		}
+	}
+
+	private static ExecutorService newDelivery() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LoopbackConnector delivery");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
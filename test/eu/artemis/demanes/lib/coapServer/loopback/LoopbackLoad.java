@@ -0,0 +1,140 @@
+/**
+ * File LoopbackLoad.java
+ * 
+ * This file is part of the eu.artemis.demanes.lib.coapServer project.
+ *
+ * Copyright 2014 TNO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.artemis.demanes.lib.coapServer.loopback;
+
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import eu.artemis.demanes.datatypes.ANES_URN;
+import eu.artemis.demanes.lib.SocketConnector;
+import eu.artemis.demanes.lib.coap.client.CoapMessageClient;
+import eu.artemis.demanes.lib.coap.server.CoapMessageServer;
+import eu.artemis.demanes.lib.coapServer.clientTest.LoadGenerator;
+import eu.artemis.demanes.lib.services.RESTService;
+
+/**
+ * LoopbackLoad
+ * 
+ * Runs the LoadGenerator against a CoapMessageServer in the same process,
+ * connected over a LoopbackConnector, and prints the report. The arguments
+ * are properties as key=value, for the generator (load.*), the client
+ * (coap.*) and the server (coap.server.*), for example:
+ * 
+ * <pre>
+ * load.concurrency=8 load.rate=2000 load.mix=get=9,put=1 load.payload=16-128
+ * coap.window=8 coap.server.threads=4
+ * </pre>
+ * 
+ * The server echoes the arguments of every request with a service for each
+ * URN of load.services. The run takes load.duration seconds, 10 by default.
+ * With any link.* property the client talks to the server through a
+ * LinkEmulator, for example link.seed=1 link.loss=0.05 link.delay=20.
+ *
+ * @author leeuwencjv
+ * @version 0.1
+ * @since 17 okt. 2014
+ *
+ */
+public class LoopbackLoad {
+
+	public static void main(String[] args) throws URISyntaxException {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(LoadGenerator.SERVICES_PROPERTY, "urn:dmns:load");
+		properties.put(LoadGenerator.DURATION_PROPERTY, "10");
+
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0)
+				throw new IllegalArgumentException("Not key=value: " + arg);
+
+			properties.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+
+		CoapMessageServer server = new CoapMessageServer();
+		for (String urn : properties.get(LoadGenerator.SERVICES_PROPERTY)
+				.toString().split(","))
+			server.registerService(new EchoService(new ANES_URN(urn.trim())));
+
+		LoopbackConnector clientEnd = new LoopbackConnector(true);
+		LoopbackConnector serverEnd = clientEnd.getPeer();
+		serverEnd.addDispatcher(server);
+		server.setSocketConnector(serverEnd);
+		server.start(properties);
+
+		LinkEmulator link = null;
+		SocketConnector connector = clientEnd;
+		if (LinkEmulator.isConfigured(properties))
+			connector = link = new LinkEmulator(clientEnd, properties);
+
+		CoapMessageClient client = new CoapMessageClient();
+		client.addConnector(connector, null);
+		client.start(properties);
+
+		LoadGenerator generator = new LoadGenerator();
+		generator.setServiceProvider(client);
+		generator.start(properties);
+		generator.await();
+		generator.stop();
+
+		client.stop();
+		server.stop();
+		if (link != null) {
+			System.out.println(link.report());
+			link.close();
+		}
+		clientEnd.close();
+	}
+
+	private static final class EchoService implements RESTService {
+
+		private final ANES_URN identifier;
+
+		EchoService(ANES_URN identifier) {
+			this.identifier = identifier;
+		}
+
+		@Override
+		public ByteBuffer get(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer put(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer post(ByteBuffer input) {
+			return input;
+		}
+
+		@Override
+		public ByteBuffer delete(ByteBuffer input) {
+			return null;
+		}
+
+		@Override
+		public ANES_URN identifier() {
+			return this.identifier;
+		}
+	}
+}